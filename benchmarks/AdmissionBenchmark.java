@@ -0,0 +1,135 @@
+package benchmarks;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import model.Account;
+import model.Admission;
+import model.JukeboxAccountCollection;
+import model.SimulatedAudioSink;
+import model.Song;
+import model.SongSelector;
+
+/**
+ * This class measures how fast song requests are admitted or turned away
+ * by SongSelector.requestSong, which addToQueue calls. The catalog and the
+ * accounts both have size entries.
+ *
+ * Every user and song runs out of plays for the day quickly, so the request
+ * benchmarks measure the steady state where most requests are turned away.
+ * The reserve benchmarks measure admission on its own: they take a play of
+ * the user and the song the way requestSong does and give both back, so every
+ * request is admitted, without the history, statistics, log or queue behind it.
+ *
+ * @author David Wang
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx4g" })
+public class AdmissionBenchmark {
+
+	@Param({ "10", "1000", "100000", "1000000" })
+	public int size;
+
+	private SongSelector songSelector;
+	private Account[] users;
+	private String[] songs;
+	private Song[] songObjects;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		songSelector = new SongSelector(null, false, new SimulatedAudioSink());
+		BenchmarkData.addSongs(songSelector.getSongCollection(), size);
+		JukeboxAccountCollection accounts = BenchmarkData.accounts(size);
+		songs = new String[size];
+		songObjects = new Song[size];
+		users = new Account[size];
+		for (int i = 0; i < size; i++) {
+			songs[i] = BenchmarkData.songName(i);
+			songObjects[i] = songSelector.getSongCollection().getSong(songs[i]);
+			users[i] = accounts.getAccount(BenchmarkData.accountName(i));
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		songSelector.closeAll();
+	}
+
+	@Benchmark
+	public Admission requestSong() {
+		return randomRequest();
+	}
+
+	@Benchmark
+	@Threads(4)
+	public Admission requestSongContended() {
+		return randomRequest();
+	}
+
+	/*
+	 * Every thread asks for the same song, so they all update one play counter
+	 */
+	@Benchmark
+	@Threads(4)
+	public Admission requestSameSongContended() {
+		Account user = users[ThreadLocalRandom.current().nextInt(size)];
+		return songSelector.requestSong(songs[0], user, true);
+	}
+
+	@Benchmark
+	public Admission reserve() {
+		return randomReserve();
+	}
+
+	@Benchmark
+	@Threads(4)
+	public Admission reserveContended() {
+		return randomReserve();
+	}
+
+	private Admission randomRequest() {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		return songSelector.requestSong(songs[random.nextInt(size)], users[random.nextInt(size)], true);
+	}
+
+	/*
+	 * Takes one of the user's songs and then one of the song's plays, like
+	 * SongSelector does, and gives them back so they never run out
+	 */
+	private Admission randomReserve() {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		Song song = songObjects[random.nextInt(size)];
+		Account user = users[random.nextInt(size)];
+		Admission result = user.tryReservePlay(song.getSongDuration());
+		if (result != Admission.ACCEPTED) {
+			return result;
+		}
+		if (song.tryReservePlay()) {
+			song.releasePlay();
+		}
+		else {
+			result = Admission.SONG_LIMIT;
+		}
+		user.releasePlay(song.getSongDuration());
+		return result;
+	}
+}
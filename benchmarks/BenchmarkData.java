@@ -0,0 +1,80 @@
+package benchmarks;
+
+import model.JukeboxAccountCollection;
+import model.PasswordHasher;
+import model.Song;
+import model.SongCatalog;
+
+/**
+ * This class builds the songs and accounts the benchmarks run against.
+ *
+ * @author David Wang
+ */
+class BenchmarkData {
+
+	/*
+	 * No instances, every method is static
+	 */
+	private BenchmarkData() {
+	}
+
+	/**
+	 * Get the name of a made up song
+	 * @param index the number of the song
+	 * @return the name of the song
+	 */
+	static String songName(int index) {
+		return "Song " + index;
+	}
+
+	/**
+	 * Get the name of a made up account
+	 * @param index the number of the account
+	 * @return the name of the account
+	 */
+	static String accountName(int index) {
+		return "user" + index;
+	}
+
+	/**
+	 * Get the password of a made up account
+	 * @param index the number of the account
+	 * @return the password of the account
+	 */
+	static String password(int index) {
+		return "password" + index;
+	}
+
+	/**
+	 * Adds made up songs to a catalog, each 5 seconds long
+	 * @param catalog the catalog to fill
+	 * @param count the number of songs to add
+	 */
+	static void addSongs(SongCatalog catalog, int count) {
+		for (int i = 0; i < count; i++) {
+			catalog.add(new Song(songName(i), "songfiles/Capture.mp3", 5, "Benchmark"));
+		}
+	}
+
+	/**
+	 * Makes an account collection with made up accounts. The passwords are
+	 * hashed with a single iteration, so a million accounts are made quickly,
+	 * and the hash cost is set back afterwards.
+	 *
+	 * @param count the number of accounts to add
+	 * @return the accounts
+	 */
+	static JukeboxAccountCollection accounts(int count) {
+		int iterations = PasswordHasher.getIterations();
+		PasswordHasher.setIterations(1);
+		try {
+			JukeboxAccountCollection accounts = new JukeboxAccountCollection(false);
+			for (int i = 0; i < count; i++) {
+				accounts.addAccount(accountName(i), password(i));
+			}
+			return accounts;
+		} finally {
+			PasswordHasher.setIterations(iterations);
+		}
+	}
+}
@@ -0,0 +1,101 @@
+package benchmarks;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import model.Account;
+import model.JukeboxAccountCollection;
+import model.LoginLogoutSystem;
+import model.PasswordHasher;
+
+/**
+ * This class measures looking up accounts and logging in, with size accounts.
+ *
+ * Hashing a million passwords at full cost would take hours, so the bulk of
+ * the accounts are hashed with a single iteration. The users that log in
+ * are a few more accounts hashed with the given number of iterations.
+ *
+ * @author David Wang
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx4g" })
+public class LoginBenchmark {
+	private final static int loginUsers = 64;
+
+	@Param({ "10", "1000", "100000", "1000000" })
+	public int size;
+
+	@Param({ "1", "100000" })
+	public int iterations;
+
+	private JukeboxAccountCollection accounts;
+	private LoginLogoutSystem sessions;
+	private int savedIterations;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		accounts = BenchmarkData.accounts(size);
+		savedIterations = PasswordHasher.getIterations();
+		PasswordHasher.setIterations(iterations);
+		for (int i = 0; i < loginUsers; i++) {
+			accounts.addAccount("kiosk" + i, BenchmarkData.password(i));
+		}
+		sessions = new LoginLogoutSystem(accounts);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		sessions.close();
+		PasswordHasher.setIterations(savedIterations);
+	}
+
+	@Benchmark
+	public Account getAccount() {
+		return accounts.getAccount(BenchmarkData.accountName(ThreadLocalRandom.current().nextInt(size)));
+	}
+
+	@Benchmark
+	@Threads(4)
+	public Account getAccountContended() {
+		return accounts.getAccount(BenchmarkData.accountName(ThreadLocalRandom.current().nextInt(size)));
+	}
+
+	/*
+	 * LoginLogoutSystem.logIn for the single kiosk, which checks the password
+	 */
+	@Benchmark
+	public boolean logIn() {
+		int user = ThreadLocalRandom.current().nextInt(loginUsers);
+		return sessions.logIn("kiosk" + user, BenchmarkData.password(user));
+	}
+
+	/*
+	 * Many kiosks logging in at once, each in a session of its own
+	 */
+	@Benchmark
+	@Threads(4)
+	public boolean logInContended() {
+		int user = ThreadLocalRandom.current().nextInt(loginUsers);
+		String token = sessions.openSession("kiosk" + user, BenchmarkData.password(user));
+		return sessions.closeSession(token);
+	}
+}
@@ -0,0 +1,111 @@
+package benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import model.JukeboxAccountCollection;
+import model.SimulatedAudioSink;
+import model.Song;
+import model.SongCatalog;
+import model.SongSelector;
+
+/**
+ * This class measures saving and reading the ListOfUsers, ListOfSongs and
+ * SongQueue files with size accounts, songs and queued songs. The files are
+ * written to a temporary folder, never over the jukebox's own files.
+ *
+ * @author David Wang
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx4g" })
+public class PersistenceBenchmark {
+
+	@Param({ "10", "1000", "100000", "1000000" })
+	public int size;
+
+	private File folder;
+	private String userFile;
+	private String songFile;
+	private String queueFile;
+	private JukeboxAccountCollection accounts;
+	private SongSelector songSelector;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		folder = Files.createTempDirectory("jukebox-benchmark").toFile();
+		userFile = new File(folder, "ListOfUsers").getPath();
+		songFile = new File(folder, "ListOfSongs").getPath();
+		queueFile = new File(folder, "SongQueue").getPath();
+
+		accounts = BenchmarkData.accounts(size);
+		songSelector = new SongSelector(null, false, new SimulatedAudioSink());
+		BenchmarkData.addSongs(songSelector.getSongCollection(), size);
+		for (int i = 0; i < size; i++) {
+			songSelector.getQueue().add(BenchmarkData.songName(i));
+		}
+
+		accounts.writePersistentData(userFile);
+		songSelector.writePersistentData(songFile, queueFile);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		songSelector.closeAll();
+		File[] files = folder.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		folder.delete();
+	}
+
+	@Benchmark
+	public void writeUsers() {
+		accounts.writePersistentData(userFile);
+	}
+
+	@Benchmark
+	public JukeboxAccountCollection readUsers() {
+		accounts.readPersistentData(userFile);
+		return accounts;
+	}
+
+	/*
+	 * Writes ListOfSongs and SongQueue, as every save does
+	 */
+	@Benchmark
+	public void writeSongsAndQueue() {
+		songSelector.writePersistentData(songFile, queueFile);
+	}
+
+	/*
+	 * Opens ListOfSongs and looks up one song, which is all a start needs
+	 */
+	@Benchmark
+	public Song openSongsAndFind() throws IOException {
+		SongCatalog catalog = SongCatalog.open(songFile);
+		return catalog.getSong(BenchmarkData.songName(ThreadLocalRandom.current().nextInt(size)));
+	}
+}
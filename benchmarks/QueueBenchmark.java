@@ -0,0 +1,71 @@
+package benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import model.PlayQueue;
+
+/**
+ * This class measures adding songs to the queue and taking them off,
+ * with size songs already waiting, so the queue keeps its length.
+ *
+ * @author David Wang
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx4g" })
+public class QueueBenchmark {
+
+	@Param({ "10", "1000", "100000", "1000000" })
+	public int size;
+
+	private PlayQueue queue;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		List<String> waiting = new ArrayList<String>(size);
+		for (int i = 0; i < size; i++) {
+			waiting.add(BenchmarkData.songName(i));
+		}
+		queue = new PlayQueue(waiting);
+	}
+
+	@Benchmark
+	public String enqueueDequeue() {
+		queue.add("Capture");
+		return queue.remove();
+	}
+
+	@Benchmark
+	@Threads(4)
+	public String enqueueDequeueContended() {
+		queue.add("Capture");
+		return queue.remove();
+	}
+
+	/*
+	 * What the window does when the queue changed
+	 */
+	@Benchmark
+	public List<String> snapshot() {
+		return queue.snapshot();
+	}
+}
@@ -0,0 +1,119 @@
+package controller_view;
+
+import java.util.concurrent.CompletableFuture;
+
+import javafx.application.Platform;
+import javafx.collections.ObservableListBase;
+import model.Song;
+import model.SongCatalog;
+
+/**
+ * This class shows the song catalog in a table without copying it.
+ *
+ * A row only holds the position of its song in the catalog, and the Song is
+ * asked for when the table draws that row, so only the rows on screen are
+ * ever read. Sorting swaps in one of the catalog's sorted orders, an array
+ * of positions, so no song is read to sort either.
+ *
+ * Songs added to the catalog show up at the end of the list, in whatever
+ * order it is sorted in, until it is sorted again. The list must only be
+ * used on the JavaFX thread.
+ *
+ * @author David Wang
+ */
+public class CatalogList extends ObservableListBase<Song> {
+
+	private final SongCatalog catalog;
+	// the sorted positions, or null for catalog order
+	private int[] order;
+	private boolean descending;
+	private int size;
+
+	/**
+	 * Constructor of the class
+	 * @param songCatalog the catalog to show
+	 */
+	public CatalogList(SongCatalog songCatalog) {
+		catalog = songCatalog;
+		size = catalog.size();
+		catalog.addListener(song -> Platform.runLater(() -> songsAdded(catalog.size())));
+		// the catalog keeps the orders it works out, so working them out now makes the first sort quick
+		CompletableFuture.runAsync(() -> {
+			for (SongCatalog.SortKey key : SongCatalog.SortKey.values()) {
+				if (key != SongCatalog.SortKey.PLAYS) {
+					catalog.order(key);
+				}
+			}
+		});
+	}
+
+	@Override
+	public Song get(int index) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+		}
+		return catalog.getSong(position(index));
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Sorts the list. The rows are moved with a single permutation change.
+	 *
+	 * @param key what to sort by, or null for catalog order
+	 * @param newDescending true to put the largest first, ignored for catalog order
+	 */
+	public void sort(SongCatalog.SortKey key, boolean newDescending) {
+		int[] newOrder = key == null ? null : catalog.order(key);
+		songsAdded(newOrder == null ? catalog.size() : newOrder.length);
+
+		// where each row goes: find the new row of every position, then of every old row
+		int[] oldPositions = new int[size];
+		for (int i = 0; i < size; i++) {
+			oldPositions[i] = position(i);
+		}
+		order = newOrder;
+		descending = newDescending;
+		int[] rowOf = new int[size];
+		for (int i = 0; i < size; i++) {
+			rowOf[position(i)] = i;
+		}
+		int[] permutation = new int[size];
+		for (int i = 0; i < size; i++) {
+			permutation[i] = rowOf[oldPositions[i]];
+		}
+		beginChange();
+		nextPermutation(0, size, permutation);
+		endChange();
+	}
+
+	/*
+	 * Helper method
+	 * Get the catalog position of the song in a row
+	 */
+	private int position(int row) {
+		if (order == null || row >= order.length) {
+			// in catalog order, or added since the last sort
+			return row;
+		}
+		return descending ? order[order.length - 1 - row] : order[row];
+	}
+
+	/*
+	 * Helper method
+	 * Shows the songs added to the catalog up to a new size
+	 */
+	private void songsAdded(int newSize) {
+		if (newSize <= size) {
+			return;
+		}
+		int oldSize = size;
+		size = newSize;
+		beginChange();
+		nextAdd(oldSize, newSize);
+		endChange();
+	}
+}
@@ -1,15 +1,14 @@
 package controller_view;
 
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 
-import javafx.beans.property.SimpleStringProperty;
+import javafx.animation.AnimationTimer;
+import javafx.application.Platform;
+import javafx.beans.property.ReadOnlyObjectWrapper;
+import javafx.beans.property.ReadOnlyStringWrapper;
 import javafx.beans.value.ObservableValue;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
@@ -51,22 +50,34 @@ public class JukeboxPane extends BorderPane{
 	//Model fields needed for spike functionality.
 	private LoginLogoutSystem log;
 	private JukeboxAccountCollection accounts;
-	private Account currUser;
+	// the session of the user logged in at this kiosk, null if nobody is
+	private String session;
 	private SongSelector songSelector;
+	private PersistenceManager persistenceManager;
 	
 	private boolean persist;
-	private final static String songQ = "SongQueue";
 	
 	//Song table view
-	private ObservableList<Song> playsObservableList;
+	private CatalogList playsObservableList;
 	private TableView<Song> tableView;
 	private TableColumn<Song, String> titleColumn, authorColumn;
 	private TableColumn<Song, Integer> playsColumn;
 	private TableColumn<Song, String> durationColumn;
+	// the plays of every song shown so far, set one song at a time as songs are played
+	private Map<Song, ReadOnlyObjectWrapper<Integer>> playsCells;
+	// the text of every song length shown so far, shared by the songs of that length
+	private Map<Integer, ReadOnlyStringWrapper> durationCells;
+	private long shownDay;
+	
+	//Song search
+	private final static int searchLimit = 500;
+	private TextField search;
+	private SongSearchIndex searchIndex;
 	
 	//Queue table view
 	private ObservableList<String> queueObservableList;
 	private ListView<String> queueListView;
+	private QueueMirror queueMirror;
 	
 	//GUI Nodes
 	private Button addToQueue, logIn, logOut;
@@ -84,28 +95,49 @@ public class JukeboxPane extends BorderPane{
 	 */
 	public JukeboxPane(boolean persistence) {
 		persist = persistence;
+		//the metrics can be watched with any JMX console, such as jconsole
+		JukeboxMetrics.register();
 		accounts = new JukeboxAccountCollection(persist);
 		//Check model for available accounts during spike
 		//'Merlin' is the only admin for this spike. 
 		log = new LoginLogoutSystem(accounts);
 		
-		setUpQueueView(persist);
-		songSelector = new SongSelector(queueObservableList, persist);
+		setUpQueueView();
+		songSelector = new SongSelector(queueObservableList, persist, newAudioSink());
+		if (persist) {
+			//Changes made since the last save are replayed and every new change is logged
+			persistenceManager = new PersistenceManager(accounts, songSelector);
+			persistenceManager.open();
+		}
+		queueMirror = new QueueMirror(songSelector.getQueue());
+		queueMirror.start();
 		setUpSongTableView();
 		InitGUI();
 	}
 	
 	/*
-	 * This method sets up the queue view
+	 * Helper method
+	 * Get the sink the songs are played on. The JavaFX media player is used
+	 * unless -Djukebox.audio=pcm asks for the javax.sound one. The songs are
+	 * MP3 files, so without an MP3 reader for javax.sound every song would end
+	 * right away and use up a play; the media player is used instead then.
 	 */
-	private void setUpQueueView(boolean persist) {
-		if (persist) {
-			List<String> songPersistent = readPersistentData();
-			queueObservableList = FXCollections.observableArrayList(songPersistent);
-		}
-		else {
-			queueObservableList = FXCollections.observableArrayList();
+	private AudioSink newAudioSink() {
+		if ("pcm".equals(System.getProperty("jukebox.audio"))) {
+			if (PcmAudioSink.canPlay("songfiles/Capture.mp3")) {
+				return new PcmAudioSink();
+			}
+			System.err.println("javax.sound cannot read MP3 files, playing with the media player");
 		}
+		return new PlayAnMP3();
+	}
+	
+	/*
+	 * This method sets up the queue view.
+	 * The list starts empty and is filled from the song queue by the queue mirror.
+	 */
+	private void setUpQueueView() {
+		queueObservableList = FXCollections.observableArrayList();
 		
 		queueListView = new ListView<>();
 		queueListView.setItems(queueObservableList);
@@ -144,6 +176,7 @@ public class JukeboxPane extends BorderPane{
 		tableView = new TableView<>();
 		tableView.setItems(playsObservableList);
 		tableView.getColumns().addAll(playsColumn, titleColumn, authorColumn, durationColumn);
+		tableView.setSortPolicy(table -> sortSongs());
 		tableView.setColumnResizePolicy(TableView.CONSTRAINED_RESIZE_POLICY);
 		
 		tableView.setPrefHeight(1000);
@@ -154,11 +187,40 @@ public class JukeboxPane extends BorderPane{
 				  "-fx-font-size: 16pt;" +
 				  "-fx-font-family: Sans Serif;" +
 				  "-fx-font-weight: bolder;");
-		table.getChildren().addAll(songList, tableView);
+		setUpSearch();
+		table.getChildren().addAll(songList, search, tableView);
 		table.setPadding(new Insets(20, 0, 0, 20));
 		this.setLeft(table);
-		
-		songSelector.refreshTimesPlayedToday();
+	}
+
+	/*
+	 * This method sets up the search field above the song table.
+	 * The index is built off the JavaFX thread, the field is usable once it is ready.
+	 * Every change to the text searches again, an empty field shows every song.
+	 */
+	private void setUpSearch() {
+		search = new TextField();
+		search.setPromptText("Loading songs...");
+		search.setDisable(true);
+		search.textProperty().addListener((observable, oldText, newText) -> showSearch(newText));
+		CompletableFuture.supplyAsync(songSelector::getSearchIndex).thenAccept(index ->
+			Platform.runLater(() -> {
+				searchIndex = index;
+				search.setPromptText("Search title, artist or file");
+				search.setDisable(false);
+			}));
+	}
+	
+	/*
+	 * Shows the songs matching the search in the table
+	 */
+	private void showSearch(String text) {
+		if (searchIndex == null || text.trim().isEmpty()) {
+			tableView.setItems(playsObservableList);
+		}
+		else {
+			tableView.setItems(FXCollections.observableArrayList(searchIndex.search(text, searchLimit)));
+		}
 	}
 
 	/*
@@ -210,6 +272,11 @@ public class JukeboxPane extends BorderPane{
 	private void updateInfo() {
 		acc.clear();
 		pass.clear();
+		Account currUser = currentUser();
+		if (currUser == null) {
+			info.setText("Login first");
+			return;
+		}
 		int userPlays = currUser.numberSongPlayedByUserToday();
 		//90000 is the number of seconds left (1500 minutes * 60 seconds per min)
 		int timeLeft = 90000 - currUser.getTimePlayed();
@@ -252,15 +319,15 @@ public class JukeboxPane extends BorderPane{
 	
 	/*
 	 * maxSongsReached is called whenever the user tries to queue a song and it
-	 * fails. Since there are two ways that this can happen, it figures out why
-	 * the queue failed and shows an alert describing it.
+	 * fails. The song selector says why the queue failed and an alert describing
+	 * it is shown.
 	 */
-	private void maxSongsReached(Song song) {
+	private void maxSongsReached(Song song, Account currUser, Admission reason) {
 		Alert maxSong = new Alert(AlertType.INFORMATION);
-		if (currUser.numberSongPlayedByUserToday() == 3) {
+		if (reason == Admission.USER_LIMIT) {
 			maxSong.setHeaderText(currUser.getAccountName() + " has reached the limit today");
 		}
-		else if (currUser.getTimePlayed() + song.getSongDuration() > 90000) {
+		else if (reason == Admission.TIME_CAP) {
 			maxSong.setHeaderText(currUser.getAccountName() + " has reached free song limit");
 		}
 		else {
@@ -325,9 +392,15 @@ public class JukeboxPane extends BorderPane{
 	 * this method sets up the columns of the table view from the variables that the song class has
 	 */
 	private void setSongTableColumns() {
+		playsCells = new HashMap<Song, ReadOnlyObjectWrapper<Integer>>();
+		durationCells = new HashMap<Integer, ReadOnlyStringWrapper>();
+		shownDay = DayClock.today();
+		songSelector.getSongCollection().addPlaysListener(song -> Platform.runLater(() -> showPlays(song)));
+		
 		playsColumn = new TableColumn<>("Plays");
 		playsColumn.setMinWidth(30);
-		playsColumn.setCellValueFactory(new PropertyValueFactory<>("timesPlayedToday"));
+		playsColumn.setCellValueFactory(p -> playsCells.computeIfAbsent(p.getValue(),
+				song -> new ReadOnlyObjectWrapper<Integer>(song.getTimesPlayedToday())));
 		
 		titleColumn = new TableColumn<>("Title");
 		titleColumn.setMinWidth(150);
@@ -335,20 +408,27 @@ public class JukeboxPane extends BorderPane{
 		
 		authorColumn = new TableColumn<>("Artist");
 		authorColumn.setMinWidth(150);
-		authorColumn.setCellValueFactory(new PropertyValueFactory<>("songName"));
+		authorColumn.setCellValueFactory(new PropertyValueFactory<>("artist"));
 		
 		durationColumn = new TableColumn<Song, String>("Time");
 		durationColumn.setMinWidth(30);
 		durationColumn.setCellValueFactory(new Callback<CellDataFeatures<Song, String>, ObservableValue<String>>() {
 		    @Override 
 			public ObservableValue<String> call(CellDataFeatures<Song, String> p) {
-		         int duration = p.getValue().getSongDuration();
-		         int minutes = duration / 60;
-		         int seconds = duration % 60;
-		         return new SimpleStringProperty(String.valueOf(minutes) + ":" + String.valueOf(seconds));
+		         return durationCells.computeIfAbsent(p.getValue().getSongDuration(), duration ->
+		         	new ReadOnlyStringWrapper(String.format("%d:%02d", duration / 60, duration % 60)));
 		     }
 		  });
-		//durationColumn.setCellValueFactory(new PropertyValueFactory<>("songDuration"));
+	}
+	
+	/*
+	 * This method shows the new plays of one song, only its cell is redrawn
+	 */
+	private void showPlays(Song song) {
+		ReadOnlyObjectWrapper<Integer> plays = playsCells.get(song);
+		if (plays != null) {
+			plays.set(song.getTimesPlayedToday());
+		}
 	}
 	
 	/*
@@ -366,59 +446,53 @@ public class JukeboxPane extends BorderPane{
 	}
 	
 	/*
-	 * this method will add the songs to the table view
+	 * this method will show the songs in the table view.
+	 * The list reads songs from the catalog only as rows are drawn.
 	 */
 	private void setSongTablePlaylist(){
-		playsObservableList = FXCollections.observableArrayList();
-		
-		for(String key: songSelector.getSongCollection().keySet()) {
-			playsObservableList.add(songSelector.getSong(key));
+		playsObservableList = new CatalogList(songSelector.getSongCollection());
+	}
+	
+	/*
+	 * This method sorts the song table by the first column in its sort order.
+	 * The whole catalog is sorted with the catalog's own sorted orders,
+	 * search results are few and sorted the usual way.
+	 */
+	@SuppressWarnings("unchecked")
+	private boolean sortSongs() {
+		if (tableView.getItems() != playsObservableList) {
+			return TableView.DEFAULT_SORT_POLICY.call(tableView);
+		}
+		if (tableView.getSortOrder().isEmpty()) {
+			playsObservableList.sort(null, false);
+			return true;
+		}
+		TableColumn<Song, ?> column = tableView.getSortOrder().get(0);
+		SongCatalog.SortKey key = SongCatalog.SortKey.TITLE;
+		if (column == playsColumn) {
+			key = SongCatalog.SortKey.PLAYS;
+		}
+		else if (column == authorColumn) {
+			key = SongCatalog.SortKey.ARTIST;
+		}
+		else if (column == durationColumn) {
+			key = SongCatalog.SortKey.DURATION;
 		}
+		playsObservableList.sort(key, column.getSortType() == TableColumn.SortType.DESCENDING);
+		return true;
 	}
 	
 	/**
 	 * This method will write data into a file for future jukebox systems
 	 */
 	public void writePersistent() {
-		accounts.writePersistentData();
-		songSelector.writePersistentData();
-		
-		List<String> writeQ = new ArrayList<String>();
-		try {
-		      FileOutputStream fileOutput = new FileOutputStream(songQ);
-		      ObjectOutputStream out = new ObjectOutputStream(fileOutput);
-		      for(String s : queueObservableList) {
-		    	  writeQ.add(s);
-		      }
-		      out.writeObject(writeQ);
-		      out.close();
-		    
-		    } catch (IOException e) {
-		      e.printStackTrace();
-		    }
-	}
-	
-	/*
-	 * This method will read data
-	 */
-	@SuppressWarnings("unchecked")
-	private List<String> readPersistentData() {
-		List<String> readQ;
-		try {
-		      FileInputStream fileOutput = new FileInputStream(songQ);
-		      ObjectInputStream in = new ObjectInputStream(fileOutput);
-		      try {
-				readQ = (ArrayList<String>) in.readObject();
-				in.close();
-			} catch (ClassNotFoundException e) {
-				e.printStackTrace();
-				readQ = new ArrayList<String>();
-			}
-	    } catch (IOException e) {
-	      e.printStackTrace();
-	      readQ = new ArrayList<String>();
-	    }
-		return readQ;
+		if (persistenceManager != null) {
+			persistenceManager.checkpoint();
+		}
+		else {
+			accounts.writePersistentData();
+			songSelector.writePersistentData();
+		}
 	}
 	
 	/**
@@ -426,15 +500,55 @@ public class JukeboxPane extends BorderPane{
 	 */
 	public void closeAll() {
 		pbUpdate.stopWork();
+		queueMirror.stop();
+		log.close();
 		songSelector.closeAll();
+		if (persistenceManager != null) {
+			persistenceManager.close();
+		}
+	}
+	
+	/*
+	 * Finishes a log in once the password was checked
+	 */
+	private void loggedIn(String newSession, Throwable error) {
+		logIn.setDisable(false);
+		if (newSession != null) {
+			log.closeSession(session);
+			session = newSession;
+			
+			//admins are allowed to add users.
+			if (accounts.admin(currentUser())) {
+				addUser();
+			}
+			updateInfo();
+		}
+		else {
+			//unsuccessful log in attempts
+			info.setText(error != null ? "Too many log ins, try again" : "Invalid Credentials");
+			acc.clear();
+			pass.clear();
+		}
 	}
 	
 	/*
-	 * This method will update the number of time every song has played today in the table
+	 * Get the user logged in at this kiosk, or null if the session ended
 	 */
-	private void refreshTable() {
-		songSelector.refreshTimesPlayedToday();
-		tableView.refresh();
+	private Account currentUser() {
+		return log.getAccount(session);
+	}
+	
+	/*
+	 * This method shows every song back at 0 plays once the day changed.
+	 * Songs reset their own counts on a new day, so only the view needs updating.
+	 */
+	private void checkNewDay() {
+		if (DayClock.today() != shownDay) {
+			shownDay = DayClock.today();
+			for (Song song : playsCells.keySet()) {
+				showPlays(song);
+			}
+		}
 	}
 	
 	/*
@@ -448,15 +562,17 @@ public class JukeboxPane extends BorderPane{
 	  	public void handle(ActionEvent event) {
 	  		
 	  		if(event.getSource() == addToQueue) {
+	  			Account currUser = currentUser();
 	  			if(currUser != null && tableView.getSelectionModel().getSelectedItem() != null) {
-	  				if(songSelector.addToQueue(tableView.getSelectionModel().getSelectedItem().getSongName(), currUser, false)) {
-	  					//On successful addition, info is updated
-	  					refreshTable();
+	  				Song selected = tableView.getSelectionModel().getSelectedItem();
+	  				Admission result = songSelector.requestSong(selected.getSongName(), currUser, false);
+	  				if(result == Admission.ACCEPTED) {
+	  					//On successful addition, info is updated, the song's plays update themselves
 	  					updateInfo();
 	  				}
 	  				else {
 	  					//Otherwise a descriptive alert is displayed
-	  					maxSongsReached(tableView.getSelectionModel().getSelectedItem());
+	  					maxSongsReached(selected, currUser, result);
 	  				}
 	  			}
 	  		}
@@ -465,55 +581,81 @@ public class JukeboxPane extends BorderPane{
 	  		if(event.getSource() == logIn) {
 	  			String accountName = acc.getText();
 	  			String password = pass.getText();
-	  			if (log.logIn(accountName, password)) {
-  					currUser = accounts.getAccount(accountName);
-	  				
-  					//admins are allowed to add users.
-  					if (accounts.admin(currUser)) {
-  						addUser();
-  					}
-  					updateInfo();
-	  			}
-  				else {
-  					//unsuccessful log in attempts
-  					info.setText("Invalid Credentials");
-  					acc.clear();
-  					pass.clear();
-  				}
+	  			//the password is checked off the JavaFX thread, the answer comes back on it
+	  			logIn.setDisable(true);
+	  			info.setText("Checking...");
+	  			log.openSessionAsync(accountName, password).whenComplete((newSession, error) ->
+	  				Platform.runLater(() -> loggedIn(newSession, error)));
 	  		}
 	  		
 	  		//Allows the user to log out
 	  		if(event.getSource() == logOut) {
-	  			currUser = null;
+	  			log.closeSession(session);
+	  			session = null;
 	  			info.setText("Login first");
 	  		}
 	  	}
 	}
 	
 	/*
-	 * This private class contains the code to show the bar progression
+	 * This private class keeps the queue list view in step with the song queue.
+	 * The queue is changed from other threads, so instead of listening to it
+	 * the list view copies it at most once per frame, and only if its version
+	 * changed. Many songs added between two frames cause a single redraw.
+	 */
+	private class QueueMirror extends AnimationTimer {
+		
+		private final PlayQueue queue;
+		private long lastVersion = -1;
+		
+		public QueueMirror(PlayQueue songQueue) {
+			queue = songQueue;
+		}
+		
+		/*
+		 * Called once per frame, copies the queue into the list view if it changed
+		 */
+		@Override
+		public void handle(long now) {
+			long version = queue.getVersion();
+			if (version != lastVersion) {
+				lastVersion = version;
+				queueObservableList.setAll(queue.snapshot());
+			}
+		}
+	}
+	
+	/*
+	 * This private class contains the code to show the bar progression.
+	 * It runs on the JavaFX application thread once per frame, so the bar
+	 * is never touched from another thread and is only updated when the
+	 * song has actually moved on since the last frame. It also notices
+	 * midnight, when every song's plays go back to 0.
 	 */
-	private class PBUpdate extends Thread {
+	private class PBUpdate extends AnimationTimer {
 		
-		private boolean done = false;
+		private double lastProgress = -1;
 		
 		/*
-		 * While the bar is not done (full) keep showing the progression
+		 * Called once per frame, copies the song progress into the bar if it changed
 		 */
 		@Override
-		public void run() {
-			while(!done) {
-				if (getSelector() != null) {
-					pb.setProgress(songSelector.songPercentage());
+		public void handle(long now) {
+			checkNewDay();
+			if (getSelector() != null) {
+				double progress = songSelector.songPercentage();
+				if (progress != lastProgress) {
+					lastProgress = progress;
+					pb.setProgress(progress);
 				}
 			}
 		}
 		
 		/*
-		 * This method will set the progression bar to full, which will stop the thread
+		 * This method stops the frame updates
 		 */
 		public void stopWork() {
-			done = true;
+			stop();
 		}
 	}
 }
@@ -2,204 +2,282 @@ package controller_view;
 
 import java.io.File;
 import java.net.URI;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import javafx.collections.ObservableList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
 import javafx.scene.media.Media;
 import javafx.scene.media.MediaPlayer;
+import javafx.util.Duration;
+import model.AudioSink;
+import model.JukeboxMetrics;
+import model.LruCache;
 import model.Song;
 
 /**
  * This program is initialized inside of a javafx application.
- * It simulates a mp3 player and plays any songs that have been
- * added to the queue in FIFO order.
+ * It is the audio sink that plays the songs of the queue through a
+ * JavaFX MediaPlayer. Which song plays next is decided by SongPlayer.
  * Notably, the setOnEndOfMedia method for the MediaPlayer is not functioning
- * correctly so another thread is used to check the duration of each song
- * to manually stop each song. We are also looking into using the autoplay method.
+ * correctly so the end of each song is scheduled on a timer from its known
+ * duration. The timer is re-armed whenever the song resumes after a pause or
+ * a stall, and setOnEndOfMedia is kept as a fallback when it does fire.
+ * The song that comes next is loaded into a second MediaPlayer while the
+ * current one plays, so it can start as soon as the current one ends.
+ * The Media of recently played songs is kept, already parsed, in a cache
+ * shared by every sink, since the same popular songs are played many times.
  * 
  * @author David Wang adapter from code proved by Rick Mercer
  */
 
-public class PlayAnMP3 {
+public class PlayAnMP3 implements AudioSink {
+	/** The most songs whose Media is kept */
+	public final static int MEDIA_CACHE_SIZE = 64;
+	
+	// a Media can be shared by any number of players, so one cache serves every sink
+	private final static LruCache<String, Media> mediaCache = new LruCache<String, Media>(MEDIA_CACHE_SIZE);
 	
-	private static String path;
-	private static List<String> next;
-	private boolean playing;
 	private MediaPlayer mediaPlayer;
-	private ObservableList<String> observableList;
-	private HashMap<String, Song> songCollection;
-	private TimeCheat timeCount;
-	private double percentagePlayed;
+	// the player loaded ahead for the next song, and that song, null when there is none
+	private MediaPlayer preloaded;
+	private Song preloadedSong;
+	private ScheduledExecutorService songTimer;
+	private ScheduledFuture<?> endOfSong;
+	private int songDuration;
+	private Runnable onFinished;
 
 	/**
 	 * Constructor of the class
-	 * @param newObservableList an observable list that can be modified
-	 * @param songs a hashmap containing all the available songs
 	 */
-  public PlayAnMP3(ObservableList<String> newObservableList, HashMap<String, Song> songs){
-	percentagePlayed = 0.0;
-  	playing = false;
+  public PlayAnMP3(){
   	mediaPlayer = null;
+  	JukeboxMetrics.get().watchMediaCache(mediaCache);
   	
-  	observableList = newObservableList;
-  	songCollection = songs;
-  	
-  	timeCount = new TimeCheat();
-  	Thread songTimer = new Thread(timeCount);
-  	songTimer.start();
+  	songTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+  		Thread thread = new Thread(runnable, "Jukebox end of song timer");
+  		thread.setDaemon(true);
+  		return thread;
+  	});
   }
   
   /**
-   * This method is used to add a song to the queue.
-   * 
-   * @param song the song to be added to the queue
+   * Get the percentage of the current progression of the song
+   * @return the percentage that the song has played
    */
-  public synchronized void addNext(Song song) {
-	observableList.add(song.getSongName());
+  @Override
+  public synchronized double getProgress() {
+	  if (getPlayer() != null) {
+		  double total = totalMillis(getPlayer());
+		  if (total > 0) {
+			  return Math.min(1.0, getPlayer().getCurrentTime().toMillis() / total);
+		  }
+	  }
+	  return 0.0;
   }
   
   /*
-   * this method returns the observable list
+   * Get the media player
    */
-  private synchronized ObservableList<String> getList() {
-	  return observableList;
+  private synchronized MediaPlayer getPlayer() {
+	  return mediaPlayer;
+  }
+  
+  /*
+   * Set the media player to a new media player
+   */
+  private synchronized void setPlayer(MediaPlayer player) {
+	  mediaPlayer = player;
   }
   
   /**
-   * Get the percentage of the current progression of the song
-   * @return the percentage that the song has played
+   * Stop the current song from playing
    */
-  public synchronized double getPercentage() {
-	  if (getPlay()) {
-		  return percentagePlayed;  
+  @Override
+  public synchronized void close() {
+	  cancelEndOfSong();
+	  songTimer.shutdownNow();
+	  onFinished = null;
+	  if (getPlayer() != null) {
+		  getPlayer().stop();
 	  }
-	  else {
-		  return 0.0;
+	  dropPreloaded();
+  }
+  
+  /**
+   * This method loads the song that comes next into its own MediaPlayer,
+   * without playing it, so play can start it without waiting for the file.
+   * 
+   * @param next the song after the one playing now
+   */
+  @Override
+  public synchronized void prepare(Song next) {
+	  if (next == preloadedSong) {
+		  return;
 	  }
+	  dropPreloaded();
+	  preloaded = newPlayer(next);
+	  preloadedSong = next;
   }
   
   /**
-   * This method will set the queue to play
-   * @param play true/false should the play start
+   * This method plays a song. SongPlayer calls it with the first song
+   * in the queue whenever nothing is playing.
+   * 
+   * @param song the song to play
+   * @param finished the code to run once the song is over
    */
-  public synchronized void setPlaying(boolean play) {
-	  playing = play;
+  @Override
+  public synchronized void play(Song song, Runnable finished) {
+	songDuration = song.getSongDuration();
+	onFinished = finished;
+	// Use the player loaded ahead if it is for this song
+	MediaPlayer player;
+	if (preloadedSong != null && preloadedSong.getPath().equals(song.getPath())) {
+		player = preloaded;
+		preloaded = null;
+		preloadedSong = null;
+	}
+	else {
+		dropPreloaded();
+		player = newPlayer(song);
+	}
+    mediaPlayer = player;
+    player.setOnEndOfMedia(new EndOfSongHandler(player));
+    // The end of song timer follows the player through pauses and stalls
+    // and the first time it plays is how long the song took to start
+    AtomicLong asked = new AtomicLong(System.nanoTime());
+    player.setOnPlaying(() -> {
+    	if (armEndOfSong(player)) {
+    		long since = asked.getAndSet(0);
+    		if (since != 0) {
+    			JukeboxMetrics.get().getSongStart().record(System.nanoTime() - since);
+    		}
+    	}
+    });
+    player.setOnPaused(() -> cancelEndOfSong());
+    player.setOnStalled(() -> cancelEndOfSong());
+    
+    getPlayer().play();
+    System.out.println("You may need to shut this App down");
   }
   
   /*
-   * Get current playing status
+   * Helper method
+   * Makes a player for a song, with its Media from the cache when it is there.
+   * A Media that failed to load is made again, the file may have been fixed.
    */
-  private synchronized boolean getPlay() {
-	  return playing;
+  private MediaPlayer newPlayer(Song song) {
+	  Media media = mediaCache.get(song.getPath(), PlayAnMP3::newMedia);
+	  if (media.getError() != null) {
+		  mediaCache.remove(song.getPath());
+		  media = mediaCache.get(song.getPath(), PlayAnMP3::newMedia);
+	  }
+	  return new MediaPlayer(media);
   }
   
   /*
-   * Get the media player
+   * Helper method
+   * Need a File and URI object so the path works on all OSs
    */
-  private synchronized MediaPlayer getPlayer() {
-	  return mediaPlayer;
+  private static Media newMedia(String path) {
+	  File file = new File(path);
+	  URI uri = file.toURI();
+	  return new Media(uri.toString());
   }
   
   /*
-   * Set the media player to a new media player
+   * Helper method
+   * Frees the player loaded ahead, if any
    */
-  private synchronized void setPlayer(MediaPlayer player) {
-	  mediaPlayer = player;
+  private synchronized void dropPreloaded() {
+	  if (preloaded != null) {
+		  preloaded.dispose();
+		  preloaded = null;
+		  preloadedSong = null;
+	  }
   }
   
   /*
-   * Set the current percentage of the song
+   * Schedules the end of the current song from the time it has left.
+   * Any earlier deadline is replaced, so this is also used after a seek.
+   * Returns false if the player is not the current one anymore.
    */
-  private synchronized void setPercentage(double percent) {
-	  percentagePlayed = percent;
+  private synchronized boolean armEndOfSong(MediaPlayer player) {
+	  if (player != getPlayer()) {
+		  return false;
+	  }
+	  cancelEndOfSong();
+	  long left = (long) Math.max(0, totalMillis(player) - player.getCurrentTime().toMillis());
+	  endOfSong = songTimer.schedule(() -> finishSong(player), left, TimeUnit.MILLISECONDS);
+	  return true;
   }
   
   /*
-   * Get the song path
+   * Cancels the pending end of song deadline, if any
    */
-  private synchronized String getSongPath(String songName) {
-	  return songCollection.get(songName).getPath();
+  private synchronized void cancelEndOfSong() {
+	  if (endOfSong != null) {
+		  endOfSong.cancel(false);
+		  endOfSong = null;
+	  }
   }
   
-  /**
-   * Stop the current song from playing
+  /*
+   * The total length of the song in milliseconds. The media knows it once it
+   * is loaded, until then the duration stored in the song is used.
    */
-  public synchronized void close() {
-	  timeCount.stopWork();
+  private synchronized double totalMillis(MediaPlayer player) {
+	  Duration total = player.getTotalDuration();
+	  if (total == null || total.isUnknown() || total.isIndefinite()) {
+		  return songDuration * 1000.0;
+	  }
+	  return total.toMillis();
   }
   
-  /**
-   * This method plays any songs in the queue. Another thread constantly
-   * calls this method (from SongSelector).
+  /*
+   * Stops the given player and tells SongPlayer the song is over.
+   * Both the timer and setOnEndOfMedia end up here, so only the
+   * first call for the current player does anything. SongPlayer is
+   * told after the lock is let go, as AudioSink asks, and the old
+   * player is only freed after that, so the next song does not wait for it.
    */
-  public synchronized void play() {
-	  //System.out.println("Playing is: " + getPlay() + " media is: " + getPlayer());
-	if (!getList().isEmpty() && !getPlay() && getPlayer() == null) {
-		path = getSongPath(getList().get(0));
-		// Need a File and URI object so the path works on all OSs
-	    File file = new File(path);
-	    URI uri = file.toURI();
-	    // Play one mp3 and and have code run when the song ends
-	    Media media = new Media(uri.toString());
-	    mediaPlayer = new MediaPlayer(media);
-	    getPlayer().setOnEndOfMedia(new EndOfSongHandler());
-	    
-	    setPlaying(true);
-	    getPlayer().play();
-	    //System.out.println(mediaPlayer.getOnEndOfMedia());
-	    System.out.println("You may need to shut this App down");
-	}
+  private void finishSong(MediaPlayer player) {
+	  Runnable done;
+	  synchronized (this) {
+		  if (player != getPlayer()) {
+			  return;
+		  }
+		  cancelEndOfSong();
+		  player.stop();
+		  setPlayer(null);
+		  done = onFinished;
+		  onFinished = null;
+	  }
+	  if (done != null) {
+		  done.run();
+	  }
+	  player.dispose();
   }
   
   /*
    * If there is another song in the queue, play it.
    */
   private class EndOfSongHandler implements Runnable {
+	  
+	private final MediaPlayer player;
+	
+	public EndOfSongHandler(MediaPlayer newPlayer) {
+		player = newPlayer;
+	}
+	
     @Override
     public void run() {
-      setPlaying(false);
-      // This Runnable apparently does not get called all the time.
-      // However, I have the same code in my Jukebox and it works.
-      // This question "setOnEndOfMedia does not work" is unanswered on the web.
-      System.out.println("Song ended");
-      getList().remove(0);
-      setPlayer(null);
+      // This Runnable apparently does not get called all the time,
+      // the end of song timer covers for it when it does not.
+      finishSong(player);
     }
   }
-  
-  /*
-   * On our computers, the end of media never occurs. THe media player status is stuck
-   * on playing. Instead, I made a "cheat" class to use song duration to check if a song
-   * has finished. If it does, the song is manually stopped. 
-   */
-  private class TimeCheat implements Runnable {
-	  
-	  private boolean done = false;
-	  
-	  /*
-	   * This method will allow us to keep the song playing
-	   */
-	  @Override
-	  public void run() {
-		  while (!done) {
-			  if (getPlayer() != null && getPlay()) {
-				  setPercentage(getPlayer().getCurrentTime().toMillis()/getPlayer().getTotalDuration().toMillis());
-				  if (!getPlayer().getCurrentTime().lessThanOrEqualTo(getPlayer().getTotalDuration())
-					  && getPlayer().getStatus().equals(MediaPlayer.Status.PLAYING)) {
-					  setPlaying(false);
-					  mediaPlayer.stop();
-				  }
-			  } 
-		  }
-	  }
-	  
-	  /*
-	   * Set the current song to finish
-	   */
-	  public synchronized void stopWork() {
-		  done = true;
-	  }
-  }
 
-}
\ No newline at end of file
+}
@@ -1,10 +1,12 @@
 package model;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 import java.time.LocalDate;
-import java.util.ArrayList;
-//import java.util.HashMap;
-import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This class will keep the information of a Jukebox account
@@ -13,24 +15,60 @@ import java.util.List;
  * Modified: David Wang
  */
 public class Account implements Serializable {
-	private final String password;
-	private final String accountName;
-	private int userSongsPlayed;
-	private int timePlayed;
-	private LocalDate localDate;
+	// kept from the older jukeboxes, so the ListOfUsers they saved can still be read
+	private static final long serialVersionUID = 7848823429894795881L;
+	// the fields as older jukeboxes saved them, the packed counters are written out the same way
+	private static final ObjectStreamField[] serialPersistentFields = {
+		new ObjectStreamField("password", String.class),
+		new ObjectStreamField("accountName", String.class),
+		new ObjectStreamField("userSongsPlayed", int.class),
+		new ObjectStreamField("timePlayed", int.class),
+		new ObjectStreamField("localDate", LocalDate.class)
+	};
+	
+	/** The number of songs a user can pick per day */
+	public static final int MAX_SONGS_PER_DAY = 3;
+	/** The total number of seconds a user can play (1500 minutes * 60 seconds per min) */
+	public static final int MAX_TIME_PLAYED = 90000;
+	
+	// a PBKDF2 hash, or a plain text password saved by an older jukebox until it is hashed
+	private volatile String password;
+	private String accountName;
+	// the day of the last song in the top 24 bits, songs played that day in the next 8
+	// and total time played in the low 32 bits, so the day, the songs and the time can be
+	// checked and updated together in one compare and set
+	private transient AtomicLong plays;
 	
 	/**
-	 * Constructor of the class, sets up the account's name and the password
+	 * Constructor of the class, sets up the account's name and the password.
+	 * Only a salted hash of the password is kept.
 	 * 
 	 * @param newAccountName name of the account
 	 * @param newPassword password of the account
 	 */
 	public Account(String newAccountName, String newPassword) {
-		password = newPassword;
+		this();
+		password = PasswordHasher.hash(newPassword);
 		accountName = newAccountName;
-		userSongsPlayed = 0;
-		timePlayed = 0;
-		localDate = LocalDate.now();
+	}
+	
+	/*
+	 * Constructor of the class with no songs played today, the name and
+	 * the password are set by the caller
+	 */
+	private Account() {
+		plays = new AtomicLong(pack(DayClock.today(), 0, 0));
+	}
+	
+	/*
+	 * Brings back an account from the write ahead log, where the password
+	 * is stored as a hash, or as plain text by an older jukebox
+	 */
+	static Account restore(String newAccountName, String storedPassword) {
+		Account account = new Account();
+		account.password = storedPassword;
+		account.accountName = newAccountName;
+		return account;
 	}
 	
 	/**
@@ -39,20 +77,23 @@ public class Account implements Serializable {
 	 * @return number song played by user today
 	 */
 	public int numberSongPlayedByUserToday() {
-		checkIfNewDay();
-		
-		return userSongsPlayed;
+		return songsOf(checkIfNewDay(plays.get()));
 	}
 	
 	/**
-	 * This method checks if the date is the same.
-	 * It resets the number of songs played if it is a new day.
+	 * This method checks if the counters are from today.
+	 * If they are from an earlier day, the number of songs played starts over,
+	 * while the total time played is kept.
+	 * 
+	 * @param packed the packed counters
+	 * @return the counters as they should be today
 	 */
-	private void checkIfNewDay() {
-		if (!localDate.equals(LocalDate.now())) {
-			userSongsPlayed = 0;
-			localDate = LocalDate.now();
+	private static long checkIfNewDay(long packed) {
+		long today = DayClock.today();
+		if (dayOf(packed) != today) {
+			return pack(today, 0, timeOf(packed));
 		}
+		return packed;
 	}
 
 	/**
@@ -63,10 +104,32 @@ public class Account implements Serializable {
 	 * @return true if password is correct, false if incorrect
 	 */
 	public boolean checkPassword(String passwordToBeChecked) {
-		if (password.equals(passwordToBeChecked))
-			return true;
-		else
+		return PasswordHasher.verify(password, passwordToBeChecked);
+	}
+	
+	/*
+	 * Get the stored password, a hash unless it was saved by an older jukebox
+	 */
+	String getStoredPassword() {
+		return password;
+	}
+	
+	/*
+	 * Sets the stored password, when a change is read back from the write ahead log
+	 */
+	synchronized void restoreStoredPassword(String stored) {
+		password = stored;
+	}
+	
+	/*
+	 * Replaces the stored password, only if it is still the one that was checked
+	 */
+	synchronized boolean replaceStoredPassword(String expected, String newStored) {
+		if (!password.equals(expected)) {
 			return false;
+		}
+		password = newStored;
+		return true;
 	}
 	
 	/**
@@ -77,8 +140,144 @@ public class Account implements Serializable {
 	 * @param songLength The duration of a song
 	 */
 	public void incPlays(int songLength) {
-		userSongsPlayed++;
-		timePlayed += songLength;
+		while (true) {
+			long current = plays.get();
+			long today = checkIfNewDay(current);
+			if (plays.compareAndSet(current, today + pack(0, 1, songLength))) {
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * This method checks that the user can pick one more song of the given length
+	 * and, if so, counts it right away. The check and the update happen in one
+	 * atomic step, so two requests at the same time can never both use the
+	 * user's last song.
+	 * 
+	 * @param songLength The duration of the song
+	 * @return ACCEPTED if the song was counted, USER_LIMIT or TIME_CAP if not
+	 */
+	public Admission tryReservePlay(int songLength) {
+		return tryReservePlays(1, songLength);
+	}
+	
+	/**
+	 * This method works like tryReservePlay for several songs at once.
+	 * Either all of them are counted, in one atomic step, or none is.
+	 * 
+	 * @param songs The number of songs
+	 * @param totalLength The duration of all the songs together
+	 * @return ACCEPTED if the songs were counted, USER_LIMIT or TIME_CAP if not
+	 */
+	public Admission tryReservePlays(int songs, int totalLength) {
+		while (true) {
+			long current = plays.get();
+			long today = checkIfNewDay(current);
+			if (songsOf(today) + songs > MAX_SONGS_PER_DAY) {
+				return Admission.USER_LIMIT;
+			}
+			if (timeOf(today) + totalLength > MAX_TIME_PLAYED) {
+				return Admission.TIME_CAP;
+			}
+			if (plays.compareAndSet(current, today + pack(0, songs, totalLength))) {
+				return Admission.ACCEPTED;
+			}
+		}
+	}
+	
+	/*
+	 * Get the packed play counters, used to save them in the write ahead log
+	 */
+	long getPlaysState() {
+		return plays.get();
+	}
+	
+	/*
+	 * Brings back play counters saved in the write ahead log.
+	 * The counters only ever grow during a day, so keeping the larger value
+	 * makes replaying the same change twice harmless.
+	 */
+	void restorePlaysState(long state) {
+		while (true) {
+			long current = plays.get();
+			if (state <= current || plays.compareAndSet(current, state)) {
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * This method gives back a song counted by tryReservePlay
+	 * when the request could not be completed.
+	 * 
+	 * @param songLength The duration of the song
+	 */
+	public void releasePlay(int songLength) {
+		releasePlays(1, songLength);
+	}
+	
+	/**
+	 * This method gives back the songs counted by tryReservePlays
+	 * when the request could not be completed.
+	 * 
+	 * @param songs The number of songs
+	 * @param totalLength The duration of all the songs together
+	 */
+	public void releasePlays(int songs, int totalLength) {
+		while (true) {
+			long current = plays.get();
+			// songs counted before midnight no longer count against today
+			int counted = dayOf(current) == DayClock.today() ? songs : 0;
+			if (plays.compareAndSet(current, current - pack(0, counted, totalLength))) {
+				return;
+			}
+		}
+	}
+	
+	/*
+	 * Helper methods to read and build the packed play counters
+	 */
+	private static long pack(long day, int songs, int time) {
+		return (day << 40) | ((long) songs << 32) | (time & 0xFFFFFFFFL);
+	}
+	
+	private static long dayOf(long packed) {
+		return packed >>> 40;
+	}
+	
+	private static int songsOf(long packed) {
+		return (int) ((packed >>> 32) & 0xFF);
+	}
+	
+	private static int timeOf(long packed) {
+		return (int) packed;
+	}
+	
+	/*
+	 * Writes the account the way older jukeboxes did, with the counters in their own fields
+	 */
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		long packed = plays.get();
+		ObjectOutputStream.PutField fields = out.putFields();
+		fields.put("password", password);
+		fields.put("accountName", accountName);
+		fields.put("userSongsPlayed", songsOf(packed));
+		fields.put("timePlayed", timeOf(packed));
+		fields.put("localDate", LocalDate.ofEpochDay(dayOf(packed)));
+		out.writeFields();
+	}
+	
+	/*
+	 * Reads an account and packs its counters again
+	 */
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		ObjectInputStream.GetField fields = in.readFields();
+		password = (String) fields.get("password", null);
+		accountName = (String) fields.get("accountName", null);
+		LocalDate localDate = (LocalDate) fields.get("localDate", null);
+		long day = localDate == null ? DayClock.today() : localDate.toEpochDay();
+		plays = new AtomicLong(pack(day, fields.get("userSongsPlayed", 0), fields.get("timePlayed", 0)));
 	}
 	
 	/**
@@ -94,6 +293,6 @@ public class Account implements Serializable {
 	 * @return total time played today
 	 */
 	public int getTimePlayed() {
-		return timePlayed;
+		return timeOf(plays.get());
 	}
 }
@@ -0,0 +1,20 @@
+package model;
+
+/**
+ * This enum is the answer given to a request to add a song to the queue.
+ * Every value other than ACCEPTED says why the song was turned down.
+ * 
+ * @author David Wang
+ */
+public enum Admission {
+	/** The song was added to the queue */
+	ACCEPTED,
+	/** The song is not in the song collection */
+	UNKNOWN_SONG,
+	/** The user has already picked 3 songs today */
+	USER_LIMIT,
+	/** The song has already been picked 3 times today */
+	SONG_LIMIT,
+	/** The user does not have enough free time left for the song */
+	TIME_CAP
+}
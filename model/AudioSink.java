@@ -0,0 +1,47 @@
+package model;
+
+/**
+ * This interface is where the jukebox sends the songs it plays.
+ * The JavaFX media player is one sink, a simulated sink that only keeps
+ * time is another, so the rest of the jukebox runs the same with or
+ * without sound.
+ *
+ * A sink plays one song at a time. When the song is over it calls the
+ * code given to play, exactly once, and must not hold any lock of its
+ * own while doing so. While a song plays, the sink is told which song
+ * is likely to come next, so it can get that one ready.
+ *
+ * @author David Wang
+ */
+public interface AudioSink {
+
+	/**
+	 * Starts playing a song
+	 *
+	 * @param song the song to play
+	 * @param onFinished the code to run once the song is over
+	 */
+	void play(Song song, Runnable onFinished);
+
+	/**
+	 * Tells the sink which song is likely to be played next, so it can
+	 * load it while the current one plays. It is only a hint: the next
+	 * call to play may be for another song. Sinks that need no time to
+	 * start a song can ignore it.
+	 *
+	 * @param next the song after the one playing now
+	 */
+	default void prepare(Song next) {
+	}
+
+	/**
+	 * Get how far the current song is
+	 * @return the part of the song that has played, from 0 to 1, or 0 if nothing is playing
+	 */
+	double getProgress();
+
+	/**
+	 * Stops the current song and frees everything the sink uses
+	 */
+	void close();
+}
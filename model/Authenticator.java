@@ -0,0 +1,109 @@
+package model;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class checks user names and passwords on a small pool of its own.
+ * Checking a hashed password takes tens of milliseconds on purpose, so it
+ * must not run on the JavaFX thread. The pool has a fixed number of threads
+ * with a slightly lower priority than the rest of the jukebox, and a bounded
+ * line of waiting checks. A burst of log ins therefore queues up here instead
+ * of freezing the window or slowing down the songs, and once the line is full
+ * further log ins are turned away until it drains.
+ *
+ * @author David Wang
+ */
+public class Authenticator {
+	/** How many log ins may wait for a thread before more are turned away */
+	public final static int DEFAULT_MAX_WAITING = 256;
+
+	// checked against when the user name does not exist, so that takes as long as a wrong password
+	private final static String unknownUser = PasswordHasher.hash("unknown user");
+
+	private final JukeboxAccountCollection accountCollection;
+	private final ThreadPoolExecutor verifiers;
+
+	/**
+	 * Constructor of the class, uses half the processors and the default line length
+	 * @param newCollection the collection of jukebox accounts
+	 */
+	public Authenticator(JukeboxAccountCollection newCollection) {
+		this(newCollection, Math.max(1, Runtime.getRuntime().availableProcessors() / 2), DEFAULT_MAX_WAITING);
+	}
+
+	/**
+	 * Constructor of the class
+	 * @param newCollection the collection of jukebox accounts
+	 * @param threads the number of passwords checked at the same time
+	 * @param maxWaiting how many log ins may wait for a thread
+	 */
+	public Authenticator(JukeboxAccountCollection newCollection, int threads, int maxWaiting) {
+		accountCollection = newCollection;
+		AtomicInteger count = new AtomicInteger();
+		verifiers = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(maxWaiting), runnable -> {
+					Thread thread = new Thread(runnable, "Jukebox password check " + count.incrementAndGet());
+					thread.setDaemon(true);
+					thread.setPriority(Thread.NORM_PRIORITY - 1);
+					return thread;
+				});
+		// the threads go away when nobody logs in for a while
+		verifiers.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Checks a user name and password on the pool. A password stored in
+	 * plain text, or with a lower cost than new hashes get, is hashed again
+	 * once it checks out.
+	 *
+	 * @param username the username to log in
+	 * @param password the password of the user to log in
+	 * @return a future with the account, or null if the name or password is wrong.
+	 *         It fails with a RejectedExecutionException if too many log ins are waiting.
+	 */
+	public CompletableFuture<Account> verify(String username, String password) {
+		try {
+			return CompletableFuture.supplyAsync(() -> check(username, password), verifiers);
+		} catch (RejectedExecutionException e) {
+			JukeboxMetrics.get().countLogInTurnedAway();
+			CompletableFuture<Account> busy = new CompletableFuture<Account>();
+			busy.completeExceptionally(e);
+			return busy;
+		}
+	}
+
+	/**
+	 * Checks a user name and password on the calling thread
+	 *
+	 * @param username the username to log in
+	 * @param password the password of the user to log in
+	 * @return the account, or null if the name or password is wrong
+	 */
+	public Account check(String username, String password) {
+		Account user = username == null ? null : accountCollection.getAccount(username);
+		if (user == null) {
+			PasswordHasher.verify(unknownUser, password);
+			JukeboxMetrics.get().countLogIn(false);
+			return null;
+		}
+		if (!user.checkPassword(password)) {
+			JukeboxMetrics.get().countLogIn(false);
+			return null;
+		}
+		accountCollection.rehashIfNeeded(user, password);
+		JukeboxMetrics.get().countLogIn(true);
+		return user;
+	}
+
+	/**
+	 * Stops the pool. Checks already waiting still run.
+	 */
+	public void close() {
+		verifiers.shutdown();
+	}
+}
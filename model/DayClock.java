@@ -0,0 +1,121 @@
+package model;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Date;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * This class keeps the number of the current day for the whole jukebox.
+ * A single timer moves it forward at midnight, so the daily counters in
+ * Song and Account only have to compare two numbers to know if they are
+ * out of date, instead of asking the system clock every time.
+ *
+ * Simulations can take the clock over with setToday and give it back
+ * with useSystemClock. The time of day keeps following the system clock,
+ * so a simulated day still has a morning and an evening.
+ *
+ * @author David Wang
+ */
+public class DayClock {
+	private final static ZoneId zone = ZoneId.systemDefault();
+	private static volatile long today = LocalDate.now(zone).toEpochDay();
+	// the number of days the clock was set away from the system clock
+	private static volatile long shift;
+	private static Timer midnightTimer;
+
+	static {
+		useSystemClock();
+	}
+
+	/*
+	 * No instances, the clock is shared by the whole program
+	 */
+	private DayClock() {
+	}
+
+	/**
+	 * Get the current day
+	 * @return the number of days since 1970-01-01
+	 */
+	public static long today() {
+		return today;
+	}
+
+	/**
+	 * Get the current time. It is the system time, moved by as many days
+	 * as the clock was set away from the system clock, so it always falls
+	 * on the current day.
+	 * @return the number of seconds since 1970
+	 */
+	public static long now() {
+		return System.currentTimeMillis() / 1000 + shift * 86400;
+	}
+
+	/**
+	 * Get the day a time falls on where the jukebox is
+	 * @param epochSecond the time in seconds since 1970
+	 * @return the number of days since 1970-01-01
+	 */
+	public static long dayOf(long epochSecond) {
+		long local = epochSecond + zone.getRules().getOffset(Instant.ofEpochSecond(epochSecond)).getTotalSeconds();
+		return Math.floorDiv(local, 86400L);
+	}
+
+	/**
+	 * Stops following the system clock and sets the current day by hand.
+	 * The daily counters reset the next time they are used.
+	 *
+	 * @param epochDay the number of days since 1970-01-01
+	 */
+	public static synchronized void setToday(long epochDay) {
+		if (midnightTimer != null) {
+			midnightTimer.cancel();
+			midnightTimer = null;
+		}
+		today = epochDay;
+		shift = epochDay - LocalDate.now(zone).toEpochDay();
+	}
+
+	/**
+	 * Goes back to following the system clock, moving to the next day at midnight
+	 */
+	public static synchronized void useSystemClock() {
+		if (midnightTimer != null) {
+			return;
+		}
+		midnightTimer = new Timer("Jukebox day clock", true);
+		today = LocalDate.now(zone).toEpochDay();
+		shift = 0;
+		scheduleMidnight();
+	}
+
+	/*
+	 * Helper method
+	 * Schedules the next day change for the coming midnight
+	 */
+	private static void scheduleMidnight() {
+		LocalDateTime midnight = LocalDate.now(zone).plusDays(1).atStartOfDay();
+		Date when = Date.from(midnight.atZone(zone).toInstant());
+		midnightTimer.schedule(new Midnight(), when);
+	}
+
+	/*
+	 * Moves the clock to the new day and waits for the next midnight
+	 */
+	private static class Midnight extends TimerTask {
+		@Override
+		public void run() {
+			synchronized (DayClock.class) {
+				if (midnightTimer == null) {
+					return;
+				}
+				today = Math.max(today, LocalDate.now(zone).toEpochDay());
+				scheduleMidnight();
+			}
+		}
+	}
+}
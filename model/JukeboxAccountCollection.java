@@ -1,13 +1,18 @@
 package model;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * This class keeps a collection of accounts and
@@ -18,8 +23,9 @@ import java.util.List;
  */
 
 public class JukeboxAccountCollection {
-	private HashMap<String, Account> collectionAccounts;
+	private ConcurrentHashMap<String, Account> collectionAccounts;
 	private List<String> admins;
+	private WriteAheadLog journal;
 	private final static String userList = "ListOfUsers";
 	
 	/**
@@ -27,11 +33,11 @@ public class JukeboxAccountCollection {
 	 * @param persist let the class know if the current system is persistant
 	 */
 	public JukeboxAccountCollection(boolean persist) {
-		collectionAccounts = new HashMap<>();
+		collectionAccounts = new ConcurrentHashMap<>();
 		admins = new ArrayList<String>();
 		admins.add("Merlin");
 		if (persist) {
-			readPersistentData();
+			readPersistentData(userList);
 		}
 		else {
 			this.populateList();
@@ -57,10 +63,26 @@ public class JukeboxAccountCollection {
 	 * @param password the password of the new account
 	 * 
 	 * @return true if account succesfully created, false if not
+	 * @throws IllegalArgumentException if the account is too big for the write ahead log
 	 */
 	public boolean addAccount(String username, String password) {
+		if (collectionAccounts.containsKey(username)) {
+			return false;
+		}
+		// hashing the password is slow on purpose, so it is done before taking the lock
+		return add(new Account(username, password));
+	}
+	
+	/*
+	 * Helper method
+	 * Adds an account unless the name is taken. Only the password hash is logged.
+	 */
+	private synchronized boolean add(Account newAccount) {
+		String username = newAccount.getAccountName();
 		if (!collectionAccounts.containsKey(username)) {
-			Account newAccount = new Account(username, password);
+			// logged first, so an account too big for the log is not added either
+			log(new WriteAheadLog.Record(WriteAheadLog.Type.ADD_ACCOUNT, username,
+					newAccount.getStoredPassword(), 0, 0));
 			collectionAccounts.put(username, newAccount);
 			return true;
 		}
@@ -68,15 +90,40 @@ public class JukeboxAccountCollection {
 		return false;
 	}
 	
+	/**
+	 * Hashes the password of an account again if it is stored in plain text,
+	 * as older jukeboxes saved it, or with a lower cost than new hashes get.
+	 * Call it only once the password was checked.
+	 * 
+	 * @param user the account that just logged in
+	 * @param password the password it logged in with
+	 * @return true if the stored password was replaced, false if not
+	 */
+	public boolean rehashIfNeeded(Account user, String password) {
+		String stored = user.getStoredPassword();
+		if (!PasswordHasher.needsRehash(stored)) {
+			return false;
+		}
+		String hash = PasswordHasher.hash(password);
+		synchronized (this) {
+			if (collectionAccounts.get(user.getAccountName()) != user || !user.replaceStoredPassword(stored, hash)) {
+				return false;
+			}
+			log(new WriteAheadLog.Record(WriteAheadLog.Type.SET_PASSWORD, user.getAccountName(), hash, 0, 0));
+			return true;
+		}
+	}
+	
 	/**
 	 * This method removes an account
 	 * 
 	 * @param username the username of the account to be removed
 	 * @return true if able to remove, false if not
 	 */
-	public boolean removeAccount(String username) {
+	public synchronized boolean removeAccount(String username) {
 		if (collectionAccounts.containsKey(username)) {
 			collectionAccounts.remove(username);
+			log(new WriteAheadLog.Record(WriteAheadLog.Type.REMOVE_ACCOUNT, username, null, 0, 0));
 			return true;
 		}
 		
@@ -120,16 +167,71 @@ public class JukeboxAccountCollection {
 		return admins.contains(user.getAccountName());
 	}
 	
+	/**
+	 * Sets the log that every account change is written to.
+	 * Call it after replaying the log, so replayed changes are not logged again.
+	 * 
+	 * @param log the write ahead log, or null to stop logging
+	 */
+	public void setJournal(WriteAheadLog log) {
+		journal = log;
+	}
+	
+	/**
+	 * Applies a change read back from the write ahead log.
+	 * Adding an account that exists or removing one that does not is ignored,
+	 * so a change the saved accounts already contain does no harm.
+	 * 
+	 * @param record an ADD_ACCOUNT, REMOVE_ACCOUNT, SET_PASSWORD or PLAY record
+	 */
+	public void replay(WriteAheadLog.Record record) {
+		switch (record.getType()) {
+		case ADD_ACCOUNT:
+			// the log holds the hash, or the plain text password from an older jukebox
+			add(Account.restore(record.getName(), record.getOther()));
+			break;
+		case SET_PASSWORD:
+			Account changed = getAccount(record.getName());
+			if (changed != null) {
+				changed.restoreStoredPassword(record.getOther());
+			}
+			break;
+		case REMOVE_ACCOUNT:
+			removeAccount(record.getName());
+			break;
+		case PLAY:
+			Account user = getAccount(record.getName());
+			if (user != null) {
+				user.restorePlaysState(record.getNumber());
+			}
+			break;
+		default:
+			break;
+		}
+	}
+	
 	/*
-	 * This method will read the data from previous programs
+	 * Writes a change to the log, if there is one
+	 */
+	private void log(WriteAheadLog.Record record) {
+		if (journal != null) {
+			journal.append(record);
+		}
+	}
+	
+	/**
+	 * This method will read the data from previous programs.
+	 * The accounts in the file replace the ones in the collection.
+	 * 
+	 * @param fileName the file the accounts were written to
 	 */
 	@SuppressWarnings("unchecked")
-	private void readPersistentData() {
+	public void readPersistentData(String fileName) {
 		try {
-		      FileInputStream fileOutput = new FileInputStream(userList);
+		      FileInputStream fileOutput = new FileInputStream(fileName);
 		      ObjectInputStream in = new ObjectInputStream(fileOutput);
 		      try {
-				collectionAccounts = (HashMap<String, Account>) in.readObject();
+				collectionAccounts = new ConcurrentHashMap<>((Map<String, Account>) in.readObject());
 				in.close();
 			} catch (ClassNotFoundException e) {
 				e.printStackTrace();
@@ -142,17 +244,54 @@ public class JukeboxAccountCollection {
 	}
 	
 	/**
-	 * This method will write data
+	 * This method will write data.
+	 * The file is written next to the old one and then moved over it,
+	 * so a crash while writing never leaves a half written file behind.
 	 */
 	public void writePersistentData() {
+		writePersistentData(userList);
+	}
+	
+	/**
+	 * This method will write the data to the given file
+	 * 
+	 * @param fileName the file to write the accounts to
+	 */
+	public void writePersistentData(String fileName) {
+		try {
+			writeFile(fileName);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/*
+	 * This method works like writePersistentData but throws when the file
+	 * cannot be written, so the log is only cut back once it was saved
+	 */
+	void writeFile() throws IOException {
+		writeFile(userList);
+	}
+	
+	/*
+	 * Helper method
+	 * Writes the accounts to the given file, throwing if it cannot be written
+	 */
+	private void writeFile(String fileName) throws IOException {
+		long start = System.nanoTime();
 		try {
-		      FileOutputStream fileOutput = new FileOutputStream(userList);
+		      File temp = new File(fileName + ".tmp");
+		      FileOutputStream fileOutput = new FileOutputStream(temp);
 		      ObjectOutputStream out = new ObjectOutputStream(fileOutput);
-		      out.writeObject(collectionAccounts);
+		      out.writeObject(new HashMap<String, Account>(collectionAccounts));
+		      out.flush();
+		      fileOutput.getFD().sync();
 		      out.close();
+		      Files.move(temp.toPath(), new File(fileName).toPath(), StandardCopyOption.REPLACE_EXISTING,
+		    		  StandardCopyOption.ATOMIC_MOVE);
 		    
-		    } catch (IOException e) {
-		      e.printStackTrace();
+		    } finally {
+		      JukeboxMetrics.get().getUsersWrite().record(System.nanoTime() - start);
 		    }
 	}
 }
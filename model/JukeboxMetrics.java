@@ -0,0 +1,426 @@
+package model;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * This class counts what the jukebox does, so it can be watched while it runs.
+ *
+ * There is one set of metrics for the whole program, see get(). Recording
+ * never takes a lock and never allocates: counters are LongAdders and every
+ * time is counted in one of a fixed set of buckets, each twice as wide as the
+ * one before, in an AtomicLongArray. The metrics can be read over JMX, as the
+ * MBean jukebox:type=Metrics, or as text with dump().
+ *
+ * @author David Wang
+ */
+public class JukeboxMetrics implements JukeboxMetricsMBean {
+	/** The name the metrics are registered under in JMX */
+	public final static String OBJECT_NAME = "jukebox:type=Metrics";
+
+	private final static JukeboxMetrics metrics = new JukeboxMetrics();
+
+	// one counter per Admission, by ordinal
+	private final LongAdder[] requests;
+	private final LongAdder logInsSucceeded;
+	private final LongAdder logInsFailed;
+	private final LongAdder logInsTurnedAway;
+	private final Histogram queueWait;
+	private final Histogram songGap;
+	private final Histogram songStart;
+	private final Histogram songsWrite;
+	private final Histogram usersWrite;
+	private final Histogram logFlush;
+	// the queues of every zone that is open
+	private final List<PlayQueue> queues;
+	private volatile LruCache<?, ?> mediaCache;
+
+	/*
+	 * No other instances, the metrics are shared by the whole program
+	 */
+	private JukeboxMetrics() {
+		requests = new LongAdder[Admission.values().length];
+		for (int i = 0; i < requests.length; i++) {
+			requests[i] = new LongAdder();
+		}
+		logInsSucceeded = new LongAdder();
+		logInsFailed = new LongAdder();
+		logInsTurnedAway = new LongAdder();
+		queues = new CopyOnWriteArrayList<PlayQueue>();
+		queueWait = new Histogram("jukebox_queue_wait_seconds", "Time from a song being queued to it starting");
+		songGap = new Histogram("jukebox_song_gap_seconds", "Silence between two songs that were waiting back to back");
+		songStart = new Histogram("jukebox_song_start_seconds", "Time from the sink being asked to play a song to the sound starting");
+		songsWrite = new Histogram("jukebox_songs_write_seconds", "Time to save the song catalog and queue");
+		usersWrite = new Histogram("jukebox_users_write_seconds", "Time to save the accounts");
+		logFlush = new Histogram("jukebox_log_flush_seconds", "Time to write and force a batch of the log");
+	}
+
+	/**
+	 * Get the metrics of the jukebox
+	 * @return the metrics
+	 */
+	public static JukeboxMetrics get() {
+		return metrics;
+	}
+
+	/**
+	 * Registers the metrics with the platform MBean server, once
+	 */
+	public static synchronized void register() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			if (!server.isRegistered(name)) {
+				server.registerMBean(metrics, name);
+			}
+		} catch (JMException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Counts the answer given to a song request. A batch of songs is one request.
+	 * @param outcome ACCEPTED or the reason the song was turned away
+	 */
+	public void countRequest(Admission outcome) {
+		requests[outcome.ordinal()].increment();
+	}
+
+	/**
+	 * Counts a checked log in
+	 * @param succeeded true if the name and password were right
+	 */
+	public void countLogIn(boolean succeeded) {
+		(succeeded ? logInsSucceeded : logInsFailed).increment();
+	}
+
+	/**
+	 * Counts a log in that was turned away before it was checked
+	 */
+	public void countLogInTurnedAway() {
+		logInsTurnedAway.increment();
+	}
+
+	/**
+	 * Adds a queue to the ones whose lengths add up to the queue depth
+	 * @param playQueue the queue of a zone
+	 */
+	public void watchQueue(PlayQueue playQueue) {
+		queues.add(playQueue);
+	}
+
+	/**
+	 * Stops counting a queue in the queue depth, once its zone is closed
+	 * @param playQueue the queue of a zone
+	 */
+	public void unwatchQueue(PlayQueue playQueue) {
+		queues.remove(playQueue);
+	}
+
+	/**
+	 * Sets the cache whose hits and misses are shown for the media of songs
+	 * @param cache the cache of the media player
+	 */
+	public void watchMediaCache(LruCache<?, ?> cache) {
+		mediaCache = cache;
+	}
+
+	/**
+	 * Get the time from a song being queued to it starting
+	 * @return the histogram
+	 */
+	public Histogram getQueueWait() {
+		return queueWait;
+	}
+
+	/**
+	 * Get the silence between two songs that were waiting back to back
+	 * @return the histogram
+	 */
+	public Histogram getSongGap() {
+		return songGap;
+	}
+
+	/**
+	 * Get the time from the sink being asked to play a song to the sound starting.
+	 * Only sinks that can tell when the sound starts record it.
+	 * @return the histogram
+	 */
+	public Histogram getSongStart() {
+		return songStart;
+	}
+
+	/**
+	 * Get the time to save the song catalog and queue
+	 * @return the histogram
+	 */
+	public Histogram getSongsWrite() {
+		return songsWrite;
+	}
+
+	/**
+	 * Get the time to save the accounts
+	 * @return the histogram
+	 */
+	public Histogram getUsersWrite() {
+		return usersWrite;
+	}
+
+	/**
+	 * Get the time to write and force a batch of the log
+	 * @return the histogram
+	 */
+	public Histogram getLogFlush() {
+		return logFlush;
+	}
+
+	/**
+	 * Get the number of requests that got an answer
+	 * @param outcome ACCEPTED or the reason the song was turned away
+	 * @return the number of requests
+	 */
+	public long getRequests(Admission outcome) {
+		return requests[outcome.ordinal()].sum();
+	}
+
+	@Override
+	public int getQueueDepth() {
+		int depth = 0;
+		for (PlayQueue watched : queues) {
+			depth += watched.size();
+		}
+		return depth;
+	}
+
+	@Override
+	public long getRequestsAccepted() {
+		return getRequests(Admission.ACCEPTED);
+	}
+
+	@Override
+	public long getRequestsUnknownSong() {
+		return getRequests(Admission.UNKNOWN_SONG);
+	}
+
+	@Override
+	public long getRequestsUserLimit() {
+		return getRequests(Admission.USER_LIMIT);
+	}
+
+	@Override
+	public long getRequestsSongLimit() {
+		return getRequests(Admission.SONG_LIMIT);
+	}
+
+	@Override
+	public long getRequestsTimeCap() {
+		return getRequests(Admission.TIME_CAP);
+	}
+
+	@Override
+	public long getLogInsSucceeded() {
+		return logInsSucceeded.sum();
+	}
+
+	@Override
+	public long getLogInsFailed() {
+		return logInsFailed.sum();
+	}
+
+	@Override
+	public long getLogInsTurnedAway() {
+		return logInsTurnedAway.sum();
+	}
+
+	@Override
+	public long getMediaCacheHits() {
+		LruCache<?, ?> watched = mediaCache;
+		return watched == null ? 0 : watched.getHits();
+	}
+
+	@Override
+	public long getMediaCacheMisses() {
+		LruCache<?, ?> watched = mediaCache;
+		return watched == null ? 0 : watched.getMisses();
+	}
+
+	@Override
+	public double getQueueWaitMedianMillis() {
+		return queueWait.getPercentileMillis(50);
+	}
+
+	@Override
+	public double getQueueWait99Millis() {
+		return queueWait.getPercentileMillis(99);
+	}
+
+	@Override
+	public double getSongGapMedianMillis() {
+		return songGap.getPercentileMillis(50);
+	}
+
+	@Override
+	public double getSongGap99Millis() {
+		return songGap.getPercentileMillis(99);
+	}
+
+	@Override
+	public double getSongStart99Millis() {
+		return songStart.getPercentileMillis(99);
+	}
+
+	@Override
+	public double getSongsWrite99Millis() {
+		return songsWrite.getPercentileMillis(99);
+	}
+
+	@Override
+	public double getUsersWrite99Millis() {
+		return usersWrite.getPercentileMillis(99);
+	}
+
+	@Override
+	public double getLogFlush99Millis() {
+		return logFlush.getPercentileMillis(99);
+	}
+
+	@Override
+	public String getDump() {
+		return dump();
+	}
+
+	/**
+	 * Writes every metric as text, one "name{labels} value" line per number
+	 * with # HELP and # TYPE lines, the format Prometheus reads
+	 *
+	 * @return the metrics as text
+	 */
+	public String dump() {
+		StringBuilder text = new StringBuilder();
+		text.append("# HELP jukebox_queue_depth Songs waiting in the queues of every zone\n");
+		text.append("# TYPE jukebox_queue_depth gauge\n");
+		text.append("jukebox_queue_depth ").append(getQueueDepth()).append('\n');
+		text.append("# HELP jukebox_requests_total Song requests by answer\n");
+		text.append("# TYPE jukebox_requests_total counter\n");
+		for (Admission outcome : Admission.values()) {
+			text.append("jukebox_requests_total{outcome=\"").append(outcome.name().toLowerCase())
+					.append("\"} ").append(getRequests(outcome)).append('\n');
+		}
+		text.append("# HELP jukebox_log_ins_total Log ins by result\n");
+		text.append("# TYPE jukebox_log_ins_total counter\n");
+		text.append("jukebox_log_ins_total{result=\"succeeded\"} ").append(getLogInsSucceeded()).append('\n');
+		text.append("jukebox_log_ins_total{result=\"failed\"} ").append(getLogInsFailed()).append('\n');
+		text.append("jukebox_log_ins_total{result=\"turned_away\"} ").append(getLogInsTurnedAway()).append('\n');
+		text.append("# HELP jukebox_media_cache_total Songs started with their media kept or made again\n");
+		text.append("# TYPE jukebox_media_cache_total counter\n");
+		text.append("jukebox_media_cache_total{result=\"hit\"} ").append(getMediaCacheHits()).append('\n');
+		text.append("jukebox_media_cache_total{result=\"miss\"} ").append(getMediaCacheMisses()).append('\n');
+		queueWait.dump(text);
+		songGap.dump(text);
+		songStart.dump(text);
+		songsWrite.dump(text);
+		usersWrite.dump(text);
+		logFlush.dump(text);
+		return text.toString();
+	}
+
+	/**
+	 * This class counts times in buckets. Bucket i holds the times below
+	 * 2^i microseconds that did not fit in bucket i - 1, the last bucket
+	 * holds everything longer, about 36 minutes and up.
+	 */
+	public static class Histogram {
+		private final static int BUCKETS = 32;
+
+		private final String name;
+		private final String help;
+		private final AtomicLongArray buckets;
+		private final LongAdder count;
+		private final LongAdder totalNanos;
+
+		private Histogram(String newName, String newHelp) {
+			name = newName;
+			help = newHelp;
+			buckets = new AtomicLongArray(BUCKETS);
+			count = new LongAdder();
+			totalNanos = new LongAdder();
+		}
+
+		/**
+		 * Counts one time
+		 * @param nanos the time in nanoseconds
+		 */
+		public void record(long nanos) {
+			long micros = Math.max(0, nanos / 1000);
+			int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+			buckets.incrementAndGet(bucket);
+			count.increment();
+			totalNanos.add(Math.max(0, nanos));
+		}
+
+		/**
+		 * Get the number of times counted
+		 * @return the number of times
+		 */
+		public long getCount() {
+			return count.sum();
+		}
+
+		/**
+		 * Get a percentile of the times counted, as the upper end of its bucket
+		 * @param percentile from 0 to 100
+		 * @return the time in milliseconds, 0 if nothing was counted
+		 */
+		public double getPercentileMillis(double percentile) {
+			long[] counts = new long[BUCKETS];
+			long total = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				counts[i] = buckets.get(i);
+				total += counts[i];
+			}
+			if (total == 0) {
+				return 0;
+			}
+			long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+			long seen = 0;
+			for (int i = 0; i < BUCKETS - 1; i++) {
+				seen += counts[i];
+				if (seen >= rank) {
+					return upperMicros(i) / 1000.0;
+				}
+			}
+			return Double.POSITIVE_INFINITY;
+		}
+
+		/*
+		 * Helper method
+		 * Writes the histogram with cumulative buckets, in seconds
+		 */
+		private void dump(StringBuilder text) {
+			text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+			text.append("# TYPE ").append(name).append(" histogram\n");
+			long seen = 0;
+			for (int i = 0; i < BUCKETS - 1; i++) {
+				seen += buckets.get(i);
+				text.append(name).append("_bucket{le=\"").append(upperMicros(i) / 1e6).append("\"} ")
+						.append(seen).append('\n');
+			}
+			seen += buckets.get(BUCKETS - 1);
+			text.append(name).append("_bucket{le=\"+Inf\"} ").append(seen).append('\n');
+			text.append(name).append("_sum ").append(totalNanos.sum() / (double) TimeUnit.SECONDS.toNanos(1)).append('\n');
+			text.append(name).append("_count ").append(seen).append('\n');
+		}
+
+		private static long upperMicros(int bucket) {
+			return 1L << bucket;
+		}
+	}
+}
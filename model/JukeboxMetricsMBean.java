@@ -0,0 +1,130 @@
+package model;
+
+/**
+ * This interface is what JMX shows of the jukebox's metrics, see JukeboxMetrics.
+ * Times are in milliseconds and are the upper end of the bucket they fall in.
+ *
+ * @author David Wang
+ */
+public interface JukeboxMetricsMBean {
+
+	/**
+	 * Get the number of songs waiting in the queues of every zone
+	 * @return the number of songs waiting in the queues of every zone
+	 */
+	int getQueueDepth();
+
+	/**
+	 * Get the number of song requests admitted
+	 * @return the number of song requests admitted
+	 */
+	long getRequestsAccepted();
+
+	/**
+	 * Get the number of requests for songs that are not in the catalog
+	 * @return the number of requests for songs that are not in the catalog
+	 */
+	long getRequestsUnknownSong();
+
+	/**
+	 * Get the number of requests turned away because the user had 3 songs today
+	 * @return the number of requests turned away because the user had 3 songs today
+	 */
+	long getRequestsUserLimit();
+
+	/**
+	 * Get the number of requests turned away because the song was picked 3 times today
+	 * @return the number of requests turned away because the song was picked 3 times today
+	 */
+	long getRequestsSongLimit();
+
+	/**
+	 * Get the number of requests turned away because the user was out of time
+	 * @return the number of requests turned away because the user was out of time
+	 */
+	long getRequestsTimeCap();
+
+	/**
+	 * Get the number of log ins with a right name and password
+	 * @return the number of log ins with a right name and password
+	 */
+	long getLogInsSucceeded();
+
+	/**
+	 * Get the number of log ins with a wrong name or password
+	 * @return the number of log ins with a wrong name or password
+	 */
+	long getLogInsFailed();
+
+	/**
+	 * Get the number of log ins turned away because too many were waiting
+	 * @return the number of log ins turned away because too many were waiting
+	 */
+	long getLogInsTurnedAway();
+
+	/**
+	 * Get the number of songs whose media was found in the cache
+	 * @return the number of songs whose media was found in the cache
+	 */
+	long getMediaCacheHits();
+
+	/**
+	 * Get the number of songs whose media had to be loaded
+	 * @return the number of songs whose media had to be loaded
+	 */
+	long getMediaCacheMisses();
+
+	/**
+	 * Get the median time from a song being queued to it starting
+	 * @return the median time from a song being queued to it starting
+	 */
+	double getQueueWaitMedianMillis();
+
+	/**
+	 * Get the 99th percentile of the time from a song being queued to it starting
+	 * @return the 99th percentile of the time from a song being queued to it starting
+	 */
+	double getQueueWait99Millis();
+
+	/**
+	 * Get the median silence between two songs that were waiting back to back
+	 * @return the median silence between two songs that were waiting back to back
+	 */
+	double getSongGapMedianMillis();
+
+	/**
+	 * Get the 99th percentile of the silence between two songs
+	 * @return the 99th percentile of the silence between two songs
+	 */
+	double getSongGap99Millis();
+
+	/**
+	 * Get the 99th percentile of the time from the sink being asked to play a song to the sound starting
+	 * @return the 99th percentile of the time from the sink being asked to play a song to the sound starting
+	 */
+	double getSongStart99Millis();
+
+	/**
+	 * Get the 99th percentile of the time to save the song catalog and queue
+	 * @return the 99th percentile of the time to save the song catalog and queue
+	 */
+	double getSongsWrite99Millis();
+
+	/**
+	 * Get the 99th percentile of the time to save the accounts
+	 * @return the 99th percentile of the time to save the accounts
+	 */
+	double getUsersWrite99Millis();
+
+	/**
+	 * Get the 99th percentile of the time to write and force a batch of the log
+	 * @return the 99th percentile of the time to write and force a batch of the log
+	 */
+	double getLogFlush99Millis();
+
+	/**
+	 * Get every metric in the text format, see JukeboxMetrics.dump
+	 * @return every metric in the text format, see JukeboxMetrics.dump
+	 */
+	String getDump();
+}
@@ -1,25 +1,66 @@
 package model;
 
+import java.lang.ref.WeakReference;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
 /**
- * This class will determine what is the current user that is logged in.
- * It can also log in an user, if no user is currently logged in.
- * It can also log out the current user.
+ * This class keeps track of the users that are logged in.
+ * Every log in opens a session with its own token, so any number of
+ * kiosks and remote clients can be logged in at the same time. A session
+ * is looked up by its token in a concurrent map, without any lock, and it
+ * ends when the user logs out or after it has not been used for a while.
+ * A background timer sweeps the sessions that ended that way.
+ * 
+ * The first methods keep working as before for a single kiosk:
+ * they log in and out one local user, who also gets a session.
  * 
  * Created by Alexis Tinoco (March 15, 2018 @ 3:30)
  * Modified: David Wang
  */
 
 public class LoginLogoutSystem {
-	private Account currentLoggedIn;
+	/** How long a session lasts without being used, unless told otherwise */
+	public final static long DEFAULT_IDLE_MILLIS = TimeUnit.MINUTES.toMillis(30);
+	
+	private final static SecureRandom random = new SecureRandom();
+	private final static Timer sweeper = new Timer("Jukebox session sweeper", true);
+	
+	private volatile String currentLoggedIn;
 	private JukeboxAccountCollection accountCollection;
+	private final Authenticator authenticator;
+	private final ConcurrentHashMap<String, Session> sessions;
+	private final long idleNanos;
+	private final TimerTask sweep;
 	
 	/**
 	 * Constructor of the class
 	 * @param newCollection the collection of jukebox accounts
 	 */
 	public LoginLogoutSystem(JukeboxAccountCollection newCollection){
+		this(newCollection, DEFAULT_IDLE_MILLIS);
+	}
+	
+	/**
+	 * Constructor of the class
+	 * @param newCollection the collection of jukebox accounts
+	 * @param idleMillis how long a session lasts without being used
+	 */
+	public LoginLogoutSystem(JukeboxAccountCollection newCollection, long idleMillis){
 		currentLoggedIn = null;
 		accountCollection = newCollection;
+		authenticator = new Authenticator(newCollection);
+		sessions = new ConcurrentHashMap<String, Session>();
+		idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMillis);
+		sweep = new Sweep(this);
+		long period = Math.max(1, idleMillis / 2);
+		sweeper.schedule(sweep, period, period);
 	}
 	
 	/**
@@ -28,9 +69,7 @@ public class LoginLogoutSystem {
 	 * @return true if someone is logged in, false if not
 	 */
 	public boolean isThereSomeoneLoggedIn() {
-		if(currentLoggedIn == null)
-			return false;
-		else return true;
+		return getAccount(currentLoggedIn) != null;
 	}
 	
 	/**
@@ -41,14 +80,14 @@ public class LoginLogoutSystem {
 	 * @return true if able to log in, false if not
 	 */
 	public boolean logIn(String username, String password) {
-		if(accountCollection.doesAccountExists(username)) {
-			if(accountCollection.getAccount(username).checkPassword(password)) {
-				currentLoggedIn = accountCollection.getAccount(username);
-				return true;
-			}
+		String token = openSession(username, password);
+		if (token == null) {
+			return false;
 		}
-		
-		return false;
+		String previous = currentLoggedIn;
+		currentLoggedIn = token;
+		closeSession(previous);
+		return true;
 	}
 	
 	/**
@@ -58,12 +97,9 @@ public class LoginLogoutSystem {
 	 * @return true if able to log out, false if not
 	 */
 	public boolean logOut() {
-		if (isThereSomeoneLoggedIn() == true) {
-			currentLoggedIn = null;
-			return true;
-		}
-		
-		return false;
+		String token = currentLoggedIn;
+		currentLoggedIn = null;
+		return closeSession(token);
 	}
 	
 	/**
@@ -72,11 +108,169 @@ public class LoginLogoutSystem {
 	 * @return the accounts name of user logged in, or empty string if nobody logged in
 	 */
 	public String getLoggedInUserAccount() {
-		if (isThereSomeoneLoggedIn() == true) {
-			return currentLoggedIn.getAccountName();
+		Account account = getAccount(currentLoggedIn);
+		if (account != null) {
+			return account.getAccountName();
 		}
 		else {
 			return "";
 		} 
 	}
+	
+	/**
+	 * This method logs in an user in a session of its own.
+	 * Checking the password is slow, so a window should use openSessionAsync.
+	 * 
+	 * @param username the username to log in
+	 * @param password the password of the user to log in
+	 * @return the token of the new session, or null if the user could not log in
+	 */
+	public String openSession(String username, String password) {
+		return newSession(authenticator.check(username, password));
+	}
+	
+	/**
+	 * This method logs in an user in a session of its own. The password is
+	 * checked on the password check pool, so the caller is never held up.
+	 * 
+	 * @param username the username to log in
+	 * @param password the password of the user to log in
+	 * @return a future with the token of the new session, or null if the user could not log in.
+	 *         It fails if too many log ins are waiting to be checked.
+	 */
+	public CompletableFuture<String> openSessionAsync(String username, String password) {
+		return authenticator.verify(username, password).thenApply(account -> newSession(account));
+	}
+	
+	/*
+	 * Helper method
+	 * Opens a session for an account whose password checked out
+	 */
+	private String newSession(Account account) {
+		if (account == null) {
+			return null;
+		}
+		while (true) {
+			String token = newToken();
+			if (sessions.putIfAbsent(token, new Session(account)) == null) {
+				return token;
+			}
+		}
+	}
+	
+	/**
+	 * Get the user of a session and count the session as used
+	 * 
+	 * @param token the token of the session
+	 * @return the account logged in with that token, or null if the session ended
+	 */
+	public Account getAccount(String token) {
+		if (token == null) {
+			return null;
+		}
+		Session session = sessions.get(token);
+		if (session == null) {
+			return null;
+		}
+		long now = System.nanoTime();
+		// a removed account ends its sessions too
+		if (now - session.lastUsed > idleNanos
+				|| accountCollection.getAccount(session.account.getAccountName()) != session.account) {
+			sessions.remove(token, session);
+			return null;
+		}
+		session.lastUsed = now;
+		return session.account;
+	}
+	
+	/**
+	 * This method logs out the user of a session
+	 * 
+	 * @param token the token of the session
+	 * @return true if the session was open, false if not
+	 */
+	public boolean closeSession(String token) {
+		if (token == null) {
+			return false;
+		}
+		return sessions.remove(token) != null;
+	}
+	
+	/**
+	 * Get the number of sessions that are open. Sessions that ran out of time
+	 * are counted until the next sweep.
+	 * 
+	 * @return the number of sessions
+	 */
+	public int getSessionCount() {
+		return sessions.size();
+	}
+	
+	/**
+	 * This method ends every session and stops sweeping them
+	 */
+	public void close() {
+		sweep.cancel();
+		authenticator.close();
+		sessions.clear();
+		currentLoggedIn = null;
+	}
+	
+	/*
+	 * Helper method
+	 * Removes every session that was not used for too long
+	 */
+	private void sweepIdleSessions() {
+		long now = System.nanoTime();
+		for (Map.Entry<String, Session> entry : sessions.entrySet()) {
+			if (now - entry.getValue().lastUsed > idleNanos) {
+				sessions.remove(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+	
+	/*
+	 * Helper method
+	 * Makes a random token that cannot be guessed
+	 */
+	private static String newToken() {
+		byte[] bytes = new byte[16];
+		random.nextBytes(bytes);
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+	}
+	
+	/*
+	 * A user that is logged in, and the last time the session was used
+	 */
+	private static class Session {
+		private final Account account;
+		private volatile long lastUsed;
+		
+		Session(Account newAccount) {
+			account = newAccount;
+			lastUsed = System.nanoTime();
+		}
+	}
+	
+	/*
+	 * The sweep only holds on to the system weakly, so a system that is no
+	 * longer used can be collected and its sweep stops by itself
+	 */
+	private static class Sweep extends TimerTask {
+		private final WeakReference<LoginLogoutSystem> system;
+		
+		Sweep(LoginLogoutSystem newSystem) {
+			system = new WeakReference<LoginLogoutSystem>(newSystem);
+		}
+		
+		@Override
+		public void run() {
+			LoginLogoutSystem current = system.get();
+			if (current == null) {
+				cancel();
+				return;
+			}
+			current.sweepIdleSessions();
+		}
+	}
 }
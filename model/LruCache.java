@@ -0,0 +1,119 @@
+package model;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * This class keeps up to a fixed number of values, dropping the one used
+ * least recently when a new one needs the room. It counts how often a value
+ * was found and how often it had to be made, so its size can be tuned.
+ * It is used to keep the media of songs that are played again and again.
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the values
+ * @author David Wang
+ */
+public class LruCache<K, V> {
+	private final int capacity;
+	private final LinkedHashMap<K, V> values;
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	/**
+	 * Constructor of the class
+	 * @param newCapacity the most values kept at once
+	 */
+	public LruCache(int newCapacity) {
+		if (newCapacity < 1) {
+			throw new IllegalArgumentException("capacity must be at least 1");
+		}
+		capacity = newCapacity;
+		// access order, so the first entry is always the least recently used
+		values = new LinkedHashMap<K, V>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+				if (size() > capacity) {
+					evictions++;
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Get the value for a key, making it if it is not kept.
+	 * The value is made while holding the cache's lock, so two threads
+	 * asking for the same key never make it twice.
+	 *
+	 * @param key the key of the value
+	 * @param make makes the value from the key when it is not kept
+	 * @return the kept or new value
+	 */
+	public synchronized V get(K key, Function<? super K, ? extends V> make) {
+		V value = values.get(key);
+		if (value != null) {
+			hits++;
+			return value;
+		}
+		misses++;
+		value = make.apply(key);
+		if (value != null) {
+			values.put(key, value);
+		}
+		return value;
+	}
+
+	/**
+	 * Removes the value for a key, if it is kept
+	 * @param key the key of the value
+	 * @return the value that was kept, or null if there was none
+	 */
+	public synchronized V remove(K key) {
+		return values.remove(key);
+	}
+
+	/**
+	 * Get the number of values kept
+	 * @return the number of values kept
+	 */
+	public synchronized int size() {
+		return values.size();
+	}
+
+	/**
+	 * Get the most values kept at once
+	 * @return the capacity of the cache
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Get the number of times a value was found
+	 * @return the number of hits
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * Get the number of times a value had to be made
+	 * @return the number of misses
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Get the number of values dropped to make room
+	 * @return the number of evictions
+	 */
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+}
@@ -0,0 +1,395 @@
+package model;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * This class reads the title, the artist and the exact length of an mp3 file
+ * from its headers, without decoding any audio.
+ *
+ * The title and artist come from the ID3v2 tag at the start of the file, or
+ * the ID3v1 tag at the end. The length comes from the Xing/Info or VBRI header
+ * that encoders put in the first frame, which holds the number of frames.
+ * When there is no such header every MPEG frame header is read and the
+ * samples in each frame are added up, which is exact for constant and
+ * variable bitrate files alike.
+ *
+ * @author David Wang
+ */
+public class Mp3Metadata {
+	// bitrates in kbit/s, by [MPEG1 or not][layer - 1][index]
+	private final static int[][][] BITRATES = {
+		{
+			{ 0, 32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352, 384, 416, 448 },
+			{ 0, 32, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 384 },
+			{ 0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320 }
+		},
+		{
+			{ 0, 32, 48, 56, 64, 80, 96, 112, 128, 144, 160, 176, 192, 224, 256 },
+			{ 0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160 },
+			{ 0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160 }
+		}
+	};
+	private final static int[] SAMPLE_RATES = { 44100, 48000, 32000 };
+
+	private final String title;
+	private final String artist;
+	private final long durationMillis;
+
+	/**
+	 * Constructor of the class
+	 * @param newTitle the title, empty if unknown
+	 * @param newArtist the artist, empty if unknown
+	 * @param newDurationMillis the length of the song in milliseconds
+	 */
+	public Mp3Metadata(String newTitle, String newArtist, long newDurationMillis) {
+		title = newTitle == null ? "" : newTitle;
+		artist = newArtist == null ? "" : newArtist;
+		durationMillis = newDurationMillis;
+	}
+
+	/**
+	 * Reads the headers of an mp3 file
+	 *
+	 * @param file the mp3 file
+	 * @return the title, artist and length of the file
+	 * @throws IOException if the file cannot be read or has no MPEG frames
+	 */
+	public static Mp3Metadata read(File file) throws IOException {
+		try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+			ByteBuffer data = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+			return new Parser(data).parse(file);
+		}
+	}
+
+	/**
+	 * Get the title from the tags
+	 * @return the title, or an empty string if the file has none
+	 */
+	public String getTitle() {
+		return title;
+	}
+
+	/**
+	 * Get the artist from the tags
+	 * @return the artist, or an empty string if the file has none
+	 */
+	public String getArtist() {
+		return artist;
+	}
+
+	/**
+	 * Get the length of the song
+	 * @return the length in milliseconds
+	 */
+	public long getDurationMillis() {
+		return durationMillis;
+	}
+
+	/**
+	 * Get the length of the song in whole seconds, as Song keeps it
+	 * @return the length rounded to the nearest second, at least 1
+	 */
+	public int getDurationSeconds() {
+		return (int) Math.max(1, (durationMillis + 500) / 1000);
+	}
+
+	/*
+	 * Reads one file. Only absolute reads are used, the buffer is never moved.
+	 */
+	private static class Parser {
+		private final ByteBuffer data;
+		private final int length;
+		private String title;
+		private String artist;
+
+		Parser(ByteBuffer newData) {
+			data = newData;
+			length = newData.limit();
+		}
+
+		Mp3Metadata parse(File file) throws IOException {
+			int audioStart = readId3v2();
+			int audioEnd = readId3v1();
+
+			int first = findFrame(audioStart, audioEnd);
+			if (first < 0) {
+				throw new IOException(file + " has no MPEG audio frames");
+			}
+			int header = data.getInt(first);
+			long samples = readEncoderHeader(first, header);
+			if (samples < 0) {
+				samples = countSamples(first, audioEnd);
+			}
+			long durationMillis = samples * 1000 / sampleRate(header);
+			return new Mp3Metadata(title, artist, durationMillis);
+		}
+
+		/*
+		 * Reads the ID3v2 tag, returns where the audio starts
+		 */
+		private int readId3v2() {
+			if (length < 10 || data.get(0) != 'I' || data.get(1) != 'D' || data.get(2) != '3') {
+				return 0;
+			}
+			int major = data.get(3);
+			int flags = data.get(5) & 0xFF;
+			int size = syncsafe(6);
+			int end = Math.min(length, 10 + size + ((flags & 0x10) != 0 ? 10 : 0));
+			// tags with unsynchronisation are rare, their frames are left alone
+			if ((flags & 0x80) == 0) {
+				readId3v2Frames(major, 10, Math.min(length, 10 + size));
+			}
+			return end;
+		}
+
+		private void readId3v2Frames(int major, int position, int end) {
+			int headerSize = major == 2 ? 6 : 10;
+			while (position + headerSize <= end && data.get(position) != 0) {
+				String id;
+				int size;
+				if (major == 2) {
+					id = ascii(position, 3);
+					size = ((data.get(position + 3) & 0xFF) << 16) | ((data.get(position + 4) & 0xFF) << 8)
+							| (data.get(position + 5) & 0xFF);
+				}
+				else {
+					id = ascii(position, 4);
+					size = major == 4 ? syncsafe(position + 4) : data.getInt(position + 4);
+				}
+				int body = position + headerSize;
+				if (size <= 0 || body + size > end) {
+					return;
+				}
+				if (title == null && (id.equals("TIT2") || id.equals("TT2"))) {
+					title = text(body, size);
+				}
+				else if (artist == null && (id.equals("TPE1") || id.equals("TP1"))) {
+					artist = text(body, size);
+				}
+				position = body + size;
+			}
+		}
+
+		/*
+		 * Reads the ID3v1 tag, if the ID3v2 tag did not have everything.
+		 * Returns where the audio ends.
+		 */
+		private int readId3v1() {
+			int tag = length - 128;
+			if (tag < 0 || data.get(tag) != 'T' || data.get(tag + 1) != 'A' || data.get(tag + 2) != 'G') {
+				return length;
+			}
+			if (title == null || title.isEmpty()) {
+				title = latin1(tag + 3, 30);
+			}
+			if (artist == null || artist.isEmpty()) {
+				artist = latin1(tag + 33, 30);
+			}
+			return tag;
+		}
+
+		/*
+		 * Finds the first frame header that is followed by another one,
+		 * so stray sync bits inside a tag or junk are not taken for audio
+		 */
+		private int findFrame(int position, int end) {
+			for (; position + 4 <= end; position++) {
+				if ((data.get(position) & 0xFF) != 0xFF || (data.get(position + 1) & 0xE0) != 0xE0) {
+					continue;
+				}
+				int header = data.getInt(position);
+				int size = frameSize(header);
+				if (size <= 0) {
+					continue;
+				}
+				int next = position + size;
+				if (next + 4 > end || sameStream(header, data.getInt(next))) {
+					return position;
+				}
+			}
+			return -1;
+		}
+
+		/*
+		 * Reads the Xing/Info or VBRI header in the first frame.
+		 * Returns the number of samples, or -1 if there is no such header.
+		 */
+		private long readEncoderHeader(int frame, int header) {
+			boolean mpeg1 = version(header) == 3;
+			boolean mono = ((header >>> 6) & 3) == 3;
+			int xing = frame + 4 + (mpeg1 ? (mono ? 17 : 32) : (mono ? 9 : 17));
+			String xingTag = xing + 8 <= length ? ascii(xing, 4) : "";
+			if (xingTag.equals("Xing") || xingTag.equals("Info")) {
+				int flags = data.getInt(xing + 4);
+				if ((flags & 1) == 0) {
+					return -1;
+				}
+				long samples = (data.getInt(xing + 8) & 0xFFFFFFFFL) * samplesPerFrame(header);
+				return samples - encoderGap(xing, flags);
+			}
+
+			int vbri = frame + 4 + 32;
+			if (vbri + 18 <= length && ascii(vbri, 4).equals("VBRI")) {
+				return (data.getInt(vbri + 14) & 0xFFFFFFFFL) * samplesPerFrame(header);
+			}
+			return -1;
+		}
+
+		/*
+		 * The LAME tag after the Xing header tells how many silent samples
+		 * the encoder added at the start and the end
+		 */
+		private long encoderGap(int xing, int flags) {
+			int lame = xing + 8;
+			if ((flags & 1) != 0) {
+				lame += 4;
+			}
+			if ((flags & 2) != 0) {
+				lame += 4;
+			}
+			if ((flags & 4) != 0) {
+				lame += 100;
+			}
+			if ((flags & 8) != 0) {
+				lame += 4;
+			}
+			if (lame + 24 > length || !ascii(lame, 4).equals("LAME")) {
+				return 0;
+			}
+			int gap = ((data.get(lame + 21) & 0xFF) << 16) | ((data.get(lame + 22) & 0xFF) << 8)
+					| (data.get(lame + 23) & 0xFF);
+			return (gap >>> 12) + (gap & 0xFFF);
+		}
+
+		/*
+		 * Walks every frame header and adds up the samples
+		 */
+		private long countSamples(int position, int end) {
+			long samples = 0;
+			while (position + 4 <= end) {
+				int header = data.getInt(position);
+				int size = frameSize(header);
+				if (size <= 0) {
+					// lost sync, look for the next frame
+					int next = findFrame(position + 1, end);
+					if (next < 0) {
+						break;
+					}
+					position = next;
+					continue;
+				}
+				if (position + size > end) {
+					break;
+				}
+				samples += samplesPerFrame(header);
+				position += size;
+			}
+			return samples;
+		}
+
+		private static int frameSize(int header) {
+			if ((header & 0xFFE00000) != 0xFFE00000) {
+				return -1;
+			}
+			int version = version(header);
+			int layer = layer(header);
+			int bitrateIndex = (header >>> 12) & 0xF;
+			int rateIndex = (header >>> 10) & 3;
+			if (version == 1 || layer == 0 || bitrateIndex == 0 || bitrateIndex == 15 || rateIndex == 3) {
+				return -1;
+			}
+			int bitrate = BITRATES[version == 3 ? 0 : 1][layer - 1][bitrateIndex] * 1000;
+			int sampleRate = sampleRate(header);
+			int padding = (header >>> 9) & 1;
+			if (layer == 1) {
+				return (12 * bitrate / sampleRate + padding) * 4;
+			}
+			return samplesPerFrame(header) / 8 * bitrate / sampleRate + padding;
+		}
+
+		private static boolean sameStream(int header, int next) {
+			// the sync, version, layer and sample rate never change within a file
+			return frameSize(next) > 0 && (header & 0xFFFE0C00) == (next & 0xFFFE0C00);
+		}
+
+		private static int samplesPerFrame(int header) {
+			int layer = layer(header);
+			if (layer == 1) {
+				return 384;
+			}
+			if (layer == 3 && version(header) != 3) {
+				return 576;
+			}
+			return 1152;
+		}
+
+		private static int sampleRate(int header) {
+			int rate = SAMPLE_RATES[(header >>> 10) & 3];
+			int version = version(header);
+			// MPEG2 halves the rate, MPEG2.5 quarters it
+			return version == 3 ? rate : version == 2 ? rate / 2 : rate / 4;
+		}
+
+		// 3 is MPEG1, 2 is MPEG2, 0 is MPEG2.5, 1 is reserved
+		private static int version(int header) {
+			return (header >>> 19) & 3;
+		}
+
+		// 1, 2 or 3, 0 is reserved
+		private static int layer(int header) {
+			return 4 - ((header >>> 17) & 3) & 3;
+		}
+
+		private int syncsafe(int position) {
+			return ((data.get(position) & 0x7F) << 21) | ((data.get(position + 1) & 0x7F) << 14)
+					| ((data.get(position + 2) & 0x7F) << 7) | (data.get(position + 3) & 0x7F);
+		}
+
+		private String ascii(int position, int count) {
+			return decode(position, count, StandardCharsets.US_ASCII);
+		}
+
+		private String latin1(int position, int count) {
+			return decode(position, count, StandardCharsets.ISO_8859_1).trim();
+		}
+
+		/*
+		 * Reads a text frame: an encoding byte followed by the text
+		 */
+		private String text(int position, int size) {
+			int encoding = data.get(position);
+			Charset charset;
+			switch (encoding) {
+			case 1:
+				charset = StandardCharsets.UTF_16;
+				break;
+			case 2:
+				charset = StandardCharsets.UTF_16BE;
+				break;
+			case 3:
+				charset = StandardCharsets.UTF_8;
+				break;
+			default:
+				charset = StandardCharsets.ISO_8859_1;
+				break;
+			}
+			return decode(position + 1, size - 1, charset).trim();
+		}
+
+		private String decode(int position, int count, Charset charset) {
+			byte[] bytes = new byte[count];
+			for (int i = 0; i < count; i++) {
+				bytes[i] = data.get(position + i);
+			}
+			String text = new String(bytes, charset);
+			int end = text.indexOf('\0');
+			return end < 0 ? text : text.substring(0, end);
+		}
+	}
+}
@@ -0,0 +1,147 @@
+package model;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * This class turns passwords into salted PBKDF2 hashes and checks
+ * passwords against them. A stored hash looks like
+ * <pre>
+ *   pbkdf2$iterations$salt$hash
+ * </pre>
+ * so the cost can be raised later and older hashes still check out.
+ * Anything else that is stored is a password saved in plain text by an
+ * older jukebox, which is still accepted until it is hashed at the next
+ * log in.
+ *
+ * @author David Wang
+ */
+public class PasswordHasher {
+	/** The number of PBKDF2 iterations for new hashes, unless set with the jukebox.passwordIterations property */
+	public final static int DEFAULT_ITERATIONS = 100000;
+
+	private final static String PREFIX = "pbkdf2$";
+	private final static String ALGORITHM = "PBKDF2WithHmacSHA256";
+	private final static int SALT_BYTES = 16;
+	private final static int HASH_BITS = 256;
+	private final static SecureRandom random = new SecureRandom();
+	private static volatile int iterations = Integer.getInteger("jukebox.passwordIterations", DEFAULT_ITERATIONS);
+
+	/*
+	 * No instances, every method is static
+	 */
+	private PasswordHasher() {
+	}
+
+	/**
+	 * Sets the cost of new hashes. Hashes made before keep their cost
+	 * until the user logs in again.
+	 *
+	 * @param newIterations the number of PBKDF2 iterations
+	 */
+	public static void setIterations(int newIterations) {
+		if (newIterations < 1) {
+			throw new IllegalArgumentException("iterations must be at least 1");
+		}
+		iterations = newIterations;
+	}
+
+	/**
+	 * Get the cost of new hashes
+	 * @return the number of PBKDF2 iterations
+	 */
+	public static int getIterations() {
+		return iterations;
+	}
+
+	/**
+	 * Hashes a password with a new random salt
+	 *
+	 * @param password the password
+	 * @return the hash to store
+	 */
+	public static String hash(String password) {
+		int cost = iterations;
+		byte[] salt = new byte[SALT_BYTES];
+		random.nextBytes(salt);
+		Base64.Encoder encoder = Base64.getEncoder().withoutPadding();
+		return PREFIX + cost + "$" + encoder.encodeToString(salt) + "$"
+				+ encoder.encodeToString(pbkdf2(password, salt, cost));
+	}
+
+	/**
+	 * Checks a password against what is stored. Takes the same time
+	 * however many characters match.
+	 *
+	 * @param stored a stored hash, or a password stored in plain text
+	 * @param password the password to check
+	 * @return true if the password matches, false if not
+	 */
+	public static boolean verify(String stored, String password) {
+		if (stored == null || password == null) {
+			return false;
+		}
+		if (!isHash(stored)) {
+			return MessageDigest.isEqual(stored.getBytes(StandardCharsets.UTF_8),
+					password.getBytes(StandardCharsets.UTF_8));
+		}
+		String[] parts = stored.split("\\$");
+		if (parts.length != 4) {
+			return false;
+		}
+		try {
+			int cost = Integer.parseInt(parts[1]);
+			byte[] salt = Base64.getDecoder().decode(parts[2]);
+			byte[] expected = Base64.getDecoder().decode(parts[3]);
+			return MessageDigest.isEqual(expected, pbkdf2(password, salt, cost));
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Checks if what is stored is a hash
+	 *
+	 * @param stored a stored hash or plain text password
+	 * @return true if it is a hash, false if it is plain text
+	 */
+	public static boolean isHash(String stored) {
+		return stored != null && stored.startsWith(PREFIX);
+	}
+
+	/**
+	 * Checks if what is stored should be hashed again, because it is plain
+	 * text or was hashed with a lower cost than new hashes get
+	 *
+	 * @param stored a stored hash or plain text password
+	 * @return true if it should be replaced at the next log in
+	 */
+	public static boolean needsRehash(String stored) {
+		if (!isHash(stored)) {
+			return true;
+		}
+		String[] parts = stored.split("\\$");
+		try {
+			return parts.length != 4 || Integer.parseInt(parts[1]) < iterations;
+		} catch (NumberFormatException e) {
+			return true;
+		}
+	}
+
+	private static byte[] pbkdf2(String password, byte[] salt, int cost) {
+		PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, cost, HASH_BITS);
+		try {
+			return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(ALGORITHM + " is not available", e);
+		} finally {
+			spec.clearPassword();
+		}
+	}
+}
@@ -0,0 +1,534 @@
+package model;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.SourceDataLine;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+/**
+ * This class is an audio sink that plays songs with javax.sound, without JavaFX.
+ * A decode thread reads the song's file as PCM samples into a ring buffer that
+ * is allocated once, and an output thread writes them from the ring buffer to
+ * the sound card. The position of a song is counted in sample frames, and a
+ * song ends when its last frame has been played, not when a timer says so.
+ *
+ * The sound can go to a SourceDataLine or, on machines without sound hardware
+ * and in tests, to any stream. Only the formats javax.sound can read are played,
+ * which are WAV, AIFF and AU unless a reader for MP3 is installed as a service
+ * provider. A song that cannot be played ends right away, so check with canPlay
+ * that the songs can be read before choosing this sink.
+ *
+ * @author David Wang
+ */
+public class PcmAudioSink implements AudioSink {
+	/** The size of the ring buffer in bytes, about a second and a half of CD sound */
+	public final static int BUFFER_SIZE = 256 * 1024;
+	// the most bytes moved at a time from the file and to the output
+	private final static int CHUNK = 8 * 1024;
+
+	private final Output output;
+	private final RingBuffer ring;
+	private final ExecutorService decoder;
+	private final ExecutorService writer;
+	// only used on the decode thread and the output thread
+	private final byte[] decodeChunk;
+	private final byte[] writeChunk;
+	private Playback current;
+	private boolean closed;
+
+	/**
+	 * Constructor of the class, the songs are played on the sound card
+	 */
+	public PcmAudioSink() {
+		this(lineOutput());
+	}
+
+	/**
+	 * Constructor of the class
+	 * @param newOutput where the samples are written
+	 */
+	public PcmAudioSink(Output newOutput) {
+		output = newOutput;
+		ring = new RingBuffer(BUFFER_SIZE);
+		decodeChunk = new byte[CHUNK];
+		writeChunk = new byte[CHUNK];
+		decoder = Executors.newSingleThreadExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "Jukebox PCM decoder");
+			thread.setDaemon(true);
+			return thread;
+		});
+		writer = Executors.newSingleThreadExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "Jukebox PCM output");
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MAX_PRIORITY);
+			return thread;
+		});
+	}
+
+	/**
+	 * Get an output that plays on the default sound card
+	 * @return the output
+	 */
+	public static Output lineOutput() {
+		return new LineOutput();
+	}
+
+	/**
+	 * Get an output that writes the raw samples to a stream, as fast as they are decoded
+	 * @param stream where the samples are written, or null to throw them away
+	 * @return the output
+	 */
+	public static Output streamOutput(OutputStream stream) {
+		return new StreamOutput(stream);
+	}
+
+	/**
+	 * Checks that javax.sound can read a file and turn it into samples.
+	 * MP3 files can only be read when a reader for them is installed.
+	 * @param path the path of the file
+	 * @return true if the file can be played by this sink
+	 */
+	public static boolean canPlay(String path) {
+		try (AudioInputStream in = openPcm(new File(path))) {
+			return true;
+		} catch (IOException | UnsupportedAudioFileException | IllegalArgumentException e) {
+			// IllegalArgumentException means there is no conversion to PCM
+			return false;
+		}
+	}
+
+	@Override
+	public void play(Song song, Runnable onFinished) {
+		Playback playback;
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			stopCurrent();
+			playback = new Playback(song, onFinished, ring.reset());
+			current = playback;
+		}
+		decoder.execute(() -> decode(playback));
+		writer.execute(() -> write(playback));
+	}
+
+	@Override
+	public synchronized double getProgress() {
+		if (current == null || current.totalFrames <= 0) {
+			return 0.0;
+		}
+		return Math.min(1.0, getFramePosition() / (double) current.totalFrames);
+	}
+
+	/**
+	 * Get how far the current song is, in frames that have been played
+	 * @return the number of frames of the song played, or 0 if nothing is playing
+	 */
+	public synchronized long getFramePosition() {
+		if (current == null || !current.started) {
+			return 0;
+		}
+		long played = output.getFramePosition() - current.startFrame;
+		return Math.max(0, Math.min(played, current.framesWritten));
+	}
+
+	/**
+	 * Get the length of the current song in frames. When the file does not
+	 * say, it is worked out from the duration of the song.
+	 *
+	 * @return the number of frames of the song, or 0 if nothing is playing or it is not known yet
+	 */
+	public synchronized long getFrameLength() {
+		return current == null ? 0 : Math.max(0, current.totalFrames);
+	}
+
+	@Override
+	public void close() {
+		synchronized (this) {
+			closed = true;
+			stopCurrent();
+		}
+		decoder.shutdownNow();
+		writer.shutdownNow();
+		output.close();
+	}
+
+	/*
+	 * Helper method
+	 * Stops the current song without telling SongPlayer, the ring buffer
+	 * turns away both of its threads from now on
+	 */
+	private void stopCurrent() {
+		if (current != null) {
+			current = null;
+			ring.reset();
+			output.flush();
+		}
+	}
+
+	/*
+	 * Reads the song on the decode thread, until the end of the file or until
+	 * the song is stopped
+	 */
+	private void decode(Playback playback) {
+		try (AudioInputStream in = openPcm(new File(playback.song.getPath()))) {
+			AudioFormat format = in.getFormat();
+			long frames = in.getFrameLength();
+			if (frames == AudioSystem.NOT_SPECIFIED) {
+				frames = (long) (playback.song.getSongDuration() * (double) format.getFrameRate());
+			}
+			playback.totalFrames = frames;
+			playback.format = format;
+			// an AudioInputStream only reads whole frames
+			int length = decodeChunk.length - decodeChunk.length % format.getFrameSize();
+			int read;
+			while ((read = in.read(decodeChunk, 0, length)) > 0) {
+				if (!ring.put(playback.generation, decodeChunk, read)) {
+					return;
+				}
+			}
+		} catch (IOException | UnsupportedAudioFileException e) {
+			e.printStackTrace();
+		} catch (InterruptedException e) {
+			return;
+		} finally {
+			ring.end(playback.generation);
+		}
+	}
+
+	/*
+	 * Writes the song to the output on the output thread and tells SongPlayer
+	 * once the last frame has been played
+	 */
+	private void write(Playback playback) {
+		int pending = 0;
+		try {
+			while (true) {
+				int taken = ring.take(playback.generation, writeChunk, pending, writeChunk.length - pending);
+				if (taken < 0) {
+					return;
+				}
+				if (taken == 0) {
+					break;
+				}
+				if (!playback.started) {
+					output.open(playback.format);
+					playback.startFrame = output.getFramePosition();
+					playback.started = true;
+				}
+				// the output only takes whole frames, the rest waits for the next chunk
+				int frameSize = playback.format.getFrameSize();
+				int total = pending + taken;
+				int whole = total - total % frameSize;
+				output.write(writeChunk, 0, whole);
+				playback.framesWritten += whole / frameSize;
+				pending = total - whole;
+				System.arraycopy(writeChunk, whole, writeChunk, 0, pending);
+			}
+			if (playback.started) {
+				output.drain();
+			}
+		} catch (InterruptedException e) {
+			return;
+		} catch (IOException | LineUnavailableException e) {
+			e.printStackTrace();
+		}
+		finishSong(playback);
+	}
+
+	/*
+	 * Ends the song if it is still the current one. The callback runs
+	 * after the lock is let go, as AudioSink asks.
+	 */
+	private void finishSong(Playback playback) {
+		synchronized (this) {
+			if (current != playback) {
+				return;
+			}
+			current = null;
+		}
+		playback.onFinished.run();
+	}
+
+	/*
+	 * Helper method
+	 * Opens a file as PCM samples, decoding it if it is compressed
+	 */
+	private static AudioInputStream openPcm(File file) throws IOException, UnsupportedAudioFileException {
+		AudioInputStream in = AudioSystem.getAudioInputStream(file);
+		AudioFormat format = in.getFormat();
+		if (format.getEncoding() == AudioFormat.Encoding.PCM_SIGNED
+				|| format.getEncoding() == AudioFormat.Encoding.PCM_UNSIGNED) {
+			return in;
+		}
+		AudioFormat pcm = new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, format.getSampleRate(), 16,
+				format.getChannels(), format.getChannels() * 2, format.getSampleRate(), false);
+		return AudioSystem.getAudioInputStream(pcm, in);
+	}
+
+	/**
+	 * This interface is where a PcmAudioSink writes the samples it decodes.
+	 * Only the output thread of the sink writes to it, but flush may be
+	 * called from any thread to cut the song short.
+	 */
+	public interface Output {
+
+		/**
+		 * Gets ready for samples in a format, keeping what is open if it is the same format
+		 * @param format the format of the samples
+		 * @throws LineUnavailableException if there is no way to play the format
+		 */
+		void open(AudioFormat format) throws LineUnavailableException;
+
+		/**
+		 * Writes samples, waiting if the output has no room for them yet
+		 * @param bytes the samples
+		 * @param offset where the samples start in bytes
+		 * @param length the number of bytes, a whole number of frames
+		 * @throws IOException if the samples could not be written
+		 */
+		void write(byte[] bytes, int offset, int length) throws IOException;
+
+		/**
+		 * Get the number of frames played since the output was opened
+		 * @return the number of frames played
+		 */
+		long getFramePosition();
+
+		/**
+		 * Waits until every sample written has been played
+		 */
+		void drain();
+
+		/**
+		 * Throws away the samples written that have not been played
+		 */
+		void flush();
+
+		/**
+		 * Frees the output
+		 */
+		void close();
+	}
+
+	/*
+	 * The state of one song being played
+	 */
+	private static class Playback {
+		private final Song song;
+		private final Runnable onFinished;
+		// the generation of the ring buffer this song writes and reads
+		private final int generation;
+		private volatile AudioFormat format;
+		private volatile long totalFrames;
+		private volatile boolean started;
+		// the frame position of the output when the song started
+		private volatile long startFrame;
+		private volatile long framesWritten;
+
+		private Playback(Song newSong, Runnable finished, int newGeneration) {
+			song = newSong;
+			onFinished = finished;
+			generation = newGeneration;
+		}
+	}
+
+	/*
+	 * The bytes between the decode thread and the output thread. Every song
+	 * gets a new generation, and a thread with an older one is turned away,
+	 * so a stopped song never reads or writes the bytes of the next one.
+	 */
+	private static class RingBuffer {
+		private final byte[] bytes;
+		private int head;
+		private int size;
+		private int generation;
+		// true once the decode thread has put the last bytes of the song
+		private boolean ended;
+
+		private RingBuffer(int capacity) {
+			bytes = new byte[capacity];
+		}
+
+		/*
+		 * Empties the buffer for a new song and returns its generation
+		 */
+		private synchronized int reset() {
+			head = 0;
+			size = 0;
+			ended = false;
+			generation++;
+			notifyAll();
+			return generation;
+		}
+
+		/*
+		 * Puts bytes at the back, waiting for room.
+		 * Returns false if the song was stopped.
+		 */
+		private synchronized boolean put(int song, byte[] from, int length) throws InterruptedException {
+			int offset = 0;
+			while (offset < length) {
+				while (size == bytes.length && generation == song) {
+					wait();
+				}
+				if (generation != song) {
+					return false;
+				}
+				int tail = (head + size) % bytes.length;
+				int count = Math.min(length - offset, Math.min(bytes.length - size, bytes.length - tail));
+				System.arraycopy(from, offset, bytes, tail, count);
+				size += count;
+				offset += count;
+				notifyAll();
+			}
+			return true;
+		}
+
+		/*
+		 * Marks the end of the song's bytes
+		 */
+		private synchronized void end(int song) {
+			if (generation == song) {
+				ended = true;
+				notifyAll();
+			}
+		}
+
+		/*
+		 * Takes bytes from the front, waiting for some.
+		 * Returns the number taken, 0 at the end of the song or -1 if it was stopped.
+		 */
+		private synchronized int take(int song, byte[] to, int offset, int most) throws InterruptedException {
+			while (size == 0 && !ended && generation == song) {
+				wait();
+			}
+			if (generation != song) {
+				return -1;
+			}
+			if (size == 0) {
+				return 0;
+			}
+			int count = Math.min(most, Math.min(size, bytes.length - head));
+			System.arraycopy(bytes, head, to, offset, count);
+			head = (head + count) % bytes.length;
+			size -= count;
+			notifyAll();
+			return count;
+		}
+	}
+
+	/*
+	 * Plays the samples on the default sound card
+	 */
+	private static class LineOutput implements Output {
+		private volatile SourceDataLine line;
+
+		@Override
+		public void open(AudioFormat format) throws LineUnavailableException {
+			if (line != null && line.getFormat().matches(format)) {
+				return;
+			}
+			close();
+			SourceDataLine opened = AudioSystem.getSourceDataLine(format);
+			opened.open(format);
+			opened.start();
+			line = opened;
+		}
+
+		@Override
+		public void write(byte[] bytes, int offset, int length) {
+			line.write(bytes, offset, length);
+		}
+
+		@Override
+		public long getFramePosition() {
+			SourceDataLine opened = line;
+			return opened == null ? 0 : opened.getLongFramePosition();
+		}
+
+		@Override
+		public void drain() {
+			SourceDataLine opened = line;
+			if (opened != null) {
+				opened.drain();
+			}
+		}
+
+		@Override
+		public void flush() {
+			SourceDataLine opened = line;
+			if (opened != null) {
+				opened.flush();
+			}
+		}
+
+		@Override
+		public void close() {
+			SourceDataLine opened = line;
+			line = null;
+			if (opened != null) {
+				opened.close();
+			}
+		}
+	}
+
+	/*
+	 * Writes the samples to a stream, every frame counts as played once written
+	 */
+	private static class StreamOutput implements Output {
+		private final OutputStream stream;
+		private volatile int frameSize;
+		private volatile long frames;
+
+		private StreamOutput(OutputStream newStream) {
+			stream = newStream;
+			frameSize = 1;
+		}
+
+		@Override
+		public void open(AudioFormat format) {
+			frameSize = format.getFrameSize();
+		}
+
+		@Override
+		public void write(byte[] bytes, int offset, int length) throws IOException {
+			if (stream != null) {
+				stream.write(bytes, offset, length);
+			}
+			frames += length / frameSize;
+		}
+
+		@Override
+		public long getFramePosition() {
+			return frames;
+		}
+
+		@Override
+		public void drain() {
+			if (stream != null) {
+				try {
+					stream.flush();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
@@ -0,0 +1,137 @@
+package model;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class keeps the accounts, the play counts and the queue saved while
+ * the jukebox runs. On start it replays the write ahead log on top of the
+ * saved files. After that every change goes to the log, and now and then
+ * the files are written again and the log is cut back (compaction), so the
+ * log never grows without bound and starting up stays fast.
+ *
+ * @author David Wang
+ */
+public class PersistenceManager {
+	private final static String logFile = "JukeboxLog";
+	// compact at least this often, and sooner if the log gets big
+	private final static long compactMinutes = 10;
+	private final static long compactBytes = 1 << 20;
+
+	private JukeboxAccountCollection accounts;
+	private SongSelector songSelector;
+	private WriteAheadLog journal;
+	private ScheduledExecutorService compactor;
+	private long lastCompaction;
+
+	/**
+	 * Constructor of the class
+	 * @param newAccounts the accounts read from the saved files
+	 * @param newSongSelector the songs and queue read from the saved files
+	 */
+	public PersistenceManager(JukeboxAccountCollection newAccounts, SongSelector newSongSelector) {
+		accounts = newAccounts;
+		songSelector = newSongSelector;
+	}
+
+	/**
+	 * Replays the log on top of the saved files and starts logging every change.
+	 * The zones of the song selector are started only after that, so no song
+	 * starts playing from a queue that is not up to date yet.
+	 * If the log cannot be opened the jukebox runs as before, saving only on shut down.
+	 */
+	public void open() {
+		try {
+			journal = new WriteAheadLog(logFile);
+			for (WriteAheadLog.Record record : journal.replay()) {
+				switch (record.getType()) {
+				case ADD_ACCOUNT:
+				case REMOVE_ACCOUNT:
+				case SET_PASSWORD:
+					accounts.replay(record);
+					break;
+				case PLAY:
+					accounts.replay(record);
+					songSelector.replay(record);
+					break;
+				default:
+					songSelector.replay(record);
+					break;
+				}
+			}
+			// every play that will ever be replayed is in, numbers still missing never come
+			songSelector.getHistory().closeGaps();
+		} catch (IOException e) {
+			e.printStackTrace();
+			// the writer thread and the file are let go before running without a log
+			if (journal != null) {
+				journal.close();
+				journal = null;
+			}
+			songSelector.start();
+			return;
+		}
+
+		accounts.setJournal(journal);
+		songSelector.setJournal(journal);
+		songSelector.start();
+		lastCompaction = System.nanoTime();
+
+		compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "Jukebox log compaction");
+			thread.setDaemon(true);
+			return thread;
+		});
+		compactor.scheduleWithFixedDelay(() -> compactIfNeeded(), 1, 1, TimeUnit.MINUTES);
+	}
+
+	/**
+	 * Writes the saved files now and cuts the log back to the changes made since
+	 */
+	public synchronized void checkpoint() {
+		if (journal == null) {
+			accounts.writePersistentData();
+			songSelector.writePersistentData();
+			return;
+		}
+		try {
+			// a snapshot that fails throws, and the log is left as it was
+			journal.compact(() -> writeFiles());
+			lastCompaction = System.nanoTime();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Stops compacting and saves whatever is still waiting in the log
+	 */
+	public synchronized void close() {
+		if (compactor != null) {
+			compactor.shutdownNow();
+		}
+		if (journal != null) {
+			journal.close();
+		}
+	}
+
+	/*
+	 * Compacts when the log got big or the last compaction was a while ago
+	 */
+	private synchronized void compactIfNeeded() {
+		long minutes = TimeUnit.NANOSECONDS.toMinutes(System.nanoTime() - lastCompaction);
+		if (journal.size() > 0 && (journal.size() > compactBytes || minutes >= compactMinutes)) {
+			checkpoint();
+		}
+	}
+
+	/*
+	 * Writes every saved file, throwing at the first one that cannot be written
+	 */
+	private void writeFiles() throws IOException {
+		accounts.writeFile();
+		songSelector.writeFiles();
+	}
+}
@@ -0,0 +1,687 @@
+package model;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class keeps every play for good: who asked for it, which song, when,
+ * and for how long. Unlike the daily counters in Account and Song it is
+ * never reset, so it can answer questions like "what did this user play
+ * this month".
+ *
+ * Plays are not kept as objects. Users and songs get a number the first
+ * time they are seen, and plays are stored in chunks of CHUNK_SIZE. The
+ * chunk being filled is made of primitive arrays. A full chunk is packed
+ * into one byte array per column, each value written as a varint:
+ * - the time, as the difference from the play before
+ * - the user and song numbers
+ * - the length, only for the plays that are not as long as the song usually
+ *   is, with one bit per play to tell which ones
+ * Most plays take four to six bytes. A range query skips every chunk that
+ * falls outside the range without unpacking it.
+ *
+ * Recording a play takes no lock, so it costs the requests nothing: the play
+ * gets the next number and is handed over, and is stored by the next call
+ * that reads the history, or by every CHUNK_SIZE-th play recorded. The
+ * numbers are saved with the history and logged with each play, so a play
+ * replayed from the log that the saved history already has is not added again.
+ * A number whose play never reached the log, because the jukebox stopped in
+ * between, is given up on once the log is replayed (see closeGaps).
+ *
+ * @author David Wang
+ */
+public class PlayHistory {
+	/** The number of plays packed together */
+	public final static int CHUNK_SIZE = 4096;
+	private final static int MAGIC = 0x4a425048;
+	private final static int FORMAT = 2;
+
+	private final Map<String, Integer> userIds;
+	private final List<String> users;
+	private final Map<String, Integer> songIds;
+	private final List<String> songs;
+	// the length of each song the first time it was played, most plays are the same
+	private int[] songSeconds;
+	private final List<Chunk> chunks;
+	// the chunk being filled
+	private final long[] times;
+	private final int[] userColumn;
+	private final int[] songColumn;
+	private final int[] secondsColumn;
+	private int filled;
+	private long plays;
+	// plays recorded and not stored yet, and how many were ever handed over
+	private final ConcurrentLinkedQueue<Pending> pending;
+	private final AtomicLong handedOver;
+	private final AtomicLong nextSequence;
+	// every play numbered below covered is stored, and so is every play in storedAbove
+	private long covered;
+	private final Set<Long> storedAbove;
+
+	/**
+	 * Constructor of the class, for an empty history
+	 */
+	public PlayHistory() {
+		userIds = new HashMap<String, Integer>();
+		users = new ArrayList<String>();
+		songIds = new HashMap<String, Integer>();
+		songs = new ArrayList<String>();
+		songSeconds = new int[16];
+		chunks = new ArrayList<Chunk>();
+		times = new long[CHUNK_SIZE];
+		userColumn = new int[CHUNK_SIZE];
+		songColumn = new int[CHUNK_SIZE];
+		secondsColumn = new int[CHUNK_SIZE];
+		pending = new ConcurrentLinkedQueue<Pending>();
+		handedOver = new AtomicLong();
+		nextSequence = new AtomicLong(1);
+		covered = 1;
+		storedAbove = new HashSet<Long>();
+	}
+
+	/**
+	 * Adds a play to the history. Plays are expected roughly in time order,
+	 * but any order works.
+	 *
+	 * @param user the name of the account that asked for the song
+	 * @param song the name of the song
+	 * @param epochSecond when the song was asked for, in seconds since 1970
+	 * @param seconds the length of the song
+	 * @return the number of the play, to be logged with it
+	 */
+	public long record(String user, String song, long epochSecond, int seconds) {
+		long sequence = nextSequence.getAndIncrement();
+		handOver(new Pending(sequence, user, song, epochSecond, seconds));
+		return sequence;
+	}
+
+	/**
+	 * Adds a play read back from the write ahead log, unless the history
+	 * already has a play with the same number. New plays are numbered after it.
+	 *
+	 * @param sequence the number record gave the play
+	 * @param user the name of the account that asked for the song
+	 * @param song the name of the song
+	 * @param epochSecond when the song was asked for, in seconds since 1970
+	 * @param seconds the length of the song
+	 */
+	public void restore(long sequence, String user, String song, long epochSecond, int seconds) {
+		nextSequence.accumulateAndGet(sequence + 1, Math::max);
+		handOver(new Pending(sequence, user, song, epochSecond, seconds));
+	}
+
+	/**
+	 * Gives up on the plays that got a number but were never stored, as when
+	 * the jukebox stopped between numbering a play and logging it. Those
+	 * numbers never come, and until they do every later play would be kept
+	 * as a number of its own. Call it once the log is replayed and before any
+	 * play is recorded, so no play still on its way is given up on.
+	 */
+	public synchronized void closeGaps() {
+		drain();
+		covered = nextSequence.get();
+		storedAbove.clear();
+	}
+
+	/*
+	 * Helper method
+	 * Hands a play over to be stored. Only one play in CHUNK_SIZE stores
+	 * the waiting ones, so the plays waiting never grow without bound.
+	 */
+	private void handOver(Pending play) {
+		pending.add(play);
+		if (handedOver.incrementAndGet() % CHUNK_SIZE == 0) {
+			synchronized (this) {
+				drain();
+			}
+		}
+	}
+
+	/*
+	 * Helper method
+	 * Stores every play handed over so far, skipping the ones already stored
+	 */
+	private void drain() {
+		Pending play;
+		while ((play = pending.poll()) != null) {
+			if (play.sequence < covered || storedAbove.contains(play.sequence)) {
+				continue;
+			}
+			store(play.user, play.song, play.time, play.seconds);
+			if (play.sequence == covered) {
+				covered++;
+				while (storedAbove.remove(covered)) {
+					covered++;
+				}
+			}
+			else {
+				storedAbove.add(play.sequence);
+			}
+		}
+	}
+
+	/*
+	 * Helper method
+	 * Adds a play to the chunk being filled
+	 */
+	private void store(String user, String song, long epochSecond, int seconds) {
+		times[filled] = epochSecond;
+		userColumn[filled] = idOf(user, userIds, users);
+		int known = songs.size();
+		int songId = idOf(song, songIds, songs);
+		if (songId == known) {
+			if (songId == songSeconds.length) {
+				songSeconds = Arrays.copyOf(songSeconds, songSeconds.length * 2);
+			}
+			songSeconds[songId] = seconds;
+		}
+		songColumn[filled] = songId;
+		secondsColumn[filled] = seconds;
+		filled++;
+		plays++;
+		if (filled == CHUNK_SIZE) {
+			chunks.add(pack());
+			filled = 0;
+		}
+	}
+
+	/**
+	 * Get the number of plays in the history
+	 * @return the number of plays
+	 */
+	public synchronized long size() {
+		drain();
+		return plays;
+	}
+
+	/**
+	 * Get every play in a range of time, oldest chunk first
+	 * @param from the first second of the range, in seconds since 1970
+	 * @param to the second after the range
+	 * @return the plays in the range
+	 */
+	public List<Play> plays(long from, long to) {
+		return find(null, null, from, to);
+	}
+
+	/**
+	 * Get the plays asked for by one user in a range of time
+	 * @param user the name of the account
+	 * @param from the first second of the range, in seconds since 1970
+	 * @param to the second after the range
+	 * @return the user's plays in the range
+	 */
+	public List<Play> playsByUser(String user, long from, long to) {
+		return find(user, null, from, to);
+	}
+
+	/**
+	 * Get the plays of one song in a range of time
+	 * @param song the name of the song
+	 * @param from the first second of the range, in seconds since 1970
+	 * @param to the second after the range
+	 * @return the song's plays in the range
+	 */
+	public List<Play> playsOfSong(String song, long from, long to) {
+		return find(null, song, from, to);
+	}
+
+	/**
+	 * Counts the plays asked for by one user in a range of time, without making a list
+	 * @param user the name of the account
+	 * @param from the first second of the range, in seconds since 1970
+	 * @param to the second after the range
+	 * @return the number of the user's plays in the range
+	 */
+	public synchronized int countByUser(String user, long from, long to) {
+		drain();
+		Integer id = userIds.get(user);
+		if (id == null) {
+			return 0;
+		}
+		int[] count = new int[1];
+		scan(id, -1, from, to, (time, userId, songId, seconds) -> count[0]++);
+		return count[0];
+	}
+
+	/**
+	 * Get the number of bytes the plays take, not counting the names
+	 * @return the number of bytes used by the plays
+	 */
+	public synchronized long getBytesUsed() {
+		drain();
+		long bytes = (long) CHUNK_SIZE * (8 + 4 + 4 + 4);
+		for (Chunk chunk : chunks) {
+			bytes += chunk.getBytesUsed();
+		}
+		return bytes;
+	}
+
+	/**
+	 * Writes the history to a file. It is written next to the old file and
+	 * then moved over it, so a crash never leaves a half written file behind.
+	 *
+	 * @param fileName the file to write to
+	 * @throws IOException if the file could not be written
+	 */
+	public void write(String fileName) throws IOException {
+		List<String> userNames;
+		List<String> songNames;
+		int[] seconds;
+		List<Chunk> packed;
+		long savedCovered;
+		List<Long> savedAbove;
+		synchronized (this) {
+			drain();
+			userNames = new ArrayList<String>(users);
+			songNames = new ArrayList<String>(songs);
+			seconds = Arrays.copyOf(songSeconds, songs.size());
+			packed = new ArrayList<Chunk>(chunks);
+			if (filled > 0) {
+				packed.add(pack());
+			}
+			savedCovered = covered;
+			savedAbove = new ArrayList<Long>(storedAbove);
+		}
+		File temp = new File(fileName + ".tmp");
+		FileOutputStream file = new FileOutputStream(temp);
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file))) {
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT);
+			out.writeInt(userNames.size());
+			for (String user : userNames) {
+				out.writeUTF(user);
+			}
+			out.writeInt(songNames.size());
+			for (int i = 0; i < songNames.size(); i++) {
+				out.writeUTF(songNames.get(i));
+				out.writeInt(seconds[i]);
+			}
+			out.writeInt(packed.size());
+			for (Chunk chunk : packed) {
+				chunk.write(out);
+			}
+			out.writeLong(savedCovered);
+			out.writeInt(savedAbove.size());
+			for (long sequence : savedAbove) {
+				out.writeLong(sequence);
+			}
+			out.flush();
+			file.getFD().sync();
+		}
+		Files.move(temp.toPath(), new File(fileName).toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Reads a history written by write. Histories written before plays were
+	 * numbered are read too, the plays logged then are not in the log anymore.
+	 * @param fileName the file to read
+	 * @return the history in the file
+	 * @throws IOException if the file could not be read or is not a history
+	 */
+	public static PlayHistory read(String fileName) throws IOException {
+		PlayHistory history = new PlayHistory();
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(fileName)))) {
+			int format = in.readInt() == MAGIC ? in.readInt() : -1;
+			if (format < 1 || format > FORMAT) {
+				throw new IOException(fileName + " is not a play history");
+			}
+			int userCount = in.readInt();
+			for (int i = 0; i < userCount; i++) {
+				idOf(in.readUTF(), history.userIds, history.users);
+			}
+			int songCount = in.readInt();
+			history.songSeconds = new int[Math.max(16, songCount)];
+			for (int i = 0; i < songCount; i++) {
+				idOf(in.readUTF(), history.songIds, history.songs);
+				history.songSeconds[i] = in.readInt();
+			}
+			int chunkCount = in.readInt();
+			for (int i = 0; i < chunkCount; i++) {
+				Chunk chunk = Chunk.read(in);
+				history.chunks.add(chunk);
+				history.plays += chunk.count;
+			}
+			if (format >= 2) {
+				history.covered = in.readLong();
+				int above = in.readInt();
+				for (int i = 0; i < above; i++) {
+					long sequence = in.readLong();
+					history.storedAbove.add(sequence);
+					history.nextSequence.set(Math.max(history.nextSequence.get(), sequence + 1));
+				}
+				history.nextSequence.set(Math.max(history.nextSequence.get(), history.covered));
+			}
+		}
+		return history;
+	}
+
+	/*
+	 * Helper method
+	 * Makes the list of plays for a user, a song, or both, in a range of time
+	 */
+	private synchronized List<Play> find(String user, String song, long from, long to) {
+		drain();
+		List<Play> found = new ArrayList<Play>();
+		int userId = -1;
+		int songId = -1;
+		if (user != null) {
+			Integer id = userIds.get(user);
+			if (id == null) {
+				return found;
+			}
+			userId = id;
+		}
+		if (song != null) {
+			Integer id = songIds.get(song);
+			if (id == null) {
+				return found;
+			}
+			songId = id;
+		}
+		scan(userId, songId, from, to, (time, playUser, playSong, seconds) ->
+				found.add(new Play(users.get(playUser), songs.get(playSong), time, seconds)));
+		return found;
+	}
+
+	/*
+	 * Helper method
+	 * Visits the plays in a range of time, of one user and one song if they are not -1
+	 */
+	private void scan(int userId, int songId, long from, long to, Visitor visitor) {
+		for (Chunk chunk : chunks) {
+			if (chunk.maxTime >= from && chunk.minTime < to) {
+				chunk.scan(userId, songId, from, to, songSeconds, visitor);
+			}
+		}
+		for (int i = 0; i < filled; i++) {
+			if (times[i] >= from && times[i] < to && (userId < 0 || userColumn[i] == userId)
+					&& (songId < 0 || songColumn[i] == songId)) {
+				visitor.visit(times[i], userColumn[i], songColumn[i], secondsColumn[i]);
+			}
+		}
+	}
+
+	/*
+	 * Helper method
+	 * Packs the chunk being filled into columns of varints
+	 */
+	private Chunk pack() {
+		Column timeBytes = new Column(filled * 2);
+		Column userBytes = new Column(filled * 2);
+		Column songBytes = new Column(filled * 2);
+		Column secondBytes = new Column(16);
+		byte[] otherLength = new byte[(filled + 7) / 8];
+		long min = Long.MAX_VALUE;
+		long max = Long.MIN_VALUE;
+		long last = times[0];
+		for (int i = 0; i < filled; i++) {
+			timeBytes.writeSigned(times[i] - last);
+			last = times[i];
+			min = Math.min(min, times[i]);
+			max = Math.max(max, times[i]);
+			userBytes.write(userColumn[i]);
+			songBytes.write(songColumn[i]);
+			int difference = secondsColumn[i] - songSeconds[songColumn[i]];
+			if (difference != 0) {
+				otherLength[i >> 3] |= 1 << (i & 7);
+				secondBytes.writeSigned(difference);
+			}
+		}
+		return new Chunk(filled, times[0], min, max, timeBytes.toArray(), userBytes.toArray(),
+				songBytes.toArray(), otherLength, secondBytes.toArray());
+	}
+
+	/*
+	 * Helper method
+	 * Get the number of a name, giving it the next number the first time it is seen
+	 */
+	private static int idOf(String name, Map<String, Integer> ids, List<String> names) {
+		Integer id = ids.get(name);
+		if (id == null) {
+			id = names.size();
+			ids.put(name, id);
+			names.add(name);
+		}
+		return id;
+	}
+
+	/**
+	 * This class is one play read back from the history
+	 */
+	public static class Play {
+		private final String user;
+		private final String song;
+		private final long time;
+		private final int seconds;
+
+		private Play(String newUser, String newSong, long newTime, int newSeconds) {
+			user = newUser;
+			song = newSong;
+			time = newTime;
+			seconds = newSeconds;
+		}
+
+		/**
+		 * Get the name of the account that asked for the song
+		 * @return the name of the account
+		 */
+		public String getUser() {
+			return user;
+		}
+
+		/**
+		 * Get the name of the song
+		 * @return the name of the song
+		 */
+		public String getSong() {
+			return song;
+		}
+
+		/**
+		 * Get when the song was asked for
+		 * @return the time in seconds since 1970
+		 */
+		public long getTime() {
+			return time;
+		}
+
+		/**
+		 * Get the length of the song
+		 * @return the length in seconds
+		 */
+		public int getSeconds() {
+			return seconds;
+		}
+
+		@Override
+		public String toString() {
+			return user + " " + song + " " + time + " " + seconds;
+		}
+	}
+
+	/*
+	 * A play recorded and waiting to be stored
+	 */
+	private static class Pending {
+		private final long sequence;
+		private final String user;
+		private final String song;
+		private final long time;
+		private final int seconds;
+
+		private Pending(long newSequence, String newUser, String newSong, long newTime, int newSeconds) {
+			sequence = newSequence;
+			user = newUser;
+			song = newSong;
+			time = newTime;
+			seconds = newSeconds;
+		}
+	}
+
+	/*
+	 * What a scan calls for every play that matches
+	 */
+	private interface Visitor {
+		void visit(long time, int user, int song, int seconds);
+	}
+
+	/*
+	 * A full chunk of plays, packed one column per array. It never changes.
+	 */
+	private static class Chunk {
+		private final int count;
+		private final long firstTime;
+		private final long minTime;
+		private final long maxTime;
+		private final byte[] times;
+		private final byte[] users;
+		private final byte[] songs;
+		// one bit per play, set when its length is in seconds
+		private final byte[] otherLength;
+		private final byte[] seconds;
+
+		private Chunk(int newCount, long first, long min, long max, byte[] newTimes, byte[] newUsers,
+				byte[] newSongs, byte[] newOtherLength, byte[] newSeconds) {
+			count = newCount;
+			firstTime = first;
+			minTime = min;
+			maxTime = max;
+			times = newTimes;
+			users = newUsers;
+			songs = newSongs;
+			otherLength = newOtherLength;
+			seconds = newSeconds;
+		}
+
+		/*
+		 * Unpacks the plays one at a time, visiting the ones that match
+		 */
+		private void scan(int userId, int songId, long from, long to, int[] songSeconds, Visitor visitor) {
+			Cursor timeAt = new Cursor(times);
+			Cursor userAt = new Cursor(users);
+			Cursor songAt = new Cursor(songs);
+			Cursor secondAt = new Cursor(seconds);
+			long time = firstTime;
+			for (int i = 0; i < count; i++) {
+				time += timeAt.readSigned();
+				int user = (int) userAt.read();
+				int song = (int) songAt.read();
+				int length = songSeconds[song];
+				if ((otherLength[i >> 3] & (1 << (i & 7))) != 0) {
+					length += (int) secondAt.readSigned();
+				}
+				if (time >= from && time < to && (userId < 0 || user == userId) && (songId < 0 || song == songId)) {
+					visitor.visit(time, user, song, length);
+				}
+			}
+		}
+
+		private long getBytesUsed() {
+			return 64 + times.length + users.length + songs.length + otherLength.length + seconds.length;
+		}
+
+		private void write(DataOutputStream out) throws IOException {
+			out.writeInt(count);
+			out.writeLong(firstTime);
+			out.writeLong(minTime);
+			out.writeLong(maxTime);
+			for (byte[] column : new byte[][] { times, users, songs, otherLength, seconds }) {
+				out.writeInt(column.length);
+				out.write(column);
+			}
+		}
+
+		private static Chunk read(DataInputStream in) throws IOException {
+			int count = in.readInt();
+			long first = in.readLong();
+			long min = in.readLong();
+			long max = in.readLong();
+			byte[][] columns = new byte[5][];
+			for (int i = 0; i < columns.length; i++) {
+				columns[i] = new byte[in.readInt()];
+				in.readFully(columns[i]);
+			}
+			return new Chunk(count, first, min, max, columns[0], columns[1], columns[2], columns[3], columns[4]);
+		}
+	}
+
+	/*
+	 * A growing array of varints, seven bits to a byte, low bits first.
+	 * Signed values are zigzag encoded, so small negative numbers stay short.
+	 */
+	private static class Column {
+		private byte[] bytes;
+		private int size;
+
+		private Column(int capacity) {
+			bytes = new byte[Math.max(16, capacity)];
+		}
+
+		private void writeSigned(long value) {
+			write((value << 1) ^ (value >> 63));
+		}
+
+		private void write(long value) {
+			if (size + 10 > bytes.length) {
+				bytes = Arrays.copyOf(bytes, bytes.length * 2);
+			}
+			while ((value & ~0x7fL) != 0) {
+				bytes[size++] = (byte) ((value & 0x7f) | 0x80);
+				value >>>= 7;
+			}
+			bytes[size++] = (byte) value;
+		}
+
+		private byte[] toArray() {
+			return Arrays.copyOf(bytes, size);
+		}
+	}
+
+	/*
+	 * Reads the varints of a column back in order
+	 */
+	private static class Cursor {
+		private final byte[] bytes;
+		private int at;
+
+		private Cursor(byte[] newBytes) {
+			bytes = newBytes;
+		}
+
+		private long readSigned() {
+			long value = read();
+			return (value >>> 1) ^ -(value & 1);
+		}
+
+		private long read() {
+			long value = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = bytes[at++];
+				value |= (long) (b & 0x7f) << shift;
+				shift += 7;
+			} while (b < 0);
+			return value;
+		}
+	}
+}
@@ -0,0 +1,250 @@
+package model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This class is the queue of song names waiting to be played.
+ * It is a ring buffer, so adding at the back and removing from the front
+ * never shifts the other songs. Every change bumps a version number that
+ * views can poll to find out cheaply whether they need to redraw. The time
+ * each song was added is kept next to it, to measure how long songs wait.
+ *
+ * @author David Wang
+ */
+public class PlayQueue {
+	private String[] songs;
+	// System.nanoTime when each song was added, at the same index as the song
+	private long[] addedAt;
+	private int head;
+	private int size;
+	private volatile long version;
+	private WriteAheadLog journal;
+	// the zone written with every change, empty for the main zone
+	private String journalZone = "";
+
+	/**
+	 * Constructor of the class
+	 * @param savedSongs songs that should already be in the queue, may be null
+	 */
+	public PlayQueue(List<String> savedSongs) {
+		songs = new String[16];
+		addedAt = new long[16];
+		head = 0;
+		size = 0;
+		version = 0;
+		if (savedSongs != null) {
+			for (String song : savedSongs) {
+				add(song);
+			}
+		}
+	}
+
+	/**
+	 * Constructor of the class for a queue saved with its version
+	 * @param savedSongs songs that should already be in the queue, may be null
+	 * @param savedVersion the version of the queue when it was saved
+	 */
+	public PlayQueue(List<String> savedSongs, long savedVersion) {
+		this(savedSongs);
+		version = savedVersion;
+	}
+
+	/**
+	 * Sets the log that every change to the queue is written to
+	 * @param log the write ahead log, or null to stop logging
+	 */
+	public void setJournal(WriteAheadLog log) {
+		setJournal(log, "");
+	}
+
+	/**
+	 * Sets the log that every change to the queue is written to, for the queue of a zone
+	 * @param log the write ahead log, or null to stop logging
+	 * @param zoneName the name of the zone, written with every change so it can be replayed
+	 * 			into the right queue, empty for the main zone
+	 */
+	public synchronized void setJournal(WriteAheadLog log, String zoneName) {
+		journal = log;
+		journalZone = zoneName;
+	}
+
+	/**
+	 * Adds a song to the back of the queue
+	 * @param songName the name of the song to add
+	 */
+	public synchronized void add(String songName) {
+		if (size == songs.length) {
+			grow();
+		}
+		int tail = (head + size) & (songs.length - 1);
+		songs[tail] = songName;
+		addedAt[tail] = System.nanoTime();
+		size++;
+		version++;
+		if (journal != null) {
+			journal.append(new WriteAheadLog.Record(WriteAheadLog.Type.ENQUEUE, songName, journalZone, version, 0));
+		}
+	}
+
+	/**
+	 * Adds songs to the back of the queue, in order, as one change:
+	 * the version goes up once and a single record is logged.
+	 * 
+	 * @param songNames the names of the songs to add
+	 * @throws IllegalArgumentException if the change is too big for the write ahead log
+	 */
+	public synchronized void addAll(List<String> songNames) {
+		if (songNames.isEmpty()) {
+			return;
+		}
+		// logged first, so a batch too big for the log does not change the queue
+		if (journal != null) {
+			journal.append(new WriteAheadLog.Record(WriteAheadLog.Type.ENQUEUE_ALL, String.join("\n", songNames),
+					journalZone, version + 1, 0));
+		}
+		long now = System.nanoTime();
+		for (String songName : songNames) {
+			if (size == songs.length) {
+				grow();
+			}
+			int tail = (head + size) & (songs.length - 1);
+			songs[tail] = songName;
+			addedAt[tail] = now;
+			size++;
+		}
+		version++;
+	}
+
+	/**
+	 * Get the song at the front of the queue without removing it
+	 * @return the first song name, or null if the queue is empty
+	 */
+	public synchronized String peek() {
+		if (size == 0) {
+			return null;
+		}
+		return songs[head];
+	}
+
+	/**
+	 * Get a song in the queue without removing it
+	 * @param index the place of the song, 0 for the front
+	 * @return the song name, or null if the queue is not that long
+	 */
+	public synchronized String peek(int index) {
+		if (index < 0 || index >= size) {
+			return null;
+		}
+		return songs[(head + index) & (songs.length - 1)];
+	}
+
+	/**
+	 * Get when the song at the front of the queue was added.
+	 * Songs read back from a saved queue count as added when they were read.
+	 * @return the System.nanoTime of the add, or 0 if the queue is empty
+	 */
+	public synchronized long peekAddedAt() {
+		if (size == 0) {
+			return 0;
+		}
+		return addedAt[head];
+	}
+
+	/**
+	 * Removes the song at the front of the queue
+	 * @return the removed song name, or null if the queue is empty
+	 */
+	public synchronized String remove() {
+		if (size == 0) {
+			return null;
+		}
+		String songName = songs[head];
+		songs[head] = null;
+		head = (head + 1) & (songs.length - 1);
+		size--;
+		version++;
+		if (journal != null) {
+			journal.append(new WriteAheadLog.Record(WriteAheadLog.Type.DEQUEUE, songName, journalZone, version, 0));
+		}
+		return songName;
+	}
+
+	/**
+	 * Applies a queue change read back from the write ahead log.
+	 * Changes the saved queue already contains are skipped.
+	 *
+	 * @param record an ENQUEUE, ENQUEUE_ALL or DEQUEUE record
+	 */
+	public synchronized void replay(WriteAheadLog.Record record) {
+		if (record.getNumber() <= version) {
+			return;
+		}
+		if (record.getType() == WriteAheadLog.Type.ENQUEUE) {
+			add(record.getName());
+		}
+		else if (record.getType() == WriteAheadLog.Type.ENQUEUE_ALL) {
+			addAll(Arrays.asList(record.getName().split("\n")));
+		}
+		else {
+			remove();
+		}
+		version = record.getNumber();
+	}
+
+	/**
+	 * Checks if the queue is empty
+	 * @return true if there are no songs waiting, false if not
+	 */
+	public synchronized boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Get the number of songs in the queue
+	 * @return the number of songs waiting
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Get a copy of the queue, front first
+	 * @return a new list with the song names in the queue
+	 */
+	public synchronized List<String> snapshot() {
+		List<String> copy = new ArrayList<String>(size);
+		for (int i = 0; i < size; i++) {
+			copy.add(songs[(head + i) & (songs.length - 1)]);
+		}
+		return copy;
+	}
+
+	/**
+	 * Get the version of the queue. It changes every time a song
+	 * is added or removed, so a view only needs to copy the queue
+	 * when the version is different from the last one it saw.
+	 *
+	 * @return the current version
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/*
+	 * Helper method
+	 * Doubles the buffer, moving the songs so the front is at index 0
+	 */
+	private void grow() {
+		String[] bigger = new String[songs.length * 2];
+		long[] biggerAddedAt = new long[bigger.length];
+		for (int i = 0; i < size; i++) {
+			bigger[i] = songs[(head + i) & (songs.length - 1)];
+			biggerAddedAt[i] = addedAt[(head + i) & (songs.length - 1)];
+		}
+		songs = bigger;
+		addedAt = biggerAddedAt;
+		head = 0;
+	}
+}
@@ -0,0 +1,362 @@
+package model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class finds the most requested songs over the last hour, today and
+ * the last week. Every request counts, turned down or not, so a song that
+ * is asked for a lot still shows up after it ran out of plays.
+ *
+ * The counts are kept with the space-saving algorithm: each window is made
+ * of panes (one per day, or one per five minutes for the last hour), and
+ * each pane keeps at most a fixed number of songs. When a new song comes
+ * in and the pane is full, it takes the place of the least counted song
+ * and starts from that song's count. So the memory never grows with the
+ * number of requests, the counts can only be too high, and any song asked
+ * for more often than once in every capacity requests is always found.
+ *
+ * Requests are counted without a lock shared by every thread: the panes
+ * are kept in stripes, each thread counts into the stripe it falls on,
+ * and the stripes are merged when the most requested songs are asked for.
+ * The days of the panes are the days of the DayClock.
+ *
+ * @author David Wang
+ */
+public class RequestStatistics {
+	/** The number of songs each pane keeps when no capacity is given */
+	public final static int DEFAULT_CAPACITY = 256;
+
+	/**
+	 * The windows the most requested songs can be asked for
+	 */
+	public enum Window {
+		/** The last hour, counted in five minute panes, so it covers 55 to 60 minutes */
+		LAST_HOUR(12, 300, false),
+		/** Today since midnight */
+		TODAY(1, 86400, true),
+		/** The last seven days, today included */
+		WEEK(7, 86400, true);
+
+		private final int panes;
+		private final long paneSeconds;
+		// true if panes are the days of the DayClock
+		private final boolean daily;
+
+		private Window(int newPanes, long newPaneSeconds, boolean newDaily) {
+			panes = newPanes;
+			paneSeconds = newPaneSeconds;
+			daily = newDaily;
+		}
+	}
+
+	// a power of two, so a thread finds its stripe with a mask
+	private final Stripe[] stripes;
+	private final LongAdder requests;
+
+	/**
+	 * Constructor of the class, each pane keeps DEFAULT_CAPACITY songs
+	 */
+	public RequestStatistics() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Constructor of the class
+	 * @param capacity the number of songs each pane keeps
+	 */
+	public RequestStatistics(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("capacity must be at least 1");
+		}
+		int count = 1;
+		while (count < Runtime.getRuntime().availableProcessors()) {
+			count <<= 1;
+		}
+		stripes = new Stripe[count];
+		for (int i = 0; i < count; i++) {
+			stripes[i] = new Stripe(capacity);
+		}
+		requests = new LongAdder();
+	}
+
+	/**
+	 * Counts a request for a song made now, by the DayClock
+	 * @param song the name of the song
+	 */
+	public void record(String song) {
+		record(song, DayClock.now());
+	}
+
+	/**
+	 * Counts a request for a song. A request older than every pane of a window
+	 * is not counted in that window.
+	 *
+	 * @param song the name of the song
+	 * @param epochSecond when the song was asked for, in seconds since 1970
+	 */
+	public void record(String song, long epochSecond) {
+		requests.increment();
+		stripes[(int) Thread.currentThread().getId() & (stripes.length - 1)].record(song, epochSecond);
+	}
+
+	/**
+	 * Get the number of requests counted since the start
+	 * @return the number of requests
+	 */
+	public long getRequests() {
+		return requests.sum();
+	}
+
+	/**
+	 * Get the most requested songs of a window, up to now by the DayClock
+	 * @param window the window to look at
+	 * @param k the most songs to return
+	 * @return the songs, most requested first
+	 */
+	public List<Entry> top(Window window, int k) {
+		return top(window, k, DayClock.now());
+	}
+
+	/**
+	 * Get the most requested songs of a window, up to a time
+	 * @param window the window to look at
+	 * @param k the most songs to return
+	 * @param epochSecond the end of the window, in seconds since 1970
+	 * @return the songs, most requested first
+	 */
+	public List<Entry> top(Window window, int k, long epochSecond) {
+		long now = paneOf(window, epochSecond);
+		// the panes of every stripe are merged by adding up what each one counted.
+		// A full pane that dropped a song may have counted it up to its least
+		// count, so that much is added to the songs it does not have.
+		Map<String, Entry> merged = new HashMap<String, Entry>();
+		long dropped = 0;
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				for (Summary summary : stripe.windows[window.ordinal()]) {
+					if (summary.pane > now - window.panes && summary.pane <= now) {
+						long least = summary.size == summary.heap.length ? summary.heap[0].count : 0;
+						dropped += least;
+						for (int i = 0; i < summary.size; i++) {
+							Counter counter = summary.heap[i];
+							Entry entry = merged.get(counter.song);
+							if (entry == null) {
+								entry = new Entry(counter.song);
+								merged.put(counter.song, entry);
+							}
+							entry.count += counter.count;
+							entry.error += counter.error;
+							entry.kept += least;
+						}
+					}
+				}
+			}
+		}
+		for (Entry entry : merged.values()) {
+			entry.count += dropped - entry.kept;
+			entry.error += dropped - entry.kept;
+		}
+		List<Entry> sorted = new ArrayList<Entry>(merged.values());
+		Collections.sort(sorted, (a, b) -> a.count != b.count ? Long.compare(b.count, a.count)
+				: a.song.compareTo(b.song));
+		return sorted.size() > k ? new ArrayList<Entry>(sorted.subList(0, k)) : sorted;
+	}
+
+	/*
+	 * Helper method
+	 * Get the number of the pane a time falls in
+	 */
+	private static long paneOf(Window window, long epochSecond) {
+		if (window.daily) {
+			return DayClock.dayOf(epochSecond);
+		}
+		return Math.floorDiv(epochSecond, window.paneSeconds);
+	}
+
+	/**
+	 * This class is a song and how many times it was asked for in a window
+	 */
+	public static class Entry {
+		private final String song;
+		private long count;
+		private long error;
+		// the least counts of the full panes that have the song
+		private long kept;
+
+		private Entry(String newSong) {
+			song = newSong;
+		}
+
+		/**
+		 * Get the name of the song
+		 * @return the name of the song
+		 */
+		public String getSong() {
+			return song;
+		}
+
+		/**
+		 * Get how many times the song was asked for. It can be too high,
+		 * by at most getError, but never too low.
+		 * @return the number of requests
+		 */
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * Get how much too high the count can be
+		 * @return the most requests that may have been for other songs
+		 */
+		public long getError() {
+			return error;
+		}
+
+		@Override
+		public String toString() {
+			return song + " " + count;
+		}
+	}
+
+	/*
+	 * The panes of every window that some of the threads count into
+	 */
+	private static class Stripe {
+		// the panes of each window, by window ordinal
+		private final Summary[][] windows;
+
+		private Stripe(int capacity) {
+			windows = new Summary[Window.values().length][];
+			for (Window window : Window.values()) {
+				Summary[] panes = new Summary[window.panes];
+				for (int i = 0; i < panes.length; i++) {
+					panes[i] = new Summary(capacity);
+				}
+				windows[window.ordinal()] = panes;
+			}
+		}
+
+		private synchronized void record(String song, long epochSecond) {
+			for (Window window : Window.values()) {
+				long pane = paneOf(window, epochSecond);
+				Summary summary = windows[window.ordinal()][(int) Math.floorMod(pane, (long) window.panes)];
+				if (summary.pane < pane) {
+					summary.clear(pane);
+				}
+				if (summary.pane == pane) {
+					summary.add(song);
+				}
+			}
+		}
+	}
+
+	/*
+	 * A song counted in a pane, and where it is in the pane's heap
+	 */
+	private static class Counter {
+		private String song;
+		private long count;
+		private long error;
+		private int at;
+	}
+
+	/*
+	 * The space-saving summary of one pane: at most capacity counters in a
+	 * heap with the least counted song on top, so it is the one replaced
+	 */
+	private static class Summary {
+		private final Counter[] heap;
+		private final Map<String, Counter> counters;
+		private int size;
+		private long pane;
+
+		private Summary(int capacity) {
+			heap = new Counter[capacity];
+			counters = new HashMap<String, Counter>(capacity * 2);
+			pane = Long.MIN_VALUE;
+		}
+
+		/*
+		 * Empties the pane for a new stretch of time, keeping the counters to reuse
+		 */
+		private void clear(long newPane) {
+			counters.clear();
+			size = 0;
+			pane = newPane;
+		}
+
+		private void add(String song) {
+			Counter counter = counters.get(song);
+			if (counter == null && size < heap.length) {
+				if (heap[size] == null) {
+					heap[size] = new Counter();
+				}
+				counter = heap[size];
+				counter.song = song;
+				counter.count = 1;
+				counter.error = 0;
+				counters.put(song, counter);
+				size++;
+				siftUp(size - 1);
+				return;
+			}
+			if (counter == null) {
+				// the least counted song makes room, its count stays as the new song's error
+				counter = heap[0];
+				counters.remove(counter.song);
+				counter.error = counter.count;
+				counter.song = song;
+				counters.put(song, counter);
+			}
+			counter.count++;
+			siftDown(counter.at);
+		}
+
+		/*
+		 * Moves a new counter above the counters that are bigger
+		 */
+		private void siftUp(int at) {
+			Counter counter = heap[at];
+			while (at > 0) {
+				int parent = (at - 1) / 2;
+				if (heap[parent].count <= counter.count) {
+					break;
+				}
+				heap[at] = heap[parent];
+				heap[at].at = at;
+				at = parent;
+			}
+			heap[at] = counter;
+			counter.at = at;
+		}
+
+		/*
+		 * Moves a counter that went up below the counters that are now smaller
+		 */
+		private void siftDown(int at) {
+			Counter counter = heap[at];
+			while (true) {
+				int child = 2 * at + 1;
+				if (child >= size) {
+					break;
+				}
+				if (child + 1 < size && heap[child + 1].count < heap[child].count) {
+					child++;
+				}
+				if (heap[child].count >= counter.count) {
+					break;
+				}
+				heap[at] = heap[child];
+				heap[at].at = at;
+				at = child;
+			}
+			heap[at] = counter;
+			counter.at = at;
+		}
+	}
+}
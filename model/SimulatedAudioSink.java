@@ -0,0 +1,109 @@
+package model;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class is an audio sink that makes no sound. It only keeps time:
+ * a song ends once its duration has passed on a timer, divided by a speed
+ * factor. At speed 1 it takes as long as the real song, at speed 1000 a
+ * five second song is over in five milliseconds, so the jukebox can be run
+ * on a server or in a load test without JavaFX or any sound hardware.
+ *
+ * @author David Wang
+ */
+public class SimulatedAudioSink implements AudioSink {
+	private final double speed;
+	private final ScheduledExecutorService clock;
+	private final AtomicLong songsPlayed;
+	private ScheduledFuture<?> endOfSong;
+	private Runnable onFinished;
+	private long started;
+	private long length;
+
+	/**
+	 * Constructor of the class, songs take as long as they really do
+	 */
+	public SimulatedAudioSink() {
+		this(1.0);
+	}
+
+	/**
+	 * Constructor of the class
+	 * @param newSpeed how many times faster than real time the songs play
+	 */
+	public SimulatedAudioSink(double newSpeed) {
+		if (!(newSpeed > 0)) {
+			throw new IllegalArgumentException("speed must be more than 0");
+		}
+		speed = newSpeed;
+		songsPlayed = new AtomicLong();
+		clock = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "Jukebox simulated sink");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	@Override
+	public synchronized void play(Song song, Runnable finished) {
+		cancelEndOfSong();
+		onFinished = finished;
+		started = System.nanoTime();
+		length = (long) (TimeUnit.SECONDS.toNanos(song.getSongDuration()) / speed);
+		Runnable done = finished;
+		endOfSong = clock.schedule(() -> finishSong(done), length, TimeUnit.NANOSECONDS);
+	}
+
+	@Override
+	public synchronized double getProgress() {
+		if (onFinished == null) {
+			return 0.0;
+		}
+		if (length <= 0) {
+			return 1.0;
+		}
+		return Math.min(1.0, (System.nanoTime() - started) / (double) length);
+	}
+
+	@Override
+	public synchronized void close() {
+		cancelEndOfSong();
+		onFinished = null;
+		clock.shutdownNow();
+	}
+
+	/**
+	 * Get the number of songs that played to the end
+	 * @return the number of songs played
+	 */
+	public long getSongsPlayed() {
+		return songsPlayed.get();
+	}
+
+	/*
+	 * Ends the song if it is still the current one. The callback runs
+	 * after the lock is let go, as AudioSink asks.
+	 */
+	private void finishSong(Runnable done) {
+		synchronized (this) {
+			if (onFinished != done) {
+				return;
+			}
+			onFinished = null;
+			endOfSong = null;
+		}
+		songsPlayed.incrementAndGet();
+		done.run();
+	}
+
+	private void cancelEndOfSong() {
+		if (endOfSong != null) {
+			endOfSong.cancel(false);
+			endOfSong = null;
+		}
+	}
+}
@@ -1,6 +1,11 @@
 package model;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
+import java.time.LocalDate;
 /**
  * This class represents a Song object. It keeps track of its path, name and its duration.
  * The day and duration are tracked to determine if the song can be played.
@@ -8,7 +13,7 @@ import java.io.Serializable;
  * @author Alexis Tinoco
  * Modified: David Wang
  */
-import java.time.LocalDate;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This class contains the object Song, and it is able to play a song
@@ -16,10 +21,26 @@ import java.time.LocalDate;
  */
 // Added to allow package model to exist on GitHub
 public class Song implements Serializable {
+	/** The number of times a song can be picked per day */
+	public static final int MAX_PLAYS_PER_DAY = 3;
+	
+	// kept from the older jukeboxes, so the ListOfSongs they saved can still be read
+	private static final long serialVersionUID = 8752388720719606995L;
+	// the fields as older jukeboxes saved them, and the artist added since
+	private static final ObjectStreamField[] serialPersistentFields = {
+		new ObjectStreamField("path", String.class),
+		new ObjectStreamField("songName", String.class),
+		new ObjectStreamField("artist", String.class),
+		new ObjectStreamField("localDate", LocalDate.class),
+		new ObjectStreamField("timesPlayedToday", Integer.class),
+		new ObjectStreamField("songDuration", Integer.class)
+	};
+	
 	private String path;
 	private String songName;
-	private LocalDate localDate;
-	private Integer timesPlayedToday;
+	private String artist;
+	// the day of the last play in the high 32 bits and the plays that day in the low 32 bits
+	private transient AtomicLong timesPlayedToday;
 	private Integer songDuration;
 	
 	/**
@@ -29,21 +50,34 @@ public class Song implements Serializable {
 	 * @param newDurationSeconds the duration of the song
 	 */
 	public Song(String newName, String newPath, int newDurationSeconds) {
+		this(newName, newPath, newDurationSeconds, "");
+	}
+	
+	/**
+	 * Constructor of the class
+	 * @param newName the name of the song
+	 * @param newPath the path of the song
+	 * @param newDurationSeconds the duration of the song
+	 * @param newArtist the artist of the song, empty if unknown
+	 */
+	public Song(String newName, String newPath, int newDurationSeconds, String newArtist) {
 		songName = newName;
 		path = newPath;
-		localDate = LocalDate.now();
-		timesPlayedToday = 0;
+		artist = newArtist == null ? "" : newArtist;
+		timesPlayedToday = new AtomicLong(DayClock.today() << 32);
 		songDuration = newDurationSeconds;
 	}
 	
-	/**
-	 * Resets times played if it is a new day.
+	/*
+	 * Resets times played if the counter is from an earlier day.
+	 * The stored counter is left alone, it is reset by the next play.
 	 */
-	public void checkIfNewDay() {
-		if(!LocalDate.now().equals(localDate)) {
-			timesPlayedToday = 0;
-			localDate = LocalDate.now();
+	private static long checkIfNewDay(long packed) {
+		long today = DayClock.today();
+		if((packed >>> 32) != today) {
+			return today << 32;
 		}
+		return packed;
 	}
 	
 	/**
@@ -52,16 +86,108 @@ public class Song implements Serializable {
 	 * @return true if the song can be played today, false if not
 	 */
 	public boolean canBePlayed() {
-		checkIfNewDay();
-		
-		if(timesPlayedToday >= 3) {
+		if(getTimesPlayedToday() >= MAX_PLAYS_PER_DAY) {
 			return false;
 		}
 		return true;
 	}
 	
+	/**
+	 * Counts one more play of the song today
+	 */
 	public void addATimePlayed() {
-		timesPlayedToday++;
+		while (true) {
+			long current = timesPlayedToday.get();
+			if (timesPlayedToday.compareAndSet(current, checkIfNewDay(current) + 1)) {
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Checks that the song can be played once more today and, if so,
+	 * counts the play in the same atomic step.
+	 * 
+	 * @return true if the play was counted, false if the song reached its limit
+	 */
+	public boolean tryReservePlay() {
+		while (true) {
+			long current = timesPlayedToday.get();
+			long today = checkIfNewDay(current);
+			if ((int) today >= MAX_PLAYS_PER_DAY) {
+				return false;
+			}
+			if (timesPlayedToday.compareAndSet(current, today + 1)) {
+				return true;
+			}
+		}
+	}
+	
+	/*
+	 * Get the packed play counter, used to save it in the write ahead log
+	 */
+	long getPlaysState() {
+		return timesPlayedToday.get();
+	}
+	
+	/*
+	 * Brings back a play counter saved in the write ahead log.
+	 * The counter only grows during a day, so the larger value is kept.
+	 */
+	void restorePlaysState(long state) {
+		while (true) {
+			long current = timesPlayedToday.get();
+			if (state <= current || timesPlayedToday.compareAndSet(current, state)) {
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Gives back a play counted by tryReservePlay
+	 * when the request could not be completed.
+	 */
+	public void releasePlay() {
+		while (true) {
+			long current = timesPlayedToday.get();
+			// a play counted before midnight no longer counts against today
+			if ((current >>> 32) != DayClock.today()
+					|| timesPlayedToday.compareAndSet(current, current - 1)) {
+				return;
+			}
+		}
+	}
+	
+	/*
+	 * Writes the song the way older jukeboxes did, with the day and the plays in their own fields
+	 */
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		long packed = timesPlayedToday.get();
+		ObjectOutputStream.PutField fields = out.putFields();
+		fields.put("path", path);
+		fields.put("songName", songName);
+		fields.put("artist", artist);
+		fields.put("localDate", LocalDate.ofEpochDay(packed >>> 32));
+		fields.put("timesPlayedToday", Integer.valueOf((int) packed));
+		fields.put("songDuration", songDuration);
+		out.writeFields();
+	}
+	
+	/*
+	 * Reads a song and packs its day and plays again.
+	 * Songs saved before artists were kept get an empty artist.
+	 */
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		ObjectInputStream.GetField fields = in.readFields();
+		path = (String) fields.get("path", null);
+		songName = (String) fields.get("songName", null);
+		String savedArtist = (String) fields.get("artist", null);
+		artist = savedArtist == null ? "" : savedArtist;
+		songDuration = (Integer) fields.get("songDuration", null);
+		LocalDate localDate = (LocalDate) fields.get("localDate", null);
+		Integer played = (Integer) fields.get("timesPlayedToday", null);
+		long day = localDate == null ? DayClock.today() : localDate.toEpochDay();
+		timesPlayedToday = new AtomicLong((day << 32) | (played == null ? 0 : played));
 	}
 	
 	/**
@@ -72,6 +198,14 @@ public class Song implements Serializable {
 		return songName;
 	}
 	
+	/**
+	 * Get the artist of the song
+	 * @return the artist, or an empty string if it is not known
+	 */
+	public String getArtist() {
+		return artist == null ? "" : artist;
+	}
+	
 	/**
 	 * Get the song path
 	 * @return the song path
@@ -85,7 +219,7 @@ public class Song implements Serializable {
 	 * @return the number times played today
 	 */
 	public int getTimesPlayedToday() {
-		return timesPlayedToday;
+		return (int) checkIfNewDay(timesPlayedToday.get());
 	}
 	
 	/**
@@ -0,0 +1,667 @@
+package model;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * This class holds every song the jukebox can play.
+ *
+ * The songs can come from a catalog file, which is memory mapped and read
+ * in place, so opening even a very large library takes no time. A Song
+ * object is only created the first time a song is asked for, and the same
+ * object is returned from then on. Songs can also be added while running.
+ *
+ * The catalog file is laid out as
+ * <pre>
+ *   header:  magic "JBCT", version, number of songs, size of a song record
+ *   records: one fixed size record per song, sorted by name
+ *            (name offset, path offset, duration, artist offset, play counter)
+ *   strings: every name, path and artist as a 2 byte length and UTF-8 bytes
+ * </pre>
+ * so a song is found with a binary search over the records without reading
+ * anything else. Version 1 files, which had no artists, are still read.
+ * Names, paths and artists longer than 65535 bytes do not fit the 2 byte
+ * length, so such songs are turned down.
+ *
+ * Every song has a position, and positions never change while the catalog
+ * is open, so views can hold on to them. Sorted orders of the positions are
+ * worked out once and kept until a song is added.
+ *
+ * @author David Wang
+ */
+public class SongCatalog {
+	private final static int MAGIC = 0x4A424354;
+	private final static int VERSION = 2;
+	private final static int HEADER_SIZE = 16;
+	private final static int RECORD_SIZE = 24;
+
+	/**
+	 * The ways the songs can be sorted
+	 */
+	public enum SortKey {
+		TITLE, ARTIST, DURATION, PLAYS
+	}
+
+	// the mapped file, replaced as a whole when the catalog is written again
+	private volatile Mapping file;
+
+	private final ConcurrentHashMap<String, Song> songs;
+	// songs added while running, appended under the lock and read without it:
+	// the count is written last, so every song below it is in the array
+	private volatile Song[] addedSongs;
+	private volatile int addedCount;
+	private final List<Consumer<Song>> listeners;
+	private final List<Consumer<Song>> playsListeners;
+	// sorted orders worked out so far, the ones shorter than size() are out of date
+	private final Map<SortKey, int[]> orders;
+
+	/**
+	 * Constructor of the class, for a catalog that starts empty
+	 */
+	public SongCatalog() {
+		file = new Mapping(null, VERSION, 0);
+		songs = new ConcurrentHashMap<String, Song>();
+		addedSongs = new Song[16];
+		listeners = new CopyOnWriteArrayList<Consumer<Song>>();
+		playsListeners = new CopyOnWriteArrayList<Consumer<Song>>();
+		orders = new ConcurrentHashMap<SortKey, int[]>();
+	}
+
+	/**
+	 * Opens a catalog file. Nothing is read until a song is asked for.
+	 *
+	 * @param fileName the name of the catalog file
+	 * @return the catalog
+	 * @throws IOException if the file cannot be read or is not a catalog file
+	 */
+	public static SongCatalog open(String fileName) throws IOException {
+		SongCatalog catalog = new SongCatalog();
+		catalog.file = map(new File(fileName));
+		return catalog;
+	}
+
+	/**
+	 * Reads a song list saved by an older jukebox as a serialized HashMap
+	 * into a new catalog, keeping each song's plays. Writing the catalog
+	 * afterwards moves the songs to the catalog format.
+	 *
+	 * @param fileName the name of the song list
+	 * @return a catalog holding every song of the list
+	 * @throws IOException if the file cannot be read or is not a song list
+	 */
+	@SuppressWarnings("unchecked")
+	public static SongCatalog readSongList(String fileName) throws IOException {
+		Map<String, Song> oldSongs;
+		try (ObjectInputStream in = new ObjectInputStream(new FileInputStream(fileName))) {
+			oldSongs = (Map<String, Song>) in.readObject();
+		} catch (ClassNotFoundException | ClassCastException e) {
+			throw new IOException(fileName + " is not a song list", e);
+		}
+		SongCatalog catalog = new SongCatalog();
+		for (Song song : oldSongs.values()) {
+			catalog.add(song);
+		}
+		return catalog;
+	}
+
+	/**
+	 * Checks if a file is a catalog file, as opposed to an older serialized song list
+	 *
+	 * @param fileName the name of the file
+	 * @return true if the file starts like a catalog file, false if not
+	 */
+	public static boolean isCatalogFile(String fileName) {
+		try (DataInputStream in = new DataInputStream(new FileInputStream(fileName))) {
+			return in.readInt() == MAGIC;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Checks if a name, path or artist is short enough to be written to a catalog file
+	 *
+	 * @param text the name, path or artist
+	 * @return true if it takes at most 65535 bytes in UTF-8
+	 */
+	public static boolean fits(String text) {
+		return text.getBytes(StandardCharsets.UTF_8).length <= 0xFFFF;
+	}
+
+	/**
+	 * Adds a song to the catalog, unless a song with the same name is already in it
+	 *
+	 * @param song the song to add
+	 * @return true if the song was added, false if the name was taken
+	 * @throws IllegalArgumentException if the name, path or artist is too long to be written
+	 */
+	public boolean add(Song song) {
+		for (String text : new String[] { song.getSongName(), song.getPath(), song.getArtist() }) {
+			if (!fits(text)) {
+				throw new IllegalArgumentException("A song's name, path and artist must each fit in 65535 bytes");
+			}
+		}
+		synchronized (this) {
+			if (getSong(song.getSongName()) != null) {
+				return false;
+			}
+			songs.put(song.getSongName(), song);
+			Song[] added = addedSongs;
+			if (addedCount == added.length) {
+				added = Arrays.copyOf(added, added.length * 2);
+			}
+			added[addedCount] = song;
+			addedSongs = added;
+			addedCount = addedCount + 1;
+		}
+		// listeners are told outside the lock, so they may read the catalog
+		for (Consumer<Song> listener : listeners) {
+			listener.accept(song);
+		}
+		return true;
+	}
+
+	/**
+	 * Adds a listener that is told about every song added from now on,
+	 * on the thread that added it
+	 *
+	 * @param listener the listener
+	 */
+	public void addListener(Consumer<Song> listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * Adds a listener that is told every time the plays of one song change,
+	 * on the thread that changed them. Plays going back to 0 at midnight
+	 * are not reported, the day is on the DayClock.
+	 *
+	 * @param listener the listener
+	 */
+	public void addPlaysListener(Consumer<Song> listener) {
+		playsListeners.add(listener);
+	}
+
+	/**
+	 * Tells the plays listeners that the plays of a song changed
+	 *
+	 * @param song the song that was played
+	 */
+	public void playsChanged(Song song) {
+		for (Consumer<Song> listener : playsListeners) {
+			listener.accept(song);
+		}
+	}
+
+	/**
+	 * Get a song by name
+	 *
+	 * @param name the name of the song
+	 * @return the song, or null if there is no song with that name
+	 */
+	public Song getSong(String name) {
+		Song song = songs.get(name);
+		Mapping mapping = file;
+		if (song != null || mapping.songs == 0) {
+			return song;
+		}
+		int index = mapping.find(name);
+		if (index < 0) {
+			return null;
+		}
+		return materialize(mapping, index);
+	}
+
+	/**
+	 * Get a song by its position in the catalog. Songs from the file come
+	 * first, sorted by name, followed by songs added while running. Songs
+	 * added while running stay at the end even after the catalog is written.
+	 *
+	 * @param index the position of the song, from 0 to size() - 1
+	 * @return the song at that position
+	 */
+	public Song getSong(int index) {
+		Mapping mapping = file;
+		if (index < mapping.songs) {
+			return materialize(mapping, index);
+		}
+		return added(index - mapping.songs);
+	}
+
+	/*
+	 * Get the name, artist and path of the song at a position without
+	 * creating a Song for it, used to index large catalogs
+	 */
+	String[] describe(int index) {
+		Mapping mapping = file;
+		if (index < mapping.songs) {
+			int record = mapping.record(index);
+			return new String[] { mapping.readString(mapping.buffer.getInt(record)),
+					new String(mapping.readArtist(record), StandardCharsets.UTF_8),
+					mapping.readString(mapping.buffer.getInt(record + 4)) };
+		}
+		Song song = added(index - mapping.songs);
+		return new String[] { song.getSongName(), song.getArtist(), song.getPath() };
+	}
+
+	/**
+	 * Get the positions of every song, sorted by a key. Songs that tie keep
+	 * their catalog order. Titles are sorted by their UTF-8 bytes, like the file.
+	 * Only the play counts change without a song being added, so the order by
+	 * plays is worked out on every call and the others are kept.
+	 *
+	 * @param key what to sort by
+	 * @return the positions of the songs, in sorted order
+	 */
+	public int[] order(SortKey key) {
+		int[] order = orders.get(key);
+		if (order == null || order.length != size()) {
+			order = computeOrder(key);
+			if (key != SortKey.PLAYS) {
+				orders.put(key, order);
+			}
+		}
+		return order.clone();
+	}
+
+	/**
+	 * Get the number of songs in the catalog
+	 * @return the number of songs
+	 */
+	public int size() {
+		return file.songs + addedCount;
+	}
+
+	/**
+	 * Checks if a song is in the catalog
+	 *
+	 * @param name the name of the song
+	 * @return true if there is a song with that name, false if not
+	 */
+	public boolean contains(String name) {
+		return getSong(name) != null;
+	}
+
+	/**
+	 * Get every song, keyed by name. This creates a Song object for
+	 * every song in the file, so it should be avoided for large catalogs.
+	 *
+	 * @return a new map with all the songs
+	 */
+	public Map<String, Song> toMap() {
+		Map<String, Song> all = new LinkedHashMap<String, Song>();
+		for (int i = 0; i < size(); i++) {
+			Song song = getSong(i);
+			all.put(song.getSongName(), song);
+		}
+		return all;
+	}
+
+	/**
+	 * Writes the catalog, with the current play counts, to a catalog file.
+	 * The file is written next to the old one and then moved over it.
+	 * Songs that were never asked for are copied straight from the old file.
+	 * The catalog then reads the new file, with the songs kept at the
+	 * positions they had, so no view has to start over. If the new file
+	 * cannot be written or moved, it is deleted and the catalog keeps
+	 * reading the one it had.
+	 *
+	 * @param fileName the name of the catalog file
+	 * @throws IOException if the file cannot be written or moved over the old one
+	 */
+	public synchronized void write(String fileName) throws IOException {
+		Mapping mapping = file;
+		int count = size();
+		Integer[] order = new Integer[count];
+		byte[][] names = new byte[count][];
+		byte[][] paths = new byte[count][];
+		byte[][] artists = new byte[count][];
+		int[] durations = new int[count];
+		long[] plays = new long[count];
+		for (int i = 0; i < count; i++) {
+			order[i] = i;
+			if (i < mapping.songs) {
+				// songs that were never asked for are copied without creating a Song
+				int record = mapping.record(i);
+				Song song = songs.get(mapping.readString(mapping.buffer.getInt(record)));
+				names[i] = mapping.readBytes(mapping.buffer.getInt(record));
+				paths[i] = mapping.readBytes(mapping.buffer.getInt(record + 4));
+				durations[i] = mapping.buffer.getInt(record + 8);
+				artists[i] = mapping.readArtist(record);
+				plays[i] = song != null ? song.getPlaysState() : mapping.buffer.getLong(record + 16);
+			}
+			else {
+				Song song = added(i - mapping.songs);
+				names[i] = song.getSongName().getBytes(StandardCharsets.UTF_8);
+				paths[i] = song.getPath().getBytes(StandardCharsets.UTF_8);
+				durations[i] = song.getSongDuration();
+				artists[i] = song.getArtist().getBytes(StandardCharsets.UTF_8);
+				plays[i] = song.getPlaysState();
+			}
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return compareBytes(names[a], names[b]);
+			}
+		});
+
+		File target = new File(fileName);
+		File temp = new File(fileName + ".tmp");
+		Mapping written;
+		try {
+			FileOutputStream fileOutput = new FileOutputStream(temp);
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOutput))) {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt(count);
+				out.writeInt(RECORD_SIZE);
+
+				int stringOffset = 0;
+				List<byte[]> strings = new ArrayList<byte[]>();
+				for (int i = 0; i < count; i++) {
+					int index = order[i];
+					out.writeInt(stringOffset);
+					stringOffset += 2 + names[index].length;
+					out.writeInt(stringOffset);
+					stringOffset += 2 + paths[index].length;
+					out.writeInt(durations[index]);
+					out.writeInt(stringOffset);
+					stringOffset += 2 + artists[index].length;
+					out.writeLong(plays[index]);
+					strings.add(names[index]);
+					strings.add(paths[index]);
+					strings.add(artists[index]);
+				}
+				for (byte[] string : strings) {
+					out.writeShort(string.length);
+					out.write(string);
+				}
+				out.flush();
+				fileOutput.getFD().sync();
+			}
+
+			// the new file is mapped before it replaces the old one, so the catalog never
+			// reads a file that is gone
+			written = map(temp);
+			Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			// the catalog keeps reading the old file, which is still there. On Windows
+			// the new file cannot be deleted while it is mapped, so it goes on exit.
+			if (temp.exists() && !temp.delete()) {
+				temp.deleteOnExit();
+			}
+			throw new IOException("The catalog in " + fileName + " was not replaced", e);
+		}
+
+		// positions from the old file are looked up in the new one,
+		// songs added while running are still read from memory
+		int[] recordOf = new int[mapping.songs];
+		int[] positionOf = new int[count];
+		for (int record = 0; record < count; record++) {
+			int position = order[record];
+			positionOf[record] = position < mapping.songs ? position : -1;
+			if (position < mapping.songs) {
+				recordOf[position] = record;
+			}
+		}
+		file = new Mapping(written.buffer, written.version, count, mapping.songs, recordOf, positionOf);
+	}
+
+	/*
+	 * Helper method
+	 * Maps the file and checks its header. The channel is closed right away,
+	 * only the mapping is kept. On Windows a file that is mapped cannot be
+	 * replaced or deleted until its mapping is collected, so writing over
+	 * the file a catalog was opened from can fail there.
+	 */
+	private static Mapping map(File catalogFile) throws IOException {
+		try (FileChannel in = FileChannel.open(catalogFile.toPath(), StandardOpenOption.READ)) {
+			long length = in.size();
+			MappedByteBuffer mapped = in.map(FileChannel.MapMode.READ_ONLY, 0, length);
+			if (length < HEADER_SIZE || mapped.getInt(0) != MAGIC) {
+				throw new IOException(catalogFile + " is not a song catalog");
+			}
+			int version = mapped.getInt(4);
+			if (version < 1 || version > VERSION || mapped.getInt(12) != RECORD_SIZE) {
+				throw new IOException(catalogFile + " has an unknown catalog version");
+			}
+			return new Mapping(mapped, version, mapped.getInt(8));
+		}
+	}
+
+	/*
+	 * Helper method
+	 * Creates the Song object for a record the first time it is needed
+	 */
+	private Song materialize(Mapping mapping, int index) {
+		int record = mapping.record(index);
+		String name = mapping.readString(mapping.buffer.getInt(record));
+		return songs.computeIfAbsent(name, key -> {
+			Song song = new Song(key, mapping.readString(mapping.buffer.getInt(record + 4)),
+					mapping.buffer.getInt(record + 8),
+					new String(mapping.readArtist(record), StandardCharsets.UTF_8));
+			song.restorePlaysState(mapping.buffer.getLong(record + 16));
+			return song;
+		});
+	}
+
+	/*
+	 * Helper method
+	 * Sorts the positions of every song by a key, reading the file in place
+	 */
+	private int[] computeOrder(SortKey key) {
+		Mapping mapping = file;
+		int addedNow = addedCount;
+		Song[] added = Arrays.copyOf(addedSongs, addedNow);
+		int count = mapping.songs + addedNow;
+		int[] order = new int[count];
+		if (key == SortKey.TITLE) {
+			// the file is already sorted by title, only the added songs are merged in
+			byte[][] names = new byte[added.length][];
+			Integer[] addedOrder = new Integer[added.length];
+			for (int i = 0; i < added.length; i++) {
+				names[i] = added[i].getSongName().getBytes(StandardCharsets.UTF_8);
+				addedOrder[i] = i;
+			}
+			Arrays.sort(addedOrder, (a, b) -> compareBytes(names[a], names[b]));
+			int fromFile = 0;
+			int fromAdded = 0;
+			for (int i = 0; i < count; i++) {
+				if (fromAdded == addedOrder.length || (fromFile < mapping.songs
+						&& mapping.compareName(mapping.record(fromFile), names[addedOrder[fromAdded]]) <= 0)) {
+					order[i] = fromFile++;
+				}
+				else {
+					order[i] = mapping.songs + addedOrder[fromAdded++];
+				}
+			}
+			return order;
+		}
+		if (key == SortKey.ARTIST) {
+			String[] artists = new String[count];
+			Integer[] positions = new Integer[count];
+			for (int i = 0; i < count; i++) {
+				artists[i] = i < mapping.songs ? new String(mapping.readArtist(mapping.record(i)), StandardCharsets.UTF_8)
+						: added[i - mapping.songs].getArtist();
+				positions[i] = i;
+			}
+			// the sort is stable, so songs by the same artist keep their order
+			Arrays.sort(positions, (a, b) -> artists[a].compareTo(artists[b]));
+			for (int i = 0; i < count; i++) {
+				order[i] = positions[i];
+			}
+			return order;
+		}
+
+		// numbers are sorted together with the position, in the low 32 bits
+		long[] keys = new long[count];
+		for (int i = 0; i < mapping.songs; i++) {
+			int record = mapping.record(i);
+			int value = key == SortKey.DURATION ? mapping.buffer.getInt(record + 8)
+					: playsToday(mapping.buffer.getLong(record + 16));
+			keys[i] = (long) value << 32 | i;
+		}
+		if (key == SortKey.PLAYS && mapping.songs > 0) {
+			// songs that were asked for may have been played since the file was written
+			for (Song song : songs.values()) {
+				int index = mapping.find(song.getSongName());
+				if (index >= 0) {
+					keys[index] = (long) song.getTimesPlayedToday() << 32 | index;
+				}
+			}
+		}
+		for (int i = mapping.songs; i < count; i++) {
+			Song song = added[i - mapping.songs];
+			int value = key == SortKey.DURATION ? song.getSongDuration() : song.getTimesPlayedToday();
+			keys[i] = (long) value << 32 | i;
+		}
+		Arrays.sort(keys);
+		for (int i = 0; i < count; i++) {
+			order[i] = (int) keys[i];
+		}
+		return order;
+	}
+
+	/*
+	 * Get a song added while running
+	 */
+	private Song added(int index) {
+		if (index < 0 || index >= addedCount) {
+			throw new IndexOutOfBoundsException("Index: " + index);
+		}
+		return addedSongs[index];
+	}
+
+	private static int playsToday(long state) {
+		return (state >>> 32) == DayClock.today() ? (int) state : 0;
+	}
+
+	private static int compareBytes(byte[] a, byte[] b) {
+		int common = Math.min(a.length, b.length);
+		for (int i = 0; i < common; i++) {
+			int difference = (a[i] & 0xFF) - (b[i] & 0xFF);
+			if (difference != 0) {
+				return difference;
+			}
+		}
+		return a.length - b.length;
+	}
+
+	/*
+	 * A mapped catalog file. Only absolute reads are used on the buffer,
+	 * so any number of threads can read it at the same time.
+	 */
+	private static class Mapping {
+		private final ByteBuffer buffer;
+		private final int version;
+		// the number of records in the file
+		private final int records;
+		// the number of positions read from the file
+		private final int songs;
+		private final int stringTable;
+		// the record of each position and the position of each record (-1 for songs
+		// added while running), null when they are the same
+		private final int[] recordOf;
+		private final int[] positionOf;
+
+		Mapping(ByteBuffer newBuffer, int newVersion, int newSongs) {
+			this(newBuffer, newVersion, newSongs, newSongs, null, null);
+		}
+
+		Mapping(ByteBuffer newBuffer, int newVersion, int newRecords, int newSongs, int[] newRecordOf,
+				int[] newPositionOf) {
+			buffer = newBuffer;
+			version = newVersion;
+			records = newRecords;
+			songs = newSongs;
+			stringTable = HEADER_SIZE + newRecords * RECORD_SIZE;
+			recordOf = newRecordOf;
+			positionOf = newPositionOf;
+		}
+
+		int record(int index) {
+			return HEADER_SIZE + (recordOf == null ? index : recordOf[index]) * RECORD_SIZE;
+		}
+
+		byte[] readBytes(int offset) {
+			int start = stringTable + offset;
+			byte[] bytes = new byte[buffer.getShort(start) & 0xFFFF];
+			for (int i = 0; i < bytes.length; i++) {
+				bytes[i] = buffer.get(start + 2 + i);
+			}
+			return bytes;
+		}
+
+		byte[] readArtist(int record) {
+			if (version < 2) {
+				return new byte[0];
+			}
+			return readBytes(buffer.getInt(record + 12));
+		}
+
+		String readString(int offset) {
+			return new String(readBytes(offset), StandardCharsets.UTF_8);
+		}
+
+		/*
+		 * Binary search for a name, comparing the UTF-8 bytes in place.
+		 * Get the position of the song, or -1 if it is not read from the file.
+		 */
+		int find(String name) {
+			byte[] key = name.getBytes(StandardCharsets.UTF_8);
+			int low = 0;
+			int high = records - 1;
+			while (low <= high) {
+				int middle = (low + high) >>> 1;
+				int compare = compareName(HEADER_SIZE + middle * RECORD_SIZE, key);
+				if (compare < 0) {
+					low = middle + 1;
+				}
+				else if (compare > 0) {
+					high = middle - 1;
+				}
+				else {
+					return positionOf == null ? middle : positionOf[middle];
+				}
+			}
+			return -1;
+		}
+
+		private int compareName(int record, byte[] key) {
+			int start = stringTable + buffer.getInt(record);
+			int length = buffer.getShort(start) & 0xFFFF;
+			int common = Math.min(length, key.length);
+			for (int i = 0; i < common; i++) {
+				int difference = (buffer.get(start + 2 + i) & 0xFF) - (key[i] & 0xFF);
+				if (difference != 0) {
+					return difference;
+				}
+			}
+			return length - key.length;
+		}
+	}
+}
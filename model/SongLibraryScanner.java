@@ -0,0 +1,234 @@
+package model;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class finds every mp3 file in the song folder and reads its title,
+ * artist and length. The files are read in parallel on a fork join pool.
+ *
+ * What was read is kept in a cache file, keyed by the path, size and last
+ * modified time of each mp3 file, so on the next start only files that are
+ * new or changed are read again.
+ *
+ * @author David Wang
+ */
+public class SongLibraryScanner {
+	private final static int MAGIC = 0x4A424D43;
+	private final static int VERSION = 1;
+	// a task reads this many files itself before splitting the work
+	private final static int FILES_PER_TASK = 4;
+
+	private final File directory;
+	private final File cacheFile;
+	private final Map<String, CacheEntry> cache;
+	private final Map<String, CacheEntry> found;
+	private final AtomicInteger filesParsed;
+
+	/**
+	 * Constructor of the class
+	 * @param newDirectory the folder with the mp3 files
+	 * @param newCacheFile the file the metadata is cached in, or null for no cache
+	 */
+	public SongLibraryScanner(String newDirectory, String newCacheFile) {
+		directory = new File(newDirectory);
+		cacheFile = newCacheFile == null ? null : new File(newCacheFile);
+		cache = new ConcurrentHashMap<String, CacheEntry>();
+		found = new ConcurrentHashMap<String, CacheEntry>();
+		filesParsed = new AtomicInteger();
+	}
+
+	/**
+	 * Reads every mp3 file in the folder and its sub folders.
+	 * Files that cannot be read are left out.
+	 *
+	 * @return the metadata of each file, keyed by path and sorted by path
+	 */
+	public SortedMap<String, Mp3Metadata> scan() {
+		readCache();
+		found.clear();
+		filesParsed.set(0);
+
+		File[] files = directory.listFiles();
+		if (files != null) {
+			ForkJoinPool.commonPool().invoke(new ScanTask(files, 0, files.length));
+		}
+
+		// files that were removed are dropped from the cache too
+		if (filesParsed.get() > 0 || !found.keySet().equals(cache.keySet())) {
+			writeCache();
+		}
+
+		SortedMap<String, Mp3Metadata> songs = new TreeMap<String, Mp3Metadata>();
+		for (Map.Entry<String, CacheEntry> entry : found.entrySet()) {
+			songs.put(entry.getKey(), entry.getValue().metadata);
+		}
+		return songs;
+	}
+
+	/**
+	 * Get the number of files the last scan had to read, as opposed to
+	 * taking them from the cache
+	 * @return the number of files read
+	 */
+	public int getFilesParsed() {
+		return filesParsed.get();
+	}
+
+	/*
+	 * Helper method
+	 * Uses the cached metadata if the file did not change, otherwise reads the file
+	 */
+	private void scanFile(File file) {
+		String path = file.getPath();
+		long size = file.length();
+		long modified = file.lastModified();
+		CacheEntry cached = cache.get(path);
+		if (cached != null && cached.size == size && cached.modified == modified) {
+			found.put(path, cached);
+			return;
+		}
+		try {
+			Mp3Metadata metadata = Mp3Metadata.read(file);
+			filesParsed.incrementAndGet();
+			found.put(path, new CacheEntry(size, modified, metadata));
+		} catch (IOException e) {
+			System.out.println(path + " could not be read: " + e.getMessage());
+		}
+	}
+
+	private void readCache() {
+		cache.clear();
+		if (cacheFile == null) {
+			return;
+		}
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				return;
+			}
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String path = in.readUTF();
+				long size = in.readLong();
+				long modified = in.readLong();
+				Mp3Metadata metadata = new Mp3Metadata(in.readUTF(), in.readUTF(), in.readLong());
+				cache.put(path, new CacheEntry(size, modified, metadata));
+			}
+		} catch (FileNotFoundException e) {
+			// first start, every file is read
+		} catch (IOException e) {
+			// a damaged cache only means the files are read again
+			cache.clear();
+		}
+	}
+
+	/*
+	 * The cache is written next to the old one and then moved over it
+	 */
+	private void writeCache() {
+		if (cacheFile == null) {
+			return;
+		}
+		File temp = new File(cacheFile.getPath() + ".tmp");
+		try {
+			FileOutputStream fileOutput = new FileOutputStream(temp);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOutput));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(found.size());
+			for (Map.Entry<String, CacheEntry> entry : found.entrySet()) {
+				CacheEntry value = entry.getValue();
+				out.writeUTF(entry.getKey());
+				out.writeLong(value.size);
+				out.writeLong(value.modified);
+				out.writeUTF(value.metadata.getTitle());
+				out.writeUTF(value.metadata.getArtist());
+				out.writeLong(value.metadata.getDurationMillis());
+			}
+			out.flush();
+			fileOutput.getFD().sync();
+			out.close();
+			Files.move(temp.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/*
+	 * What is known about one file
+	 */
+	private static class CacheEntry {
+		private final long size;
+		private final long modified;
+		private final Mp3Metadata metadata;
+
+		CacheEntry(long newSize, long newModified, Mp3Metadata newMetadata) {
+			size = newSize;
+			modified = newModified;
+			metadata = newMetadata;
+		}
+	}
+
+	/*
+	 * Scans part of a folder. Large folders are split in halves and
+	 * every sub folder becomes a task of its own.
+	 */
+	private class ScanTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final File[] files;
+		private final int from;
+		private final int to;
+
+		ScanTask(File[] newFiles, int newFrom, int newTo) {
+			files = newFiles;
+			from = newFrom;
+			to = newTo;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > FILES_PER_TASK) {
+				int middle = (from + to) >>> 1;
+				invokeAll(new ScanTask(files, from, middle), new ScanTask(files, middle, to));
+				return;
+			}
+			List<ScanTask> folders = new ArrayList<ScanTask>();
+			for (int i = from; i < to; i++) {
+				File file = files[i];
+				if (file.isDirectory()) {
+					File[] children = file.listFiles();
+					if (children != null) {
+						ScanTask folder = new ScanTask(children, 0, children.length);
+						folder.fork();
+						folders.add(folder);
+					}
+				}
+				else if (file.getName().toLowerCase().endsWith(".mp3")) {
+					scanFile(file);
+				}
+			}
+			for (ScanTask folder : folders) {
+				folder.join();
+			}
+		}
+	}
+}
@@ -0,0 +1,203 @@
+package model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class plays the songs in the queue in FIFO order on an audio sink.
+ * It decides when the next song starts and removes a song from the queue
+ * once the sink says it is over. The sink only turns a song into sound,
+ * so the same queue and play logic runs with the JavaFX media player or
+ * with a simulated sink.
+ *
+ * @author David Wang
+ */
+public class SongPlayer {
+	private final PlayQueue queue;
+	private final SongCatalog songCollection;
+	private final AudioSink sink;
+	private volatile boolean playing;
+	// the callback given to the sink for the song playing now, null when there is none
+	private Runnable current;
+	private Runnable onQueueChange;
+	// System.nanoTime when the last song ended with another waiting, 0 if none was
+	private long endedWithSongsWaiting;
+	// the song the sink was last told comes next
+	private Song prepared;
+
+	/**
+	 * Constructor of the class
+	 * @param newQueue the queue of songs waiting to be played
+	 * @param songs the catalog of all the available songs
+	 * @param newSink where the songs are played
+	 */
+	public SongPlayer(PlayQueue newQueue, SongCatalog songs, AudioSink newSink) {
+		queue = newQueue;
+		songCollection = songs;
+		sink = newSink;
+		playing = false;
+	}
+
+	/**
+	 * This method is used to add a song to the queue.
+	 *
+	 * @param song the song to be added to the queue
+	 */
+	public void addNext(Song song) {
+		queue.add(song.getSongName());
+		queueChanged();
+	}
+
+	/**
+	 * This method is used to add songs to the queue as one change
+	 *
+	 * @param songs the songs to be added to the queue, in order
+	 */
+	public void addAllNext(List<Song> songs) {
+		List<String> names = new ArrayList<String>(songs.size());
+		for (Song song : songs) {
+			names.add(song.getSongName());
+		}
+		queue.addAll(names);
+		queueChanged();
+	}
+
+	/**
+	 * Sets the code that runs whenever the player may be able to start
+	 * a new song: a song was added, a song ended or playing was toggled.
+	 *
+	 * @param listener the code to run on every change
+	 */
+	public synchronized void setOnQueueChange(Runnable listener) {
+		onQueueChange = listener;
+	}
+
+	/**
+	 * Get the percentage of the current progression of the song
+	 * @return the percentage that the song has played
+	 */
+	public double getPercentage() {
+		if (!playing) {
+			return 0.0;
+		}
+		return sink.getProgress();
+	}
+
+	/**
+	 * This method will set the queue to play
+	 * @param play true/false should the play start
+	 */
+	public void setPlaying(boolean play) {
+		playing = play;
+		queueChanged();
+	}
+
+	/**
+	 * This method plays the first song in the queue if nothing is playing.
+	 * The scheduler thread in SongSelector calls it every time the
+	 * queue change listener fires. Whenever the song after the one playing
+	 * changes, the sink is told, so it can get it ready.
+	 */
+	public void play() {
+		Song song = null;
+		Runnable finished = null;
+		long addedAt = 0;
+		long lastEnded = 0;
+		Song next;
+		synchronized (this) {
+			if (queue.isEmpty()) {
+				return;
+			}
+			if (!playing && current == null) {
+				song = songCollection.getSong(queue.peek());
+				if (song == null) {
+					// the song left the catalog while it waited, skip it
+					queue.remove();
+					queueChanged();
+					return;
+				}
+				finished = new Runnable() {
+					@Override
+					public void run() {
+						finishSong(this);
+					}
+				};
+				current = finished;
+				playing = true;
+				addedAt = queue.peekAddedAt();
+				lastEnded = endedWithSongsWaiting;
+				endedWithSongsWaiting = 0;
+				// whatever the sink got ready was for this song, the one after needs a new hint
+				prepared = null;
+			}
+			next = nextToPrepare();
+		}
+		// the sink is called without holding the lock, it may call back from its own thread
+		if (song != null) {
+			long now = System.nanoTime();
+			JukeboxMetrics.get().getQueueWait().record(now - addedAt);
+			if (lastEnded != 0) {
+				JukeboxMetrics.get().getSongGap().record(now - lastEnded);
+			}
+			sink.play(song, finished);
+		}
+		if (next != null) {
+			sink.prepare(next);
+		}
+	}
+
+	/**
+	 * Stop the current song from playing
+	 */
+	public void close() {
+		synchronized (this) {
+			current = null;
+		}
+		sink.close();
+	}
+
+	/*
+	 * Removes the song that just ended from the queue.
+	 * Only the callback of the current song does anything.
+	 */
+	private void finishSong(Runnable finished) {
+		synchronized (this) {
+			if (current != finished) {
+				return;
+			}
+			current = null;
+			playing = false;
+			queue.remove();
+			endedWithSongsWaiting = queue.isEmpty() ? 0 : System.nanoTime();
+		}
+		System.out.println("Song ended");
+		queueChanged();
+	}
+
+	/*
+	 * Helper method
+	 * Get the song after the one playing, if the sink has not been told about it yet
+	 */
+	private synchronized Song nextToPrepare() {
+		String name = queue.peek(1);
+		Song next = name == null ? null : songCollection.getSong(name);
+		if (next == null || next == prepared) {
+			return null;
+		}
+		prepared = next;
+		return next;
+	}
+
+	/*
+	 * Lets the listener know that the queue or the playing status changed
+	 */
+	private void queueChanged() {
+		Runnable listener;
+		synchronized (this) {
+			listener = onQueueChange;
+		}
+		if (listener != null) {
+			listener.run();
+		}
+	}
+}
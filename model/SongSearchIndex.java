@@ -0,0 +1,354 @@
+package model;
+
+import java.io.File;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * This class finds songs by title, artist or file name as the user types.
+ *
+ * Every song is turned into one line of text, with accents dropped, letters
+ * in lower case and everything other than letters and digits turned into a
+ * space, so "Beyonc&eacute;" is found by "beyonce". Two indexes point into
+ * these lines:
+ * <ul>
+ * <li>a trie of every word, which finds words starting with a short search word</li>
+ * <li>for every 3 letters in a row, the sorted list of songs containing them,
+ * which finds a longer search word anywhere in a song</li>
+ * </ul>
+ * A search only looks at the songs the indexes point to, never at the whole
+ * catalog, and stops once it has enough results. Songs added to the catalog
+ * are added to the index as they come.
+ *
+ * @author David Wang
+ */
+public class SongSearchIndex {
+	// search words shorter than this are looked up in the trie
+	private final static int GRAM = 3;
+
+	private final SongCatalog catalog;
+	private final Map<String, Integer> songIds;
+	private final List<String> names;
+	private final List<String> texts;
+	private final TrieNode words;
+	private final Map<Long, IntList> grams;
+
+	/**
+	 * Constructor of the class, indexes every song in the catalog and
+	 * every song added to it later
+	 *
+	 * @param songCatalog the catalog to search
+	 */
+	public SongSearchIndex(SongCatalog songCatalog) {
+		catalog = songCatalog;
+		songIds = new HashMap<String, Integer>();
+		names = new ArrayList<String>();
+		texts = new ArrayList<String>();
+		words = new TrieNode();
+		grams = new HashMap<Long, IntList>();
+		// listen first, so a song added while indexing is not missed
+		catalog.addListener(song -> add(song.getSongName(), song.getArtist(), song.getPath()));
+		for (int i = 0; i < catalog.size(); i++) {
+			String[] song = catalog.describe(i);
+			add(song[0], song[1], song[2]);
+		}
+	}
+
+	/**
+	 * Brings text to the form it is indexed in: accents are dropped, letters are
+	 * lower case and every run of other characters becomes a single space
+	 *
+	 * @param text the text
+	 * @return the normalized text, without spaces at either end
+	 */
+	public static String normalize(String text) {
+		String decomposed = Normalizer.normalize(text, Normalizer.Form.NFD);
+		StringBuilder normal = new StringBuilder(decomposed.length());
+		boolean space = true;
+		for (int i = 0; i < decomposed.length(); i++) {
+			char c = decomposed.charAt(i);
+			if (Character.getType(c) == Character.NON_SPACING_MARK) {
+				continue;
+			}
+			if (Character.isLetterOrDigit(c)) {
+				normal.append(Character.toLowerCase(c));
+				space = false;
+			}
+			else if (!space) {
+				normal.append(' ');
+				space = true;
+			}
+		}
+		int length = normal.length();
+		if (length > 0 && normal.charAt(length - 1) == ' ') {
+			normal.setLength(length - 1);
+		}
+		return normal.toString();
+	}
+
+	/**
+	 * Finds the songs matching every word of a search. A word of 3 or more
+	 * letters can be anywhere in a song, a shorter word must start a word.
+	 * Songs are returned in the order they were indexed.
+	 *
+	 * @param query what the user typed
+	 * @param limit the most songs to return
+	 * @return the matching songs, empty if the search has no words
+	 */
+	public List<Song> search(String query, int limit) {
+		String normal = normalize(query);
+		List<Song> found = new ArrayList<Song>();
+		if (normal.isEmpty() || limit <= 0) {
+			return found;
+		}
+		String[] terms = normal.split(" ");
+		String[] patterns = new String[terms.length];
+		for (int i = 0; i < terms.length; i++) {
+			patterns[i] = terms[i].length() < GRAM ? " " + terms[i] : terms[i];
+		}
+
+		for (String name : find(terms, patterns, limit)) {
+			Song song = catalog.getSong(name);
+			if (song != null) {
+				found.add(song);
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Get the number of songs in the index
+	 * @return the number of songs
+	 */
+	public synchronized int size() {
+		return names.size();
+	}
+
+	/*
+	 * Helper method
+	 * Adds a song to the trie and the letter lists, unless it is already indexed
+	 */
+	private synchronized void add(String name, String artist, String path) {
+		if (songIds.containsKey(name)) {
+			return;
+		}
+		int id = names.size();
+		String fileName = new File(path).getName();
+		int dot = fileName.lastIndexOf('.');
+		if (dot > 0) {
+			fileName = fileName.substring(0, dot);
+		}
+		// spaces at both ends, so every word starts after a space
+		String text = " " + normalize(name + " " + artist + " " + fileName) + " ";
+		songIds.put(name, id);
+		names.add(name);
+		texts.add(text);
+
+		Set<String> seenWords = new HashSet<String>();
+		for (String word : text.trim().split(" ")) {
+			if (!word.isEmpty() && seenWords.add(word)) {
+				words.insert(word).ids.add(id);
+			}
+		}
+		Set<Long> seenGrams = new HashSet<Long>();
+		for (int i = 0; i + GRAM <= text.length(); i++) {
+			long gram = gram(text, i);
+			if (gram >= 0 && seenGrams.add(gram)) {
+				IntList ids = grams.get(gram);
+				if (ids == null) {
+					ids = new IntList();
+					grams.put(gram, ids);
+				}
+				// ids only grow, so every list stays sorted
+				ids.add(id);
+			}
+		}
+	}
+
+	/*
+	 * Helper method
+	 * Collects the names of songs matching every pattern, starting from the
+	 * search word that points to the fewest songs
+	 */
+	private synchronized List<String> find(String[] terms, String[] patterns, int limit) {
+		List<String> found = new ArrayList<String>();
+		String driver = terms[0];
+		int fewest = Integer.MAX_VALUE;
+		for (String term : terms) {
+			int estimate = estimate(term);
+			if (estimate < fewest) {
+				driver = term;
+				fewest = estimate;
+			}
+		}
+		if (fewest == 0) {
+			return found;
+		}
+		if (driver.length() >= GRAM) {
+			IntList[] lists = new IntList[driver.length() - GRAM + 1];
+			for (int i = 0; i < lists.length; i++) {
+				lists[i] = grams.get(gram(driver, i));
+				if (lists[i] == null) {
+					return found;
+				}
+			}
+			// walk the shortest list and look the songs up in the others
+			Arrays.sort(lists, (a, b) -> a.size - b.size);
+			IntList shortest = lists[0];
+			for (int i = 0; i < shortest.size && found.size() < limit; i++) {
+				int id = shortest.ids[i];
+				boolean inAll = true;
+				for (int j = 1; j < lists.length && inAll; j++) {
+					inAll = lists[j].contains(id);
+				}
+				if (inAll && matches(id, patterns)) {
+					found.add(names.get(id));
+				}
+			}
+			return found;
+		}
+
+		TrieNode start = words.find(driver);
+		if (start == null) {
+			return found;
+		}
+		// a song can have several words with the same start, so ids are counted once
+		Set<Integer> seen = new HashSet<Integer>();
+		List<Integer> ids = new ArrayList<Integer>();
+		List<TrieNode> stack = new ArrayList<TrieNode>();
+		stack.add(start);
+		while (!stack.isEmpty() && ids.size() < limit) {
+			TrieNode node = stack.remove(stack.size() - 1);
+			for (int i = 0; i < node.ids.size && ids.size() < limit; i++) {
+				int id = node.ids.ids[i];
+				if (seen.add(id) && matches(id, patterns)) {
+					ids.add(id);
+				}
+			}
+			for (int i = node.children.length - 1; i >= 0; i--) {
+				stack.add(node.children[i]);
+			}
+		}
+		ids.sort(null);
+		for (int id : ids) {
+			found.add(names.get(id));
+		}
+		return found;
+	}
+
+	/*
+	 * Helper method
+	 * Get about how many songs a search word has to look at
+	 */
+	private int estimate(String term) {
+		if (term.length() < GRAM) {
+			TrieNode node = words.find(term);
+			return node == null ? 0 : node.total;
+		}
+		int fewest = Integer.MAX_VALUE;
+		for (int i = 0; i + GRAM <= term.length(); i++) {
+			IntList ids = grams.get(gram(term, i));
+			if (ids == null) {
+				return 0;
+			}
+			fewest = Math.min(fewest, ids.size);
+		}
+		return fewest;
+	}
+
+	private boolean matches(int id, String[] patterns) {
+		String text = texts.get(id);
+		for (String pattern : patterns) {
+			if (!text.contains(pattern)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * Helper method
+	 * Packs 3 characters into one number, or -1 if they cross a word
+	 */
+	private static long gram(String text, int start) {
+		long gram = 0;
+		for (int i = start; i < start + GRAM; i++) {
+			char c = text.charAt(i);
+			if (c == ' ') {
+				return -1;
+			}
+			gram = gram << 16 | c;
+		}
+		return gram;
+	}
+
+	/*
+	 * A growable list of song ids
+	 */
+	private static class IntList {
+		private int[] ids = new int[2];
+		private int size;
+
+		void add(int id) {
+			if (size == ids.length) {
+				ids = Arrays.copyOf(ids, size * 2);
+			}
+			ids[size++] = id;
+		}
+
+		boolean contains(int id) {
+			return Arrays.binarySearch(ids, 0, size, id) >= 0;
+		}
+	}
+
+	/*
+	 * A letter in the trie of words, with the songs having a word that ends here
+	 * and the number of words, counted once per song, that pass through it
+	 */
+	private static class TrieNode {
+		private char[] letters = new char[0];
+		private TrieNode[] children = new TrieNode[0];
+		private final IntList ids = new IntList();
+		private int total;
+
+		TrieNode find(String prefix) {
+			TrieNode node = this;
+			for (int i = 0; i < prefix.length() && node != null; i++) {
+				int index = Arrays.binarySearch(node.letters, prefix.charAt(i));
+				node = index >= 0 ? node.children[index] : null;
+			}
+			return node;
+		}
+
+		TrieNode insert(String word) {
+			TrieNode node = this;
+			for (int i = 0; i < word.length(); i++) {
+				char letter = word.charAt(i);
+				int index = Arrays.binarySearch(node.letters, letter);
+				if (index < 0) {
+					// letters are kept sorted, so children are found by binary search
+					index = -index - 1;
+					char[] letters = new char[node.letters.length + 1];
+					TrieNode[] children = new TrieNode[letters.length];
+					System.arraycopy(node.letters, 0, letters, 0, index);
+					System.arraycopy(node.children, 0, children, 0, index);
+					letters[index] = letter;
+					children[index] = new TrieNode();
+					System.arraycopy(node.letters, index, letters, index + 1, node.letters.length - index);
+					System.arraycopy(node.children, index, children, index + 1, node.children.length - index);
+					node.letters = letters;
+					node.children = children;
+				}
+				node = node.children[index];
+				node.total++;
+			}
+			return node;
+		}
+	}
+}
@@ -1,72 +1,242 @@
-
 package model;
 
+import java.io.EOFException;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.HashMap;
-
-import controller_view.PlayAnMP3;
-import javafx.collections.ObservableList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
 
 /**
  * This class will keep track of all the songs that can be played.
  * It will also determine if a given song can be played and add it
- * to the mp3 player to play. A thread is used so that any songs in
- * the queue will automatically be played.
+ * to the queue of a zone. Every zone has a thread so that any songs in
+ * its queue will automatically be played. There is always a main zone,
+ * the one that is saved and that the methods without a zone use.
  * 
  * @author David Wang
  * Modified: Alexis Tinoco
  */
 public class SongSelector {
-	private HashMap<String, Song> songCollection;
-	private PlayAnMP3 player;
-	private songPlay songRun;
+	/** The name of the zone every jukebox has */
+	public final static String MAIN_ZONE = "main";
+	
+	private SongCatalog songCollection;
+	private PlayQueue queue;
+	private Zone mainZone;
+	// every zone by name, the main zone first
+	private final Map<String, Zone> zones = new LinkedHashMap<String, Zone>();
+	// zones only play once the selector is started
+	private boolean started;
+	// queues of zones that were saved or logged but not added again yet
+	private final Map<String, PlayQueue> savedZoneQueues = new HashMap<String, PlayQueue>();
+	private WriteAheadLog journal;
+	private SongSearchIndex searchIndex;
+	private PlayHistory history;
+	private final RequestStatistics requestStatistics = new RequestStatistics();
 	private final static String songList = "ListOfSongs";
+	private final static String songQ = "SongQueue";
+	private final static String zoneQueues = "ZoneQueues";
+	private final static String songFolder = "songfiles";
+	private final static String songCache = "SongMetadataCache";
+	private final static String historyFile = "PlayHistory";
+	// the songs the jukebox always had keep these names, so saved queues and logs
+	// still find them, and keep these lengths if their file is missing
+	private final static String[][] defaultSongs = {
+		{ "Capture", "songfiles/Capture.mp3", "5" },
+		{ "Loping Sting", "songfiles/LopingSting.mp3", "5" },
+		{ "Dance Macabre Violin Hook", "songfiles/DanseMacabreViolinHook.mp3", "34" },
+		{ "Determined Tumbao", "songfiles/DeterminedTumbao.mp3", "20" },
+		{ "Swing Cheese", "songfiles/SwingCheese.mp3", "15" },
+		{ "The Curtain Rises", "songfiles/TheCurtainRises.mp3", "28" },
+		{ "Untameable Fire", "songfiles/UntameableFire.mp3", "282" }
+	};
+	
+	/**
+	 * Constructor the of the class. The songs are played on a simulated sink
+	 * that keeps real time but makes no sound, so no JavaFX is needed.
+	 * @param savedQueue songs that should start in the queue, may be null.
+	 * 			It is not used when persist is true, the saved queue is read instead.
+	 * @param persist if the current system depends on previus systems.
+	 * 			If so, the zones do not play until start is called.
+	 */
+	public SongSelector(List<String> savedQueue, boolean persist) {
+		this(savedQueue, persist, new SimulatedAudioSink());
+	}
 	
 	/**
 	 * Constructor the of the class
-	 * @param observableList an observable list that can be changed
-	 * @param persist if the current system depends on previus systems
+	 * @param savedQueue songs that should start in the queue, may be null.
+	 * 			It is not used when persist is true, the saved queue is read instead.
+	 * @param persist if the current system depends on previus systems.
+	 * 			If so, the zones do not play until start is called.
+	 * @param sink where the songs are played
 	 */
-	public SongSelector(ObservableList<String> observableList, boolean persist) {
+	public SongSelector(List<String> savedQueue, boolean persist, AudioSink sink) {
 		if (persist) {
 			readSongData();
+			queue = readQueueData();
+			readZoneQueues();
+			history = readHistory();
 		}
 		else {
 			createAvailableSongs();
+			queue = new PlayQueue(savedQueue);
+			history = new PlayHistory();
 		}
+		addScannedSongs();
 		
-		player = new PlayAnMP3(observableList, songCollection);
-		songRun = new songPlay();
-		Thread songThread = new Thread(songRun);
-		songThread.start();
+		mainZone = new Zone(MAIN_ZONE, queue, songCollection, sink);
+		zones.put(MAIN_ZONE, mainZone);
+		if (!persist) {
+			start();
+		}
+	}
+	
+	/**
+	 * Starts playing the queue of every zone. A selector that read saved
+	 * data waits for this call, so the write ahead log can be replayed on
+	 * top of the saved queue before its first song starts. Selectors that
+	 * do not persist start right away.
+	 */
+	public synchronized void start() {
+		started = true;
+		for (Zone zone : zones.values()) {
+			zone.start();
+		}
+	}
+	
+	/**
+	 * Adds a zone that plays on its own sink. The songs it plays count toward
+	 * the same daily limits as the songs of every other zone. Its queue is
+	 * saved and logged by the zone's name, so a zone added again after a
+	 * restart gets back the songs that were waiting in it.
+	 * 
+	 * @param name the name of the new zone
+	 * @param sink where the zone's songs are played
+	 * @return the new zone
+	 */
+	public synchronized Zone addZone(String name, AudioSink sink) {
+		if (name.isEmpty()) {
+			throw new IllegalArgumentException("A zone needs a name");
+		}
+		if (zones.containsKey(name)) {
+			throw new IllegalArgumentException("There is already a zone named " + name);
+		}
+		PlayQueue zoneQueue = savedZoneQueues.remove(name);
+		if (zoneQueue == null) {
+			zoneQueue = new PlayQueue(null);
+		}
+		zoneQueue.setJournal(journal, name);
+		Zone zone = new Zone(name, zoneQueue, songCollection, sink);
+		zones.put(name, zone);
+		if (started) {
+			zone.start();
+		}
+		return zone;
+	}
+	
+	/**
+	 * Get a zone by its name
+	 * @param name the name of the zone
+	 * @return the zone, or null if there is none with that name
+	 */
+	public synchronized Zone getZone(String name) {
+		return zones.get(name);
+	}
+	
+	/**
+	 * Get every zone, the main zone first
+	 * @return a new list with the zones
+	 */
+	public synchronized List<Zone> getZones() {
+		return new ArrayList<Zone>(zones.values());
 	}
 
 	/*
 	 * Helper method
-	 * This method creates the available songs
+	 * This method creates the available songs.
+	 * The songs found in the song folder are added by addScannedSongs.
 	 */
 	private void createAvailableSongs() {
-		songCollection = new HashMap<String, Song>();
-		
-		Song captureSong = new Song("Capture", "songfiles/Capture.mp3", 5);
-		Song lopingStingSong = new Song("Loping Sting", "songfiles/LopingSting.mp3", 5);
-		Song danseMacabreSong = new Song("Dance Macabre Violin Hook", "songfiles/DanseMacabreViolinHook.mp3", 34);
-		Song determinedTumbaoSong = new Song("Determined Tumbao", "songfiles/DeterminedTumbao.mp3", 20);
-		Song swingCheeseSong = new Song("Swing Cheese", "songfiles/SwingCheese.mp3", 15);
-		Song theCurtainRisesSong = new Song("The Curtain Rises", "songfiles/TheCurtainRises.mp3", 28);
-		Song untameableFireSong = new Song("Untameable Fire", "songfiles/UntameableFire.mp3", 282);
+		songCollection = new SongCatalog();
+	}
+	
+	/*
+	 * Helper method
+	 * Adds every song in the song folder that is not in the catalog yet, with the
+	 * length and artist read from the file. Only new or changed files are read,
+	 * the rest comes from the metadata cache.
+	 * A title or artist too long for the catalog file is left out, and a file
+	 * whose title another file already has is named after the file instead.
+	 */
+	private void addScannedSongs() {
+		SortedMap<String, Mp3Metadata> scanned = new SongLibraryScanner(songFolder, songCache).scan();
 		
-		songCollection.put(captureSong.getSongName(), captureSong);
-		songCollection.put(lopingStingSong.getSongName(), lopingStingSong);
-		songCollection.put(danseMacabreSong.getSongName(), danseMacabreSong);
-		songCollection.put(determinedTumbaoSong.getSongName(), determinedTumbaoSong);
-		songCollection.put(swingCheeseSong.getSongName(), swingCheeseSong);
-		songCollection.put(theCurtainRisesSong.getSongName(), theCurtainRisesSong);
-		songCollection.put(untameableFireSong.getSongName(), untameableFireSong);
+		for (String[] song : defaultSongs) {
+			Mp3Metadata metadata = scanned.remove(song[1]);
+			if (metadata != null) {
+				songCollection.add(new Song(song[0], song[1], metadata.getDurationSeconds(), artistOf(metadata)));
+			}
+			else {
+				songCollection.add(new Song(song[0], song[1], Integer.parseInt(song[2])));
+			}
+		}
+		for (Map.Entry<String, Mp3Metadata> entry : scanned.entrySet()) {
+			String path = entry.getKey();
+			Mp3Metadata metadata = entry.getValue();
+			if (!SongCatalog.fits(path)) {
+				continue;
+			}
+			String name = metadata.getTitle();
+			if (name.isEmpty() || !SongCatalog.fits(name) || isTakenByOtherFile(name, path)) {
+				name = nameFromFile(path);
+			}
+			if (isTakenByOtherFile(name, path)) {
+				name = path;
+			}
+			songCollection.add(new Song(name, path, metadata.getDurationSeconds(), artistOf(metadata)));
+		}
+	}
+	
+	/*
+	 * Helper method
+	 * Get the artist of a scanned file, or nothing if it is too long to be kept
+	 */
+	private static String artistOf(Mp3Metadata metadata) {
+		return SongCatalog.fits(metadata.getArtist()) ? metadata.getArtist() : "";
+	}
+	
+	/*
+	 * Helper method
+	 * Checks if a song name is used by a song of another file.
+	 * A song read back from the saved catalog has its own file, so it is not taken.
+	 */
+	private boolean isTakenByOtherFile(String name, String path) {
+		Song song = songCollection.getSong(name);
+		return song != null && !song.getPath().equals(path);
+	}
+	
+	/*
+	 * Helper method
+	 * Makes a song name out of a file name, "LopingSting.mp3" becomes "Loping Sting"
+	 */
+	private static String nameFromFile(String path) {
+		String name = new File(path).getName();
+		int dot = name.lastIndexOf('.');
+		if (dot > 0) {
+			name = name.substring(0, dot);
+		}
+		return name.replaceAll("([a-z])([A-Z0-9])", "$1 $2").replace('_', ' ').trim();
 	}
 	
 	/**
@@ -75,12 +245,8 @@ public class SongSelector {
 	 * @param name the name of the song asked
 	 * @return the song asked, or null if it doesnt exists
 	 */
-	public synchronized Song getSong(String name) {
-		if(songCollection.containsKey(name))
-			return songCollection.get(name);
-		
-		else
-			return null;
+	public Song getSong(String name) {
+		return songCollection.getSong(name);
 	}
 	
 	/**
@@ -93,55 +259,288 @@ public class SongSelector {
 	 * @return true if able to add to queue, false if not
 	 */
 	public boolean addToQueue(String name, Account user, boolean isJUnitTest) {
-		if(meetsAllRequirements(name,user)) {
-			System.out.println(name + " added to queue");
-			
-			if(!isJUnitTest)
-				player.addNext(songCollection.get(name));
+		return requestSong(name, user, isJUnitTest) == Admission.ACCEPTED;
+	}
+	
+	/**
+	 * This method works like addToQueue but also tells why a song was turned down.
+	 * The user's and the song's limits are checked and taken in one atomic step
+	 * each, without any lock shared between requests, so many requests for the
+	 * same song at the same time can never add it more than 3 times a day.
+	 * 
+	 * @param name the name of the song
+	 * @param user the user that asked for the song to be played
+	 * @param isJUnitTest determines if current run is a j unit test
+	 * @return ACCEPTED if the song was added to the queue, otherwise the reason it was not
+	 */
+	public Admission requestSong(String name, Account user, boolean isJUnitTest) {
+		return requestSong(name, user, isJUnitTest ? null : mainZone);
+	}
+	
+	/**
+	 * This method works like requestSong but adds the song to the queue of a zone.
+	 * The limits are the same for every zone, a user with 3 songs today in one
+	 * zone gets no more in another.
+	 * 
+	 * @param name the name of the song
+	 * @param user the user that asked for the song to be played
+	 * @param zone the zone to play the song in, or null to only take the user's and song's plays
+	 * @return ACCEPTED if the song was added to the queue, otherwise the reason it was not
+	 */
+	public Admission requestSong(String name, Account user, Zone zone) {
+		return requestSong(name, user, zone, DayClock.now());
+	}
+	
+	/**
+	 * This method works like requestSong with a zone, for a request made at a
+	 * given time. The time goes in the play history and the request statistics,
+	 * so a simulation can run on its own clock. It should fall on the day of the DayClock.
+	 * 
+	 * @param name the name of the song
+	 * @param user the user that asked for the song to be played
+	 * @param zone the zone to play the song in, or null to only take the user's and song's plays
+	 * @param epochSecond when the song was asked for, in seconds since 1970
+	 * @return ACCEPTED if the song was added to the queue, otherwise the reason it was not
+	 */
+	public Admission requestSong(String name, Account user, Zone zone, long epochSecond) {
+		Song song = songCollection.getSong(name);
+		Admission result = reserve(song, user);
+		JukeboxMetrics.get().countRequest(result);
+		// turned down or not, a request counts toward the most requested songs, unless there is no such song
+		if (song != null) {
+			requestStatistics.record(name, epochSecond);
+		}
+		if (result == Admission.ACCEPTED) {
+			// in the history before the log, so a compaction never loses it from both
+			long played = history.record(user.getAccountName(), name, epochSecond, song.getSongDuration());
+			log(new WriteAheadLog.Record(WriteAheadLog.Type.PLAY, user.getAccountName(), name,
+					user.getPlaysState(), song.getPlaysState(), epochSecond, played));
+			songCollection.playsChanged(song);
 			
-			songCollection.get(name).addATimePlayed();
-			user.incPlays(songCollection.get(name).getSongDuration());
-			return true;
+			if (zone != null)
+				zone.addNext(song);
 		}
-		else
-			return false;
+		return result;
+	}
+	
+	/**
+	 * This method adds several songs to the main queue for a user, all or none.
+	 * See addAllToQueue with a zone.
+	 * 
+	 * @param names the names of the songs, in the order they should play
+	 * @param user the user that asked for the songs to be played
+	 * @return ACCEPTED if every song was added to the queue, otherwise the reason none was
+	 */
+	public Admission addAllToQueue(List<String> names, Account user) {
+		return addAllToQueue(names, user, mainZone);
+	}
+	
+	/**
+	 * This method adds several songs to the queue of a zone for a user, all or none.
+	 * The user's songs and time for the whole batch are taken in one atomic step,
+	 * then each song's play. If any of it is not there, everything taken is given
+	 * back. The songs that are let in reach the queue as a single change, so the
+	 * queue views redraw once and one record is logged for the queue.
+	 * 
+	 * @param names the names of the songs, in the order they should play
+	 * @param user the user that asked for the songs to be played
+	 * @param zone the zone to play the songs in, or null to only take the user's and songs' plays
+	 * @return ACCEPTED if every song was added to the queue, otherwise the reason none was
+	 */
+	public Admission addAllToQueue(List<String> names, Account user, Zone zone) {
+		List<Song> songs = new ArrayList<Song>(names.size());
+		int totalLength = 0;
+		long now = DayClock.now();
+		Admission result = Admission.ACCEPTED;
+		for (String name : names) {
+			Song song = songCollection.getSong(name);
+			if (song == null) {
+				result = Admission.UNKNOWN_SONG;
+			}
+			else {
+				songs.add(song);
+				totalLength += song.getSongDuration();
+				requestStatistics.record(name, now);
+			}
+		}
+		if (result == Admission.ACCEPTED) {
+			result = reserveAll(songs, totalLength, user);
+		}
+		// the batch is one request with one answer, whatever the number of songs in it
+		JukeboxMetrics.get().countRequest(result);
+		if (result != Admission.ACCEPTED || songs.isEmpty()) {
+			return result;
+		}
+		
+		for (Song song : songs) {
+			long played = history.record(user.getAccountName(), song.getSongName(), now, song.getSongDuration());
+			log(new WriteAheadLog.Record(WriteAheadLog.Type.PLAY, user.getAccountName(), song.getSongName(),
+					user.getPlaysState(), song.getPlaysState(), now, played));
+			songCollection.playsChanged(song);
+		}
+		if (zone != null) {
+			zone.addAllNext(songs);
+		}
+		return result;
 	}
 	
 	/*
 	 * Helper function
-	 * And if the user has played less than 3 songs today
-	 */
-	private boolean meetsAllRequirements(String name, Account user) {
-		if(user.numberSongPlayedByUserToday()< 3) {
-			if(songCollection.containsKey(name)) {
-				if (songCollection.get(name).canBePlayed()) {
-				 //added new constraint on total time played.
-					int timePlayed = user.getTimePlayed() + songCollection.get(name).getSongDuration();
-					if (timePlayed > 90000) {
-						return false;
-					}
-					return true;
+	 * Takes the user's songs and time for the whole batch, then one play of each song.
+	 * If a song is out of plays, everything taken is given back.
+	 */
+	private Admission reserveAll(List<Song> songs, int totalLength, Account user) {
+		Admission result = user.tryReservePlays(songs.size(), totalLength);
+		if (result != Admission.ACCEPTED) {
+			return result;
+		}
+		for (int i = 0; i < songs.size(); i++) {
+			if (!songs.get(i).tryReservePlay()) {
+				for (int j = 0; j < i; j++) {
+					songs.get(j).releasePlay();
 				}
+				user.releasePlays(songs.size(), totalLength);
+				return Admission.SONG_LIMIT;
 			}
 		}
-			
-		return false;
+		return Admission.ACCEPTED;
+	}
+	
+	/*
+	 * Helper function
+	 * Takes one of the user's songs (and their time) first, then one of the song's plays.
+	 * If the song is out of plays, the user's song is given back.
+	 */
+	private Admission reserve(Song song, Account user) {
+		if (song == null) {
+			return Admission.UNKNOWN_SONG;
+		}
+		
+		Admission result = user.tryReservePlay(song.getSongDuration());
+		if (result != Admission.ACCEPTED) {
+			return result;
+		}
+		if (!song.tryReservePlay()) {
+			user.releasePlay(song.getSongDuration());
+			return Admission.SONG_LIMIT;
+		}
+		return Admission.ACCEPTED;
 	}
 	
 	/**
 	 * Get the song collection
-	 * @return the song collection
+	 * @return the song catalog
 	 */
-	public synchronized HashMap<String, Song> getSongCollection(){
+	public SongCatalog getSongCollection(){
 		return songCollection;
 	}
 	
+	/**
+	 * Get the index used to search the songs. It is built the first time it
+	 * is asked for and kept up to date as songs are added.
+	 * @return the search index
+	 */
+	public synchronized SongSearchIndex getSearchIndex() {
+		if (searchIndex == null) {
+			searchIndex = new SongSearchIndex(songCollection);
+		}
+		return searchIndex;
+	}
+	
+	/**
+	 * Get the history of every song played, by user and by song
+	 * @return the play history
+	 */
+	public PlayHistory getHistory() {
+		return history;
+	}
+	
+	/**
+	 * Get the most requested songs, counting the requests that were turned down
+	 * @return the request statistics
+	 */
+	public RequestStatistics getRequestStatistics() {
+		return requestStatistics;
+	}
+	
+	/**
+	 * Get the queue of songs waiting to be played in the main zone
+	 * @return the song queue
+	 */
+	public PlayQueue getQueue() {
+		return queue;
+	}
+	
+	/**
+	 * Sets the log that every play count and change to the queue of a zone is written to.
+	 * Call it after replaying the log, so replayed changes are not logged again.
+	 * 
+	 * @param log the write ahead log, or null to stop logging
+	 */
+	public synchronized void setJournal(WriteAheadLog log) {
+		journal = log;
+		for (Zone zone : zones.values()) {
+			zone.getQueue().setJournal(log, zone == mainZone ? "" : zone.getName());
+		}
+	}
+	
+	/**
+	 * Applies a change read back from the write ahead log
+	 * 
+	 * @param record a PLAY, ENQUEUE, ENQUEUE_ALL or DEQUEUE record
+	 */
+	public void replay(WriteAheadLog.Record record) {
+		if (record.getType() == WriteAheadLog.Type.PLAY) {
+			Song song = songCollection.getSong(record.getOther());
+			if (song != null) {
+				song.restorePlaysState(record.getOtherNumber());
+				songCollection.playsChanged(song);
+				// plays the saved history already has are skipped by their number,
+				// plays logged before they were numbered cannot be told apart and are left out
+				if (record.getSequence() > 0) {
+					history.restore(record.getSequence(), record.getName(), song.getSongName(), record.getTime(),
+							song.getSongDuration());
+				}
+			}
+		}
+		else if (record.getType() == WriteAheadLog.Type.ENQUEUE || record.getType() == WriteAheadLog.Type.ENQUEUE_ALL
+				|| record.getType() == WriteAheadLog.Type.DEQUEUE) {
+			queueOf(record.getOther()).replay(record);
+		}
+	}
+	
+	/*
+	 * Helper method
+	 * Get the queue a logged change belongs to. The main zone logs no name,
+	 * the queue of a zone that is not added yet is kept until it is.
+	 */
+	private synchronized PlayQueue queueOf(String zoneName) {
+		if (zoneName.isEmpty()) {
+			return queue;
+		}
+		Zone zone = zones.get(zoneName);
+		if (zone != null) {
+			return zone.getQueue();
+		}
+		return savedZoneQueues.computeIfAbsent(zoneName, name -> new PlayQueue(null));
+	}
+	
+	/*
+	 * Writes a change to the log, if there is one
+	 */
+	private void log(WriteAheadLog.Record record) {
+		WriteAheadLog log = journal;
+		if (log != null) {
+			log.append(record);
+		}
+	}
+	
 	/**
 	 * Get the song percentage
 	 * @return the song percentage
 	 */
 	public double songPercentage() {
-		return player.getPercentage();
+		return mainZone.songPercentage();
 	}
 	
 	/**
@@ -149,76 +548,224 @@ public class SongSelector {
 	 * @param play if the music should start
 	 */
 	public void setPlaying(boolean play) {
-		player.setPlaying(play);
+		mainZone.setPlaying(play);
 	}
 	
-	@SuppressWarnings("unchecked")
+	/*
+	 * This method will read the songs left by a previous system.
+	 * The song list is a mapped catalog file. A song list saved by an older
+	 * system as a serialized HashMap is still read, and is written back in
+	 * the catalog format the next time the data is saved.
+	 */
 	private void readSongData() {
 		try {
-		      FileInputStream fileOutput = new FileInputStream(songList);
+			if (SongCatalog.isCatalogFile(songList)) {
+				songCollection = SongCatalog.open(songList);
+			}
+			else {
+				songCollection = SongCatalog.readSongList(songList);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			this.createAvailableSongs();
+		}
+	}
+	
+	/*
+	 * This method will read the play history left by a previous system.
+	 * A jukebox that never saved one starts with an empty history.
+	 */
+	private PlayHistory readHistory() {
+		if (!new File(historyFile).exists()) {
+			return new PlayHistory();
+		}
+		try {
+			return PlayHistory.read(historyFile);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return new PlayHistory();
+		}
+	}
+	
+	/*
+	 * This method will read the queues of the other zones left by a previous system.
+	 * They are kept until their zones are added. A jukebox that never saved
+	 * them has only its main zone.
+	 */
+	@SuppressWarnings("unchecked")
+	private void readZoneQueues() {
+		if (!new File(zoneQueues).exists()) {
+			return;
+		}
+		try (ObjectInputStream in = new ObjectInputStream(new FileInputStream(zoneQueues))) {
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String name = in.readUTF();
+				List<String> songs = (List<String>) in.readObject();
+				savedZoneQueues.put(name, new PlayQueue(songs, in.readLong()));
+			}
+		} catch (IOException | ClassNotFoundException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/*
+	 * This method will read the queue left by a previous system.
+	 * The version of the queue is written after the songs. Files saved
+	 * before the version was added simply end after the songs.
+	 */
+	@SuppressWarnings("unchecked")
+	private PlayQueue readQueueData() {
+		List<String> readQ = new ArrayList<String>();
+		long version = 0;
+		try {
+		      FileInputStream fileOutput = new FileInputStream(songQ);
 		      ObjectInputStream in = new ObjectInputStream(fileOutput);
 		      try {
-				songCollection = (HashMap<String, Song>) in.readObject();
+				readQ = (List<String>) in.readObject();
+				try {
+					version = in.readLong();
+				} catch (EOFException e) {
+					version = readQ.size();
+				}
 				in.close();
 			} catch (ClassNotFoundException e) {
 				e.printStackTrace();
-				this.createAvailableSongs();
 			}
 	    } catch (IOException e) {
 	      e.printStackTrace();
-	      this.createAvailableSongs();
 	    }
+		return new PlayQueue(readQ, version);
 	}
 	
 	/**
-	 * This method will write the data for future systems to use
+	 * This method will write the data for future systems to use.
+	 * Each file is written next to the old one and then moved over it,
+	 * so a crash while writing never leaves a half written file behind.
 	 */
 	public void writePersistentData() {
+		writePersistentData(songList, songQ);
+		writeZoneQueues(zoneQueues);
 		try {
-		      FileOutputStream fileOutput = new FileOutputStream(songList);
+			history.write(historyFile);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/*
+	 * This method works like writePersistentData but stops at the first file
+	 * that cannot be written and throws, so the log is only cut back once
+	 * every file was saved
+	 */
+	void writeFiles() throws IOException {
+		writeSongsAndQueue(songList, songQ);
+		writeZoneQueueFile(zoneQueues);
+		history.write(historyFile);
+	}
+	
+	/**
+	 * This method will write the songs and the queue to the given files
+	 * 
+	 * @param songFile the file to write the song catalog to
+	 * @param queueFile the file to write the queue to
+	 */
+	public void writePersistentData(String songFile, String queueFile) {
+		try {
+			writeSongsAndQueue(songFile, queueFile);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/*
+	 * Helper method
+	 * Writes the songs and the queue, throwing if either cannot be written
+	 */
+	private void writeSongsAndQueue(String songFile, String queueFile) throws IOException {
+		long start = System.nanoTime();
+		try {
+		      songCollection.write(songFile);
+		      
+		      List<String> writeQ;
+		      long version;
+		      synchronized (queue) {
+		    	  writeQ = queue.snapshot();
+		    	  version = queue.getVersion();
+		      }
+		      File temp = new File(queueFile + ".tmp");
+		      FileOutputStream fileOutput = new FileOutputStream(temp);
 		      ObjectOutputStream out = new ObjectOutputStream(fileOutput);
-		      out.writeObject(songCollection);
+		      out.writeObject(writeQ);
+		      out.writeLong(version);
+		      out.flush();
+		      fileOutput.getFD().sync();
 		      out.close();
+		      Files.move(temp.toPath(), new File(queueFile).toPath(), StandardCopyOption.REPLACE_EXISTING,
+		    		  StandardCopyOption.ATOMIC_MOVE);
 		    
-		    } catch (IOException e) {
-		      e.printStackTrace();
+		    } finally {
+		      JukeboxMetrics.get().getSongsWrite().record(System.nanoTime() - start);
 		    }
 	}
 	
 	/**
-	 * This method will close all the song threads
+	 * This method will write the queues of every zone but the main one,
+	 * including the saved ones whose zones were not added again
+	 * 
+	 * @param queueFile the file to write the queues to
 	 */
-	public synchronized void closeAll() {
-		songRun.stopWork();
-		player.close();
-	}
-	
-	public void refreshTimesPlayedToday() {
-		for(String key: songCollection.keySet()) {
-			songCollection.get(key).checkIfNewDay();
+	public void writeZoneQueues(String queueFile) {
+		try {
+			writeZoneQueueFile(queueFile);
+		} catch (IOException e) {
+			e.printStackTrace();
 		}
 	}
 	
 	/*
-	 * This is a thread that constantly tries to run songs.
-	 * This was added mainly since setonendofmedia was not functioning
-	 * and we needed another way to play songs one after another.
-	 * Maybe edited later.
+	 * Helper method
+	 * Writes the queues of the other zones, throwing if they cannot be written
 	 */
-	private class songPlay implements Runnable {
-		
-		private boolean done = false;
-
-		@Override
-		public void run() {
-			while(!done) {
-				player.play();
+	private void writeZoneQueueFile(String queueFile) throws IOException {
+		Map<String, PlayQueue> toWrite = new LinkedHashMap<String, PlayQueue>();
+		synchronized (this) {
+			toWrite.putAll(savedZoneQueues);
+			for (Zone zone : zones.values()) {
+				if (zone != mainZone) {
+					toWrite.put(zone.getName(), zone.getQueue());
+				}
 			}
 		}
-		
-		public synchronized void stopWork() {
-			done = true;
+		File temp = new File(queueFile + ".tmp");
+		FileOutputStream fileOutput = new FileOutputStream(temp);
+		ObjectOutputStream out = new ObjectOutputStream(fileOutput);
+		out.writeInt(toWrite.size());
+		for (Map.Entry<String, PlayQueue> entry : toWrite.entrySet()) {
+			PlayQueue zoneQueue = entry.getValue();
+			List<String> writeQ;
+			long version;
+			synchronized (zoneQueue) {
+				writeQ = zoneQueue.snapshot();
+				version = zoneQueue.getVersion();
+			}
+			out.writeUTF(entry.getKey());
+			out.writeObject(writeQ);
+			out.writeLong(version);
+		}
+		out.flush();
+		fileOutput.getFD().sync();
+		out.close();
+		Files.move(temp.toPath(), new File(queueFile).toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+	
+	/**
+	 * This method will close all the song threads, of every zone
+	 */
+	public synchronized void closeAll() {
+		for (Zone zone : zones.values()) {
+			zone.close();
 		}
-		
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,468 @@
+package model;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * This class is an append only log of every change made to the accounts,
+ * the song play counts and the queue. A change is written here as soon as it
+ * happens, so a crash only loses the last few milliseconds instead of the
+ * whole day.
+ *
+ * Changes are collected in memory and a writer thread saves all the changes
+ * that arrived since its last pass with a single write and a single fsync
+ * (group commit). Every record carries a checksum so a half written record
+ * at the end of the file is noticed and dropped when the log is replayed.
+ * A record with a good checksum that cannot be read is damage, not the end
+ * of the log, so replaying stops with an error and the file is left alone.
+ *
+ * @author David Wang
+ */
+public class WriteAheadLog {
+
+	/**
+	 * The kinds of changes kept in the log
+	 */
+	public enum Type {
+		/** name is the account name, other is the password hash (plain text from older jukeboxes) */
+		ADD_ACCOUNT,
+		/** name is the account name */
+		REMOVE_ACCOUNT,
+		/**
+		 * name is the account, other is the song, the numbers are their play counters afterwards,
+		 * time is when the song was asked for and sequence is the number the play history gave it
+		 */
+		PLAY,
+		/** name is the song, other is the zone (empty for the main zone), number is the queue version afterwards */
+		ENQUEUE,
+		/** name is the song, other is the zone (empty for the main zone), number is the queue version afterwards */
+		DEQUEUE,
+		/** name is the account name, other is the new password hash */
+		SET_PASSWORD,
+		/** name is the songs, one per line, other is the zone, number is the queue version afterwards */
+		ENQUEUE_ALL
+	}
+
+	/**
+	 * The code that writes the snapshot files during a compaction
+	 */
+	public interface Snapshot {
+		/**
+		 * Writes the snapshot files
+		 * @throws IOException if a file could not be written
+		 */
+		void write() throws IOException;
+	}
+
+	/**
+	 * This class is a single change in the log
+	 */
+	public static class Record {
+		private final Type type;
+		private final String name;
+		private final String other;
+		private final long number;
+		private final long otherNumber;
+		private final long time;
+		private final long sequence;
+
+		/**
+		 * Constructor of the class
+		 * @param newType the kind of change
+		 * @param newName the account or song changed
+		 * @param newOther a second account, song or password, may be empty
+		 * @param newNumber a counter or version, 0 if not used
+		 * @param newOtherNumber a second counter, 0 if not used
+		 */
+		public Record(Type newType, String newName, String newOther, long newNumber, long newOtherNumber) {
+			this(newType, newName, newOther, newNumber, newOtherNumber, 0, 0);
+		}
+
+		/**
+		 * Constructor of the class, for a PLAY
+		 * @param newType the kind of change
+		 * @param newName the account or song changed
+		 * @param newOther a second account, song or password, may be empty
+		 * @param newNumber a counter or version, 0 if not used
+		 * @param newOtherNumber a second counter, 0 if not used
+		 * @param newTime when the song was asked for, in seconds since 1970
+		 * @param newSequence the number of the play in the play history
+		 */
+		public Record(Type newType, String newName, String newOther, long newNumber, long newOtherNumber,
+				long newTime, long newSequence) {
+			type = newType;
+			name = newName;
+			other = newOther == null ? "" : newOther;
+			number = newNumber;
+			otherNumber = newOtherNumber;
+			time = newTime;
+			sequence = newSequence;
+		}
+
+		public Type getType() {
+			return type;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getOther() {
+			return other;
+		}
+
+		public long getNumber() {
+			return number;
+		}
+
+		public long getOtherNumber() {
+			return otherNumber;
+		}
+
+		public long getTime() {
+			return time;
+		}
+
+		public long getSequence() {
+			return sequence;
+		}
+	}
+
+	// the largest record the log takes, anything bigger is taken for damage when replayed
+	private final static int MAX_RECORD = 1 << 20;
+	// set in the type byte of records whose strings are a length and UTF-8 bytes,
+	// older records wrote them with writeUTF, which cannot go past 65535 bytes
+	private final static int LONG_STRINGS = 0x80;
+
+	private final File file;
+	private RandomAccessFile out;
+	private FileChannel channel;
+
+	private ByteArrayOutputStream pending;
+	private long appended;
+	private long durable;
+	private boolean closed;
+	private IOException failure;
+
+	private final Object fileLock = new Object();
+	private final Thread writer;
+
+	/**
+	 * Constructor of the class, opens (or creates) the log file.
+	 * Call replay before appending anything.
+	 *
+	 * @param fileName the name of the log file
+	 * @throws IOException if the file cannot be opened
+	 */
+	public WriteAheadLog(String fileName) throws IOException {
+		file = new File(fileName);
+		out = new RandomAccessFile(file, "rw");
+		channel = out.getChannel();
+		pending = new ByteArrayOutputStream();
+		appended = 0;
+		durable = 0;
+		closed = false;
+
+		writer = new Thread(new GroupCommit(), "Jukebox log writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Reads every complete record in the log, oldest first.
+	 * A half written record, whose checksum does not match, ends the log and
+	 * is cut off, so new records are appended right after the last good one.
+	 *
+	 * @return the records in the order they were written
+	 * @throws IOException if the file cannot be read, or a record with a good
+	 * 			checksum cannot be read
+	 */
+	public List<Record> replay() throws IOException {
+		List<Record> records = new ArrayList<Record>();
+		synchronized (fileLock) {
+			long good = 0;
+			channel.position(0);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+			try {
+				while (true) {
+					int length = in.readInt();
+					long checksum = in.readLong();
+					if (length <= 0 || length > MAX_RECORD) {
+						break;
+					}
+					byte[] body = new byte[length];
+					in.readFully(body);
+					if (crc(body) != checksum) {
+						break;
+					}
+					try {
+						records.add(decode(body));
+					} catch (IOException | RuntimeException e) {
+						throw new IOException("The record at byte " + good + " of " + file + " is damaged", e);
+					}
+					good += 12 + length;
+				}
+			} catch (EOFException e) {
+				// the last record was not finished, it is dropped below
+			}
+			channel.truncate(good);
+			channel.position(good);
+		}
+		return records;
+	}
+
+	/**
+	 * Adds a change to the log. It is saved to disk by the writer thread
+	 * together with any other changes that arrive at the same time.
+	 *
+	 * @param record the change to save
+	 * @return the number of the change, which can be given to sync
+	 * @throws IllegalArgumentException if the change is too big for the log, nothing is logged then
+	 */
+	public synchronized long append(Record record) {
+		byte[] body = encode(record);
+		if (body.length > MAX_RECORD) {
+			throw new IllegalArgumentException("A change of " + body.length + " bytes is too big for the log");
+		}
+		try {
+			DataOutputStream data = new DataOutputStream(pending);
+			data.writeInt(body.length);
+			data.writeLong(crc(body));
+			data.write(body);
+		} catch (IOException e) {
+			// writing to memory does not fail
+		}
+		appended++;
+		notifyAll();
+		return appended;
+	}
+
+	/**
+	 * Waits until the given change is on disk
+	 *
+	 * @param number the number returned by append
+	 * @throws IOException if the log could not be written
+	 */
+	public synchronized void sync(long number) throws IOException {
+		while (durable < number && failure == null && !closed) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * Saves a snapshot and drops the part of the log that the snapshot already covers.
+	 * Changes may keep arriving while the snapshot is written. They stay in the log,
+	 * so every change made after the snapshot started is replayed on the next start.
+	 * Replaying a change the snapshot already has must therefore do no harm.
+	 *
+	 * If the snapshot cannot be written, the log is left as it was, so no
+	 * change since the last good snapshot is lost.
+	 *
+	 * @param snapshot the code that writes the snapshot files
+	 * @throws IOException if the snapshot or the log could not be written
+	 */
+	public void compact(Snapshot snapshot) throws IOException {
+		long covered;
+		synchronized (this) {
+			sync(appended);
+		}
+		synchronized (fileLock) {
+			covered = channel.size();
+		}
+
+		snapshot.write();
+
+		synchronized (fileLock) {
+			File temp = new File(file.getPath() + ".tmp");
+			try (RandomAccessFile copy = new RandomAccessFile(temp, "rw")) {
+				copy.setLength(0);
+				channel.transferTo(covered, channel.size() - covered, copy.getChannel());
+				copy.getChannel().force(true);
+			}
+			out.close();
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			out = new RandomAccessFile(file, "rw");
+			channel = out.getChannel();
+			channel.position(channel.size());
+		}
+	}
+
+	/**
+	 * Get the size of the log file
+	 * @return the number of bytes in the log
+	 */
+	public long size() {
+		synchronized (fileLock) {
+			try {
+				return channel.size();
+			} catch (IOException e) {
+				return 0;
+			}
+		}
+	}
+
+	/**
+	 * Saves every change still in memory and closes the file
+	 */
+	public void close() {
+		synchronized (this) {
+			try {
+				sync(appended);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			closed = true;
+			notifyAll();
+		}
+		try {
+			writer.join(1000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (fileLock) {
+			try {
+				out.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/*
+	 * Helper methods to turn records into bytes and back
+	 */
+	private static byte[] encode(Record record) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream data = new DataOutputStream(bytes);
+		try {
+			data.writeByte(record.getType().ordinal() | LONG_STRINGS);
+			writeString(data, record.getName());
+			writeString(data, record.getOther());
+			data.writeLong(record.getNumber());
+			data.writeLong(record.getOtherNumber());
+			if (record.getType() == Type.PLAY) {
+				data.writeLong(record.getTime());
+				data.writeLong(record.getSequence());
+			}
+		} catch (IOException e) {
+			// writing to memory does not fail
+		}
+		return bytes.toByteArray();
+	}
+
+	private static Record decode(byte[] body) throws IOException {
+		DataInputStream data = new DataInputStream(new ByteArrayInputStream(body));
+		int kind = data.readUnsignedByte();
+		Type type = Type.values()[kind & ~LONG_STRINGS];
+		boolean longStrings = (kind & LONG_STRINGS) != 0;
+		String name = longStrings ? readString(data) : data.readUTF();
+		String other = longStrings ? readString(data) : data.readUTF();
+		long number = data.readLong();
+		long otherNumber = data.readLong();
+		// plays logged before they had a time and a number have neither
+		if (type == Type.PLAY && data.available() >= 16) {
+			return new Record(type, name, other, number, otherNumber, data.readLong(), data.readLong());
+		}
+		return new Record(type, name, other, number, otherNumber);
+	}
+
+	private static void writeString(DataOutputStream data, String text) throws IOException {
+		byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+		data.writeInt(bytes.length);
+		data.write(bytes);
+	}
+
+	private static String readString(DataInputStream data) throws IOException {
+		int length = data.readInt();
+		if (length < 0 || length > data.available()) {
+			throw new IOException("A string of " + length + " bytes does not fit in its record");
+		}
+		byte[] bytes = new byte[length];
+		data.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static long crc(byte[] body) {
+		CRC32 crc = new CRC32();
+		crc.update(body, 0, body.length);
+		return crc.getValue();
+	}
+
+	/*
+	 * The writer thread. Each pass takes everything appended since the last pass,
+	 * writes it in one go and forces it to disk once for the whole batch.
+	 */
+	private class GroupCommit implements Runnable {
+		@Override
+		public void run() {
+			while (true) {
+				byte[] batch;
+				long last;
+				synchronized (WriteAheadLog.this) {
+					while (pending.size() == 0 && !closed) {
+						try {
+							WriteAheadLog.this.wait();
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+					if (pending.size() == 0 && closed) {
+						return;
+					}
+					batch = pending.toByteArray();
+					pending.reset();
+					last = appended;
+				}
+
+				IOException error = null;
+				synchronized (fileLock) {
+					long start = System.nanoTime();
+					try {
+						ByteBuffer buffer = ByteBuffer.wrap(batch);
+						while (buffer.hasRemaining()) {
+							channel.write(buffer);
+						}
+						channel.force(false);
+					} catch (IOException e) {
+						error = e;
+					}
+					JukeboxMetrics.get().getLogFlush().record(System.nanoTime() - start);
+				}
+
+				synchronized (WriteAheadLog.this) {
+					if (error != null) {
+						failure = error;
+						error.printStackTrace();
+					}
+					durable = last;
+					WriteAheadLog.this.notifyAll();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,156 @@
+package model;
+
+import java.util.List;
+
+/**
+ * This class is one room the jukebox plays in. Each zone has its own queue,
+ * its own audio sink and its own thread starting its songs, so zones play
+ * side by side without waiting on each other. The song catalog and the
+ * daily limits of songs and users belong to SongSelector and are shared by
+ * every zone, so a song played in one room counts in all of them.
+ *
+ * @author David Wang
+ */
+public class Zone {
+	private final String name;
+	private final PlayQueue queue;
+	private final SongPlayer player;
+	private final songPlay songRun;
+	private final Thread songThread;
+
+	/*
+	 * Constructor of the class, SongSelector makes the zones
+	 */
+	Zone(String newName, PlayQueue newQueue, SongCatalog songs, AudioSink sink) {
+		name = newName;
+		queue = newQueue;
+		JukeboxMetrics.get().watchQueue(queue);
+		player = new SongPlayer(queue, songs, sink);
+		songRun = new songPlay();
+		player.setOnQueueChange(() -> songRun.signal());
+		songThread = new Thread(songRun, "Jukebox song scheduler " + name);
+		songThread.setDaemon(true);
+	}
+
+	/*
+	 * Starts the thread that plays the queue. Until then songs are only
+	 * queued, so a saved queue can be brought up to date before its first
+	 * song starts. Starting a zone twice does nothing.
+	 */
+	synchronized void start() {
+		if (songThread.getState() == Thread.State.NEW) {
+			songThread.start();
+		}
+	}
+
+	/**
+	 * Get the name of the zone
+	 * @return the name of the zone
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Get the queue of songs waiting to be played in the zone
+	 * @return the song queue
+	 */
+	public PlayQueue getQueue() {
+		return queue;
+	}
+
+	/**
+	 * Get the song percentage
+	 * @return the song percentage
+	 */
+	public double songPercentage() {
+		return player.getPercentage();
+	}
+
+	/**
+	 * This method will determine if the media player should start
+	 * @param play if the music should start
+	 */
+	public void setPlaying(boolean play) {
+		player.setPlaying(play);
+	}
+
+	/*
+	 * Adds a song that was let in to the back of the queue
+	 */
+	void addNext(Song song) {
+		player.addNext(song);
+	}
+
+	/*
+	 * Adds songs that were let in to the back of the queue, as one change
+	 */
+	void addAllNext(List<Song> songs) {
+		player.addAllNext(songs);
+	}
+
+	/*
+	 * Stops the song thread and the sink
+	 */
+	void close() {
+		songRun.stopWork();
+		player.close();
+		JukeboxMetrics.get().unwatchQueue(queue);
+		try {
+			songThread.join(1000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/*
+	 * This is the thread that starts songs one after another.
+	 * It sleeps until the player reports a change (a song was added,
+	 * a song ended or playing was toggled) and only then asks the player
+	 * to start the next song, so an idle jukebox does not use any CPU.
+	 */
+	private class songPlay implements Runnable {
+
+		private boolean done = false;
+		private boolean changed = true;
+
+		@Override
+		public void run() {
+			while(awaitChange()) {
+				player.play();
+			}
+		}
+
+		/*
+		 * Blocks until something changed or the thread is stopped.
+		 * Returns false once the thread should finish.
+		 */
+		private synchronized boolean awaitChange() {
+			while(!changed && !done) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					done = true;
+				}
+			}
+			changed = false;
+			return !done;
+		}
+
+		/*
+		 * Wakes the thread up so that it checks the queue again.
+		 * A change that happens while the player is busy is remembered,
+		 * so no wake up is ever lost.
+		 */
+		public synchronized void signal() {
+			changed = true;
+			notifyAll();
+		}
+
+		public synchronized void stopWork() {
+			done = true;
+			notifyAll();
+		}
+
+	}
+}
@@ -1,6 +1,8 @@
 package tests;
 
 import java.util.Optional;
+
+import controller_view.PlayAnMP3;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
 import javafx.event.ActionEvent;
@@ -63,7 +65,7 @@ public class FunctionalSpike extends BorderPane{
 		s1 = "Capture";
 		s2 = "Loping Sting";
 		queue = FXCollections.observableArrayList();
-		songSelector = new SongSelector(queue, false);
+		songSelector = new SongSelector(queue, false, new PlayAnMP3());
 		
 		InitGUI();
 	}
@@ -1,6 +1,41 @@
 package tests;
 
 import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+import javax.management.ObjectName;
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+
 import org.junit.Test;
 import model.*;
 
@@ -74,4 +109,1235 @@ public class JUnitTest {
 		Account user = new Account("username", "password");
 		assertTrue(collection.admin(user) == false);
 	}
+	
+	/**
+	 * This tests the song queue
+	 */
+	@Test
+	public void testPlayQueue() {
+		PlayQueue queue = new PlayQueue(null);
+		assertTrue(queue.isEmpty());
+		assertTrue(queue.remove() == null);
+		long version = queue.getVersion();
+		
+		for (int i = 0; i < 12; i++) {
+			queue.add("song" + i);
+		}
+		for (int i = 0; i < 10; i++) {
+			assertTrue(queue.remove().equals("song" + i));
+		}
+		//wraps around the end of the buffer and then grows it
+		for (int i = 12; i < 40; i++) {
+			queue.add("song" + i);
+		}
+		assertTrue(queue.getVersion() != version);
+		assertTrue(queue.size() == 30);
+		assertTrue(queue.peek().equals("song10"));
+		assertTrue(queue.snapshot().get(29).equals("song39"));
+	}
+	
+	/**
+	 * This tests that songs and users never go over their limits
+	 * when many requests arrive at the same time
+	 */
+	@Test
+	public void testConcurrentRequests() throws InterruptedException {
+		SongSelector songSelector = new SongSelector(null, false);
+		Account sharedUser = new Account("shared", "1");
+		String[] songs = {"Determined Tumbao", "Loping Sting", "Swing Cheese", "The Curtain Rises"};
+		AtomicInteger captureAdded = new AtomicInteger(0);
+		AtomicInteger sharedAdded = new AtomicInteger(0);
+		CountDownLatch start = new CountDownLatch(1);
+		Thread[] threads = new Thread[32];
+		
+		for (int i = 0; i < threads.length; i++) {
+			Account user = new Account("user" + i, "1");
+			String song = songs[i % songs.length];
+			threads[i] = new Thread(() -> {
+				try {
+					start.await();
+				} catch (InterruptedException e) {
+					return;
+				}
+				if (songSelector.addToQueue("Capture", user, true)) {
+					captureAdded.incrementAndGet();
+				}
+				if (songSelector.requestSong(song, sharedUser, true) == Admission.ACCEPTED) {
+					sharedAdded.incrementAndGet();
+				}
+			});
+			threads[i].start();
+		}
+		start.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		
+		assertTrue(captureAdded.get() == 3);
+		assertTrue(songSelector.getSong("Capture").getTimesPlayedToday() == 3);
+		assertTrue(sharedAdded.get() == 3);
+		assertTrue(sharedUser.numberSongPlayedByUserToday() == 3);
+	}
+	
+	/**
+	 * This tests that the daily limits start over on a new day
+	 * while the total time played is kept
+	 */
+	@Test
+	public void testNewDay() {
+		long today = DayClock.today();
+		try {
+			SongSelector songSelector = new SongSelector(null, false);
+			Account user = new Account("username", "password");
+			for (int i = 0; i < 3; i++) {
+				assertTrue(songSelector.addToQueue("Capture", user, true));
+			}
+			assertTrue(songSelector.requestSong("Capture", user, true) == Admission.USER_LIMIT);
+			assertTrue(user.getTimePlayed() == 15);
+			
+			DayClock.setToday(today + 1);
+			assertTrue(user.numberSongPlayedByUserToday() == 0);
+			assertTrue(songSelector.getSong("Capture").getTimesPlayedToday() == 0);
+			assertTrue(songSelector.addToQueue("Capture", user, true));
+			assertTrue(user.numberSongPlayedByUserToday() == 1);
+			assertTrue(user.getTimePlayed() == 20);
+		}
+		finally {
+			DayClock.useSystemClock();
+		}
+	}
+	
+	/**
+	 * This tests that changes written to the log come back when it is replayed
+	 */
+	@Test
+	public void testWriteAheadLog() throws IOException {
+		File file = File.createTempFile("JukeboxLog", null);
+		file.deleteOnExit();
+		
+		WriteAheadLog log = new WriteAheadLog(file.getPath());
+		assertTrue(log.replay().isEmpty());
+		JukeboxAccountCollection accounts = new JukeboxAccountCollection(false);
+		SongSelector songSelector = new SongSelector(null, false);
+		accounts.setJournal(log);
+		songSelector.setJournal(log);
+		accounts.addAccount("alexis", "tinoco");
+		accounts.removeAccount("Ryan");
+		assertTrue(songSelector.addToQueue("Capture", accounts.getAccount("alexis"), true));
+		assertTrue(songSelector.addToQueue("Swing Cheese", accounts.getAccount("alexis"), true));
+		songSelector.getQueue().add("Capture");
+		songSelector.getQueue().add("Swing Cheese");
+		songSelector.closeAll();
+		log.close();
+		
+		//a record cut off in the middle of a write is dropped
+		RandomAccessFile torn = new RandomAccessFile(file, "rw");
+		torn.seek(torn.length());
+		torn.writeInt(40);
+		torn.close();
+		
+		log = new WriteAheadLog(file.getPath());
+		JukeboxAccountCollection replayedAccounts = new JukeboxAccountCollection(false);
+		SongSelector replayedSongs = new SongSelector(null, false);
+		for (WriteAheadLog.Record record : log.replay()) {
+			replayedAccounts.replay(record);
+			replayedSongs.replay(record);
+			//replaying a change twice does no harm
+			replayedAccounts.replay(record);
+			replayedSongs.replay(record);
+		}
+		replayedSongs.closeAll();
+		
+		assertTrue(replayedAccounts.getAccount("Ryan") == null);
+		assertTrue(replayedAccounts.getAccount("alexis").numberSongPlayedByUserToday() == 2);
+		assertTrue(replayedAccounts.getAccount("alexis").getTimePlayed() == 20);
+		assertTrue(replayedSongs.getSong("Capture").getTimesPlayedToday() == 1);
+		assertTrue(replayedSongs.getQueue().size() == 2);
+		assertTrue(replayedSongs.getQueue().peek().equals("Capture"));
+		//each play is in the history once, with the time it was asked for
+		assertTrue(replayedSongs.getHistory().size() == 2);
+		assertTrue(replayedSongs.getHistory().plays(0, Long.MAX_VALUE).toString().equals(
+				songSelector.getHistory().plays(0, Long.MAX_VALUE).toString()));
+		
+		//after compaction only changes made after the snapshot are left
+		log.compact(() -> { });
+		assertTrue(log.size() == 0);
+		
+		//a snapshot that cannot be written leaves the log as it was
+		log.append(new WriteAheadLog.Record(WriteAheadLog.Type.ADD_ACCOUNT, "Ryan", "secret", 0, 0));
+		log.append(new WriteAheadLog.Record(WriteAheadLog.Type.REMOVE_ACCOUNT, "alexis", "", 0, 0));
+		try {
+			log.compact(() -> {
+				throw new IOException("No space left on device");
+			});
+			assertTrue(false);
+		} catch (IOException e) {
+			assertTrue(log.size() > 0);
+		}
+		log.close();
+		log = new WriteAheadLog(file.getPath());
+		List<WriteAheadLog.Record> kept = log.replay();
+		assertTrue(kept.size() == 2);
+		assertTrue(kept.get(0).getName().equals("Ryan"));
+		assertTrue(kept.get(1).getType() == WriteAheadLog.Type.REMOVE_ACCOUNT);
+		log.close();
+	}
+	
+	/**
+	 * This tests that names of any length are logged, that a change too big
+	 * for the log is turned down and that a damaged record is not taken for
+	 * the end of the log
+	 */
+	@Test
+	public void testWriteAheadLogRecords() throws IOException {
+		File file = File.createTempFile("JukeboxLog", null);
+		file.deleteOnExit();
+		
+		//a record written by an older jukebox, with writeUTF strings, is still read
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream older = new DataOutputStream(bytes);
+		older.writeByte(WriteAheadLog.Type.REMOVE_ACCOUNT.ordinal());
+		older.writeUTF("Ryan");
+		older.writeUTF("");
+		older.writeLong(0);
+		older.writeLong(0);
+		writeRawRecord(file, bytes.toByteArray());
+		
+		char[] longName = new char[70000];
+		Arrays.fill(longName, 'a');
+		WriteAheadLog log = new WriteAheadLog(file.getPath());
+		assertTrue(log.replay().size() == 1);
+		log.append(new WriteAheadLog.Record(WriteAheadLog.Type.ADD_ACCOUNT, new String(longName), "secret", 0, 0));
+		log.append(new WriteAheadLog.Record(WriteAheadLog.Type.REMOVE_ACCOUNT, "alexis", "", 0, 0));
+		
+		//a change too big for the log is turned down before anything is logged
+		char[] hugeName = new char[(1 << 20) + 1];
+		Arrays.fill(hugeName, 'a');
+		JukeboxAccountCollection accounts = new JukeboxAccountCollection(false);
+		accounts.setJournal(log);
+		try {
+			accounts.addAccount(new String(hugeName), "secret");
+			assertTrue(false);
+		} catch (IllegalArgumentException e) {
+			assertTrue(accounts.getAccount(new String(hugeName)) == null);
+		}
+		log.close();
+		
+		log = new WriteAheadLog(file.getPath());
+		List<WriteAheadLog.Record> records = log.replay();
+		log.close();
+		assertTrue(records.size() == 3);
+		assertTrue(records.get(0).getName().equals("Ryan"));
+		assertTrue(records.get(1).getName().equals(new String(longName)));
+		assertTrue(records.get(2).getName().equals("alexis"));
+		
+		//a record with a good checksum that cannot be read stops the replay and keeps the file
+		writeRawRecord(file, new byte[] { (byte) 0x80 });
+		long length = file.length();
+		log = new WriteAheadLog(file.getPath());
+		try {
+			log.replay();
+			assertTrue(false);
+		} catch (IOException e) {
+			assertTrue(file.length() == length);
+		}
+		log.close();
+	}
+	
+	/*
+	 * Helper method
+	 * Appends a record with a good checksum to a log file
+	 */
+	private static void writeRawRecord(File file, byte[] body) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(body, 0, body.length);
+		RandomAccessFile raw = new RandomAccessFile(file, "rw");
+		raw.seek(raw.length());
+		raw.writeInt(body.length);
+		raw.writeLong(crc.getValue());
+		raw.write(body);
+		raw.close();
+	}
+	
+	@Test
+	public void testSongCatalog() throws IOException {
+		File file = File.createTempFile("catalog", ".bin");
+		file.deleteOnExit();
+		
+		SongCatalog catalog = new SongCatalog();
+		assertTrue(catalog.add(new Song("Swing Cheese", "songfiles/SwingCheese.mp3", 15)));
+		assertTrue(catalog.add(new Song("Capture", "songfiles/Capture.mp3", 5, "Game Freak")));
+		assertFalse(catalog.add(new Song("Capture", "songfiles/Capture.mp3", 5)));
+		assertTrue(catalog.add(new Song("D\u00e9j\u00e0 Vu", "songfiles/DejaVu.mp3", 200)));
+		catalog.getSong("Capture").addATimePlayed();
+		catalog.write(file.getPath());
+		assertTrue(SongCatalog.isCatalogFile(file.getPath()));
+		
+		//songs are read back in place, sorted by name, with their play counts
+		SongCatalog opened = SongCatalog.open(file.getPath());
+		assertTrue(opened.size() == 3);
+		assertTrue(opened.getSong(0).getSongName().equals("Capture"));
+		assertTrue(opened.getSong("Capture") == opened.getSong(0));
+		assertTrue(opened.getSong("Capture").getTimesPlayedToday() == 1);
+		assertTrue(opened.getSong("Capture").getArtist().equals("Game Freak"));
+		assertTrue(opened.getSong("D\u00e9j\u00e0 Vu").getSongDuration() == 200);
+		assertTrue(opened.getSong("Swing Cheese").getPath().equals("songfiles/SwingCheese.mp3"));
+		assertTrue(opened.getSong("Loping Sting") == null);
+		
+		//songs added later are kept when the catalog is written again
+		opened.add(new Song("Loping Sting", "songfiles/LopingSting.mp3", 5));
+		opened.write(file.getPath());
+		assertTrue(SongCatalog.open(file.getPath()).getSong("Loping Sting").getSongDuration() == 5);
+		assertTrue(SongCatalog.open(file.getPath()).getSong(1).getSongName().equals("D\u00e9j\u00e0 Vu"));
+		
+		//after writing, the catalog reads the new file with every song where it was
+		SongCatalog fresh = SongCatalog.open(file.getPath());
+		fresh.add(new Song("Aardvark", "songfiles/Capture.mp3", 5));
+		fresh.write(file.getPath());
+		assertTrue(fresh.size() == 5);
+		assertTrue(fresh.getSong(0).getSongName().equals("Capture"));
+		assertTrue(fresh.getSong(4).getSongName().equals("Aardvark"));
+		assertTrue(fresh.getSong("Swing Cheese") == fresh.getSong(3));
+		assertTrue(fresh.getSong("Loping Sting").getSongDuration() == 5);
+		assertTrue(fresh.order(SongCatalog.SortKey.TITLE)[0] == 4);
+		assertTrue(SongCatalog.open(file.getPath()).getSong(0).getSongName().equals("Aardvark"));
+		
+		//a name too long for the file is turned down
+		char[] longName = new char[70000];
+		Arrays.fill(longName, 'a');
+		assertFalse(SongCatalog.fits(new String(longName)));
+		assertTrue(SongCatalog.fits("D\u00e9j\u00e0 Vu"));
+		
+		//a catalog that cannot be moved into place leaves no file behind and keeps its songs
+		File taken = Files.createTempDirectory("catalog").toFile();
+		File inside = new File(taken, "song");
+		inside.createNewFile();
+		try {
+			fresh.write(taken.getPath());
+			assertTrue(false);
+		} catch (IOException e) {
+			assertFalse(new File(taken.getPath() + ".tmp").exists());
+			assertTrue(fresh.getSong("Swing Cheese") == fresh.getSong(3));
+		}
+		inside.delete();
+		taken.delete();
+		try {
+			fresh.add(new Song(new String(longName), "songfiles/Capture.mp3", 5));
+			assertTrue(false);
+		} catch (IllegalArgumentException e) {
+			assertTrue(fresh.size() == 5);
+		}
+	}
+	
+	@Test
+	public void testSongLibraryScanner() throws IOException {
+		File cache = File.createTempFile("metadata", ".cache");
+		cache.delete();
+		cache.deleteOnExit();
+		
+		SongLibraryScanner scanner = new SongLibraryScanner("songfiles", cache.getPath());
+		SortedMap<String, Mp3Metadata> songs = scanner.scan();
+		assertTrue(scanner.getFilesParsed() == songs.size());
+		Mp3Metadata capture = songs.get(new File("songfiles", "Capture.mp3").getPath());
+		assertTrue(capture.getDurationSeconds() == 5);
+		assertTrue(capture.getArtist().equals("Game Freak"));
+		assertTrue(songs.get(new File("songfiles", "LopingSting.mp3").getPath()).getTitle().equals("Loping Sting"));
+		
+		//unchanged files come from the cache on the next start
+		scanner = new SongLibraryScanner("songfiles", cache.getPath());
+		assertTrue(scanner.scan().size() == songs.size());
+		assertTrue(scanner.getFilesParsed() == 0);
+		
+		SongSelector songSelector = new SongSelector(null, false);
+		assertTrue(songSelector.getSong("Swing Cheese").getArtist().equals("FreePlay Music"));
+		assertTrue(songSelector.getSong("Swing Cheese").getSongDuration() == 15);
+		songSelector.closeAll();
+	}
+	
+	@Test
+	public void testSimulatedPlayback() throws InterruptedException {
+		//five second songs are over in five milliseconds
+		SimulatedAudioSink sink = new SimulatedAudioSink(1000);
+		SongSelector songSelector = new SongSelector(null, false, sink);
+		JukeboxAccountCollection accounts = new JukeboxAccountCollection(false);
+		accounts.addAccount("Ryan", "pass");
+		Account user = accounts.getAccount("Ryan");
+		
+		assertTrue(songSelector.requestSong("Capture", user, false) == Admission.ACCEPTED);
+		assertTrue(songSelector.requestSong("Loping Sting", user, false) == Admission.ACCEPTED);
+		assertTrue(songSelector.requestSong("Capture", user, false) == Admission.ACCEPTED);
+		
+		long deadline = System.currentTimeMillis() + 5000;
+		while (sink.getSongsPlayed() < 3 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		assertTrue(sink.getSongsPlayed() == 3);
+		assertTrue(songSelector.getQueue().isEmpty());
+		assertTrue(songSelector.songPercentage() == 0.0);
+		songSelector.closeAll();
+	}
+	
+	@Test
+	public void testSessions() throws InterruptedException {
+		JukeboxAccountCollection accountCollection = new JukeboxAccountCollection(false);
+		accountCollection.addAccount("alexis", "tinoco");
+		accountCollection.addAccount("david", "wang");
+		//long enough that the log ins below, which hash at full cost, do not run it out
+		LoginLogoutSystem sessions = new LoginLogoutSystem(accountCollection, 2000);
+		
+		//many users, and the same user twice, can be logged in at once
+		String alexis = sessions.openSession("alexis", "tinoco");
+		String david = sessions.openSession("david", "wang");
+		String alexisAgain = sessions.openSession("alexis", "tinoco");
+		assertTrue(sessions.openSession("david", "wrong") == null);
+		assertFalse(alexis.equals(alexisAgain));
+		assertTrue(sessions.getAccount(alexis).getAccountName().equals("alexis"));
+		assertTrue(sessions.getAccount(david).getAccountName().equals("david"));
+		assertTrue(sessions.getSessionCount() == 3);
+		
+		assertTrue(sessions.closeSession(alexisAgain));
+		assertFalse(sessions.closeSession(alexisAgain));
+		assertTrue(sessions.getAccount(alexisAgain) == null);
+		
+		//removing an account ends its sessions
+		accountCollection.removeAccount("david");
+		assertTrue(sessions.getAccount(david) == null);
+		
+		//sessions that are not used run out and are swept
+		long deadline = System.currentTimeMillis() + 10000;
+		while (sessions.getSessionCount() > 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(20);
+		}
+		assertTrue(sessions.getSessionCount() == 0);
+		assertTrue(sessions.getAccount(alexis) == null);
+		sessions.close();
+	}
+	
+	@Test
+	public void testAsyncLogIn() throws Exception {
+		JukeboxAccountCollection accountCollection = new JukeboxAccountCollection(false);
+		//an account saved in plain text by an older jukebox
+		accountCollection.replay(new WriteAheadLog.Record(WriteAheadLog.Type.ADD_ACCOUNT, "old", "plain", 0, 0));
+		LoginLogoutSystem sessions = new LoginLogoutSystem(accountCollection);
+		
+		assertTrue(sessions.openSessionAsync("old", "wrong").get() == null);
+		assertTrue(sessions.openSessionAsync("nobody", "plain").get() == null);
+		String token = sessions.openSessionAsync("old", "plain").get();
+		assertTrue(sessions.getAccount(token).getAccountName().equals("old"));
+		
+		//the password was hashed at log in and still checks out
+		Account old = accountCollection.getAccount("old");
+		assertFalse(accountCollection.rehashIfNeeded(old, "plain"));
+		assertTrue(old.checkPassword("plain"));
+		assertFalse(old.checkPassword("wrong"));
+		assertTrue(sessions.openSession("Ryan", "4444") != null);
+		sessions.close();
+		
+		//once the line of waiting log ins is full, more are turned away
+		Authenticator authenticator = new Authenticator(accountCollection, 1, 1);
+		List<CompletableFuture<Account>> checks = new ArrayList<CompletableFuture<Account>>();
+		for (int i = 0; i < 10; i++) {
+			checks.add(authenticator.verify("Ryan", "4444"));
+		}
+		int turnedAway = 0;
+		for (CompletableFuture<Account> check : checks) {
+			try {
+				assertTrue(check.get().getAccountName().equals("Ryan"));
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof RejectedExecutionException);
+				turnedAway++;
+			}
+		}
+		assertTrue(turnedAway > 0);
+		authenticator.close();
+	}
+	
+	/**
+	 * This tests the load simulator over a few virtual days
+	 */
+	@Test
+	public void testLoadSimulator() {
+		LoadSimulator.Settings settings = LoadSimulator.Settings.parse(new String[] {
+				"users=20", "songs=50", "days=3", "requestsPerDay=2000" });
+		LoadSimulator.Report report = new LoadSimulator(settings).run();
+		
+		//every request was either admitted or turned away for a reason
+		long outcomes = 0;
+		for (Admission outcome : Admission.values()) {
+			outcomes += report.getCount(outcome);
+		}
+		assertTrue(report.getRequests() == outcomes);
+		assertTrue(report.getAdmitted() == report.getCount(Admission.ACCEPTED));
+		
+		//no user gets more than 3 songs a day, and midnight gives everyone 3 more
+		for (int day = 0; day < 3; day++) {
+			assertTrue(report.getAdmittedOnDay(day) > 0);
+			assertTrue(report.getAdmittedOnDay(day) <= 20 * 3);
+		}
+		assertTrue(report.getCount(Admission.USER_LIMIT) > 0);
+		assertTrue(report.getWaitPercentile(50) <= report.getWaitPercentile(99));
+		
+		//the history and the statistics see each song on the simulated day it was asked for
+		for (int day = 0; day < 3; day++) {
+			assertTrue(report.getPlayedOnDay(day) == report.getAdmittedOnDay(day));
+			assertTrue(report.getMostRequestedOnDay(day) != null);
+		}
+	}
+	
+	/**
+	 * This tests searching songs by title, artist and file name
+	 */
+	@Test
+	public void testSongSearch() {
+		SongCatalog catalog = new SongCatalog();
+		catalog.add(new Song("Danse Macabre", "songfiles/DanseMacabreViolinHook.mp3", 34, "Saint-Sa\u00ebns"));
+		catalog.add(new Song("Swing Cheese", "songfiles/SwingCheese.mp3", 15, "FreePlay Music"));
+		catalog.add(new Song("The Curtain Rises", "songfiles/TheCurtainRises.mp3", 28));
+		SongSearchIndex index = new SongSearchIndex(catalog);
+		assertTrue(index.size() == 3);
+		
+		//case and accents do not matter, and words can be found anywhere
+		assertTrue(SongSearchIndex.normalize(" Saint-Sa\u00ebns! ").equals("saint saens"));
+		assertTrue(index.search("MACABRE", 10).get(0).getSongName().equals("Danse Macabre"));
+		assertTrue(index.search("saens", 10).size() == 1);
+		assertTrue(index.search("cabr", 10).size() == 1);
+		assertTrue(index.search("violinhook", 10).size() == 1);
+		
+		//short words must start a word, every word must match
+		assertTrue(index.search("s", 10).size() == 2);
+		assertTrue(index.search("s m", 10).size() == 2);
+		assertTrue(index.search("sw c", 10).get(0).getSongName().equals("Swing Cheese"));
+		assertTrue(index.search("curtain swing", 10).isEmpty());
+		assertTrue(index.search("zzz", 10).isEmpty());
+		assertTrue(index.search("  ", 10).isEmpty());
+		assertTrue(index.search("s", 1).size() == 1);
+		
+		//songs added to the catalog are found right away
+		catalog.add(new Song("D\u00e9j\u00e0 Vu", "songfiles/Capture.mp3", 5, "Beyonc\u00e9"));
+		assertTrue(index.size() == 4);
+		assertTrue(index.search("deja beyonce", 10).get(0).getSongName().equals("D\u00e9j\u00e0 Vu"));
+	}
+	
+	/**
+	 * This tests the sorted orders of the song catalog
+	 */
+	@Test
+	public void testSongCatalogOrder() throws IOException {
+		File file = File.createTempFile("catalog", ".bin");
+		file.deleteOnExit();
+		SongCatalog written = new SongCatalog();
+		written.add(new Song("Swing Cheese", "songfiles/SwingCheese.mp3", 15, "FreePlay Music"));
+		written.add(new Song("Capture", "songfiles/Capture.mp3", 5, "Game Freak"));
+		written.add(new Song("The Curtain Rises", "songfiles/TheCurtainRises.mp3", 28));
+		written.write(file.getPath());
+		
+		//file songs are sorted by title, added songs go at the end
+		SongCatalog catalog = SongCatalog.open(file.getPath());
+		catalog.add(new Song("Loping Sting", "songfiles/LopingSting.mp3", 5, "Anonymous"));
+		catalog.getSong("The Curtain Rises").addATimePlayed();
+		catalog.getSong("The Curtain Rises").addATimePlayed();
+		catalog.getSong("Loping Sting").addATimePlayed();
+		assertTrue(catalog.getSong(3).getSongName().equals("Loping Sting"));
+		
+		//each order lists positions, ties keep catalog order
+		assertTrue(Arrays.equals(catalog.order(SongCatalog.SortKey.TITLE), new int[] { 0, 3, 1, 2 }));
+		assertTrue(Arrays.equals(catalog.order(SongCatalog.SortKey.ARTIST), new int[] { 2, 3, 1, 0 }));
+		assertTrue(Arrays.equals(catalog.order(SongCatalog.SortKey.DURATION), new int[] { 0, 3, 1, 2 }));
+		assertTrue(Arrays.equals(catalog.order(SongCatalog.SortKey.PLAYS), new int[] { 0, 1, 3, 2 }));
+		
+		//orders follow new songs and plays, and writing moves no song
+		catalog.add(new Song("Danse Macabre", "songfiles/DanseMacabreViolinHook.mp3", 34));
+		catalog.getSong("Capture").addATimePlayed();
+		catalog.write(file.getPath());
+		assertTrue(catalog.getSong(3).getSongName().equals("Loping Sting"));
+		assertTrue(Arrays.equals(catalog.order(SongCatalog.SortKey.TITLE), new int[] { 0, 4, 3, 1, 2 }));
+		assertTrue(Arrays.equals(catalog.order(SongCatalog.SortKey.PLAYS), new int[] { 1, 4, 0, 3, 2 }));
+		assertTrue(SongCatalog.open(file.getPath()).getSong(1).getSongName().equals("Danse Macabre"));
+	}
+	
+	/**
+	 * This tests that the catalog reports the plays of each song played
+	 */
+	@Test
+	public void testPlaysFeed() {
+		SongSelector songSelector = new SongSelector(null, false);
+		Account user = new Account("feed", "feed");
+		List<String> played = new ArrayList<String>();
+		songSelector.getSongCollection().addPlaysListener(song -> played.add(song.getSongName()));
+		
+		//only admitted requests are reported, once per request
+		assertTrue(songSelector.requestSong("Capture", user, true) == Admission.ACCEPTED);
+		assertTrue(songSelector.requestSong("Capture", user, true) == Admission.ACCEPTED);
+		assertTrue(songSelector.requestSong("Swing Cheese", user, true) == Admission.ACCEPTED);
+		assertTrue(songSelector.requestSong("Capture", user, true) == Admission.USER_LIMIT);
+		assertTrue(played.size() == 3);
+		assertTrue(played.get(2).equals("Swing Cheese"));
+		songSelector.closeAll();
+	}
+	
+	/**
+	 * This tests the metrics, which are shared, so only what changes is checked
+	 */
+	@Test
+	public void testMetrics() throws Exception {
+		JukeboxMetrics metrics = JukeboxMetrics.get();
+		long accepted = metrics.getRequestsAccepted();
+		long userLimit = metrics.getRequestsUserLimit();
+		long unknown = metrics.getRequestsUnknownSong();
+		long waits = metrics.getQueueWait().getCount();
+		long gaps = metrics.getSongGap().getCount();
+		
+		SimulatedAudioSink sink = new SimulatedAudioSink(1000);
+		SongSelector songSelector = new SongSelector(null, false, sink);
+		Account user = new Account("metrics", "metrics");
+		assertTrue(songSelector.requestSong("Capture", user, false) == Admission.ACCEPTED);
+		assertTrue(songSelector.requestSong("Loping Sting", user, false) == Admission.ACCEPTED);
+		assertTrue(songSelector.requestSong("Swing Cheese", user, false) == Admission.ACCEPTED);
+		assertTrue(songSelector.requestSong("Capture", user, false) == Admission.USER_LIMIT);
+		assertTrue(songSelector.requestSong("Nothing", user, false) == Admission.UNKNOWN_SONG);
+		assertTrue(metrics.getRequestsAccepted() - accepted == 3);
+		assertTrue(metrics.getRequestsUserLimit() - userLimit == 1);
+		assertTrue(metrics.getRequestsUnknownSong() - unknown == 1);
+		//a batch is counted once, with the answer it got
+		assertTrue(songSelector.addAllToQueue(Arrays.asList("Capture", "Nothing", "Swing Cheese"),
+				new Account("batch", "batch")) == Admission.UNKNOWN_SONG);
+		assertTrue(metrics.getRequestsUnknownSong() - unknown == 2);
+		assertTrue(metrics.getRequestsAccepted() - accepted == 3);
+		
+		//every song that starts records its wait, songs played back to back their gap
+		long deadline = System.currentTimeMillis() + 5000;
+		while (sink.getSongsPlayed() < 3 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		assertTrue(metrics.getQueueWait().getCount() - waits >= 3);
+		assertTrue(metrics.getSongGap().getCount() - gaps >= 2);
+		songSelector.closeAll();
+		
+		//times go in buckets that double, a percentile is the top of its bucket
+		JukeboxMetrics.Histogram writes = metrics.getUsersWrite();
+		for (int i = 0; i < 100; i++) {
+			writes.record(TimeUnit.MILLISECONDS.toNanos(3));
+		}
+		assertTrue(writes.getPercentileMillis(50) > 3 && writes.getPercentileMillis(50) <= 6);
+		
+		//the same numbers can be read as text and over JMX
+		String dump = metrics.dump();
+		assertTrue(dump.contains("jukebox_requests_total{outcome=\"user_limit\"} " + metrics.getRequestsUserLimit()));
+		assertTrue(dump.contains("jukebox_users_write_seconds_bucket{le=\"+Inf\"} " + writes.getCount()));
+		JukeboxMetrics.register();
+		JukeboxMetrics.register();
+		Object remote = ManagementFactory.getPlatformMBeanServer().getAttribute(
+				new ObjectName(JukeboxMetrics.OBJECT_NAME), "RequestsAccepted");
+		assertTrue(((Long) remote) == metrics.getRequestsAccepted());
+	}
+	
+	/**
+	 * This tests that the sink is told which song comes next while one plays
+	 */
+	@Test
+	public void testPrepareNextSong() throws InterruptedException {
+		//songs take as long as they really do, so the first one is still playing
+		SimulatedAudioSink simulated = new SimulatedAudioSink();
+		List<String> prepared = new CopyOnWriteArrayList<String>();
+		AudioSink sink = new AudioSink() {
+			@Override
+			public void play(Song song, Runnable onFinished) {
+				simulated.play(song, onFinished);
+			}
+			
+			@Override
+			public void prepare(Song next) {
+				prepared.add(next.getSongName());
+			}
+			
+			@Override
+			public double getProgress() {
+				return simulated.getProgress();
+			}
+			
+			@Override
+			public void close() {
+				simulated.close();
+			}
+		};
+		SongSelector songSelector = new SongSelector(null, false, sink);
+		Account user = new Account("prepare", "prepare");
+		assertTrue(songSelector.requestSong("Capture", user, false) == Admission.ACCEPTED);
+		assertTrue(songSelector.requestSong("Loping Sting", user, false) == Admission.ACCEPTED);
+		assertTrue(songSelector.requestSong("Swing Cheese", user, false) == Admission.ACCEPTED);
+		
+		long deadline = System.currentTimeMillis() + 5000;
+		while (prepared.isEmpty() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		Thread.sleep(50);
+		//only the song right after the one playing, and only once
+		assertTrue(prepared.equals(Arrays.asList("Loping Sting")));
+		songSelector.closeAll();
+	}
+	
+	/**
+	 * This tests the cache that keeps the least recently used values out
+	 */
+	@Test
+	public void testLruCache() {
+		LruCache<String, String> cache = new LruCache<String, String>(2);
+		AtomicInteger made = new AtomicInteger();
+		assertTrue(cache.get("a", key -> key + made.incrementAndGet()).equals("a1"));
+		assertTrue(cache.get("b", key -> key + made.incrementAndGet()).equals("b2"));
+		//a is used again, so b is the one dropped for c
+		assertTrue(cache.get("a", key -> key + made.incrementAndGet()).equals("a1"));
+		assertTrue(cache.get("c", key -> key + made.incrementAndGet()).equals("c3"));
+		assertTrue(cache.size() == 2);
+		assertTrue(cache.get("b", key -> key + made.incrementAndGet()).equals("b4"));
+		assertTrue(cache.get("c", key -> key + made.incrementAndGet()).equals("c3"));
+		assertTrue(cache.getHits() == 2);
+		assertTrue(cache.getMisses() == 4);
+		assertTrue(cache.getEvictions() == 2);
+		
+		assertTrue(cache.remove("c").equals("c3"));
+		assertTrue(cache.get("c", key -> key + made.incrementAndGet()).equals("c5"));
+		assertTrue(made.get() == 5);
+	}
+	
+	/**
+	 * This tests the PCM sink with a generated sound file, written to memory instead of a sound card
+	 */
+	@Test
+	public void testPcmAudioSink() throws Exception {
+		//two seconds of CD sound, more than the ring buffer holds
+		AudioFormat format = new AudioFormat(44100, 16, 2, true, false);
+		byte[] samples = new byte[2 * 44100 * format.getFrameSize()];
+		for (int i = 0; i < samples.length; i++) {
+			samples[i] = (byte) (i * 31);
+		}
+		assertTrue(samples.length > PcmAudioSink.BUFFER_SIZE);
+		File wav = File.createTempFile("tone", ".wav");
+		wav.deleteOnExit();
+		AudioSystem.write(new AudioInputStream(new ByteArrayInputStream(samples), format,
+				samples.length / format.getFrameSize()), AudioFileFormat.Type.WAVE, wav);
+		
+		ByteArrayOutputStream played = new ByteArrayOutputStream();
+		PcmAudioSink sink = new PcmAudioSink(PcmAudioSink.streamOutput(played));
+		assertTrue(sink.getProgress() == 0.0);
+		CountDownLatch tone = new CountDownLatch(1);
+		sink.play(new Song("Tone", wav.getPath(), 2), tone::countDown);
+		assertTrue(tone.await(5, TimeUnit.SECONDS));
+		//every frame came out, in order, and the song only ended after the last one
+		assertTrue(Arrays.equals(played.toByteArray(), samples));
+		assertTrue(sink.getFramePosition() == 0);
+		
+		//only files javax.sound can read are said to be playable
+		assertTrue(PcmAudioSink.canPlay(wav.getPath()));
+		assertFalse(PcmAudioSink.canPlay("songfiles/Missing.wav"));
+		
+		//a song that cannot be played ends right away
+		CountDownLatch missing = new CountDownLatch(1);
+		sink.play(new Song("Missing", "songfiles/Missing.wav", 2), missing::countDown);
+		assertTrue(missing.await(5, TimeUnit.SECONDS));
+		sink.close();
+	}
+	
+	/**
+	 * This tests the play history, its range queries and how little room a play takes
+	 */
+	@Test
+	public void testPlayHistory() throws IOException, InterruptedException {
+		PlayHistory history = new PlayHistory();
+		long march = LocalDate.of(2026, 3, 1).atStartOfDay().toEpochSecond(ZoneOffset.UTC);
+		long april = LocalDate.of(2026, 4, 1).atStartOfDay().toEpochSecond(ZoneOffset.UTC);
+		//a play every ten seconds from the middle of march to the middle of april, by 500 users
+		long start = april - 15 * 24 * 3600;
+		int count = 250000;
+		for (int i = 0; i < count; i++) {
+			history.record("user" + (i % 500), "song" + (i % 2000), start + i * 10L, i % 2000 == 7 && i % 3 == 0 ? 99 : 180);
+		}
+		assertTrue(history.size() == count);
+		//a few bytes a play
+		assertTrue(history.getBytesUsed() < 6L * count);
+		
+		int inApril = (int) ((count * 10L - (april - start) + 9) / 10);
+		assertTrue(history.plays(april, april + 31 * 24 * 3600).size() == inApril);
+		List<PlayHistory.Play> user7 = history.playsByUser("user7", march, april);
+		assertTrue(user7.size() == history.countByUser("user7", march, april));
+		for (PlayHistory.Play play : user7) {
+			assertTrue(play.getUser().equals("user7"));
+			assertTrue(play.getTime() >= march && play.getTime() < april);
+			assertTrue(play.getSong().equals("song" + ((play.getTime() - start) / 10 % 2000)));
+		}
+		//plays of a song keep their own length
+		List<PlayHistory.Play> song7 = history.playsOfSong("song7", start, start + count * 10L);
+		assertTrue(song7.size() == count / 2000);
+		assertTrue(song7.get(0).getSeconds() == 180 && song7.get(1).getSeconds() == 99);
+		assertTrue(history.playsByUser("nobody", march, april).isEmpty());
+		
+		//it reads back the same, the chunk being filled included
+		File file = File.createTempFile("history", null);
+		file.deleteOnExit();
+		history.write(file.getPath());
+		PlayHistory read = PlayHistory.read(file.getPath());
+		assertTrue(read.size() == count);
+		assertTrue(read.countByUser("user7", march, april) == user7.size());
+		assertTrue(read.playsOfSong("song7", start, start + count * 10L).get(1).getSeconds() == 99);
+		//user100 played at midnight on the first of april
+		read.record("user100", "song7", april, 180);
+		assertTrue(read.playsByUser("user100", april, april + 1).size() == 2);
+		
+		//a play replayed from the log is added once, and only if the saved history does not have it
+		PlayHistory saved = new PlayHistory();
+		long first = saved.record("alexis", "Capture", march, 5);
+		saved.write(file.getPath());
+		long second = saved.record("alexis", "Swing Cheese", march + 60, 15);
+		PlayHistory restarted = PlayHistory.read(file.getPath());
+		restarted.restore(first, "alexis", "Capture", march, 5);
+		restarted.restore(second, "alexis", "Swing Cheese", march + 60, 15);
+		restarted.restore(second, "alexis", "Swing Cheese", march + 60, 15);
+		assertTrue(restarted.size() == 2);
+		assertTrue(restarted.playsByUser("alexis", march, april).get(1).getTime() == march + 60);
+		assertTrue(restarted.record("alexis", "Capture", april, 5) > second);
+		assertTrue(restarted.size() == 3);
+		
+		//a number whose play never reached the log is given up on after the replay
+		PlayHistory crashed = new PlayHistory();
+		crashed.restore(1, "alexis", "Capture", march, 5);
+		crashed.restore(3, "alexis", "Swing Cheese", march + 120, 15);
+		crashed.write(file.getPath());
+		long withGap = file.length();
+		crashed.closeGaps();
+		crashed.write(file.getPath());
+		assertTrue(file.length() == withGap - 8);
+		PlayHistory reread = PlayHistory.read(file.getPath());
+		reread.restore(3, "alexis", "Swing Cheese", march + 120, 15);
+		assertTrue(reread.size() == 2);
+		assertTrue(reread.record("alexis", "Capture", april, 5) == 4);
+		
+		//plays recorded from many threads at once are all kept
+		PlayHistory shared = new PlayHistory();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < 4; i++) {
+			String user = "user" + i;
+			Thread thread = new Thread(() -> {
+				for (int j = 0; j < 10000; j++) {
+					shared.record(user, "song" + (j % 10), april + j, 180);
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertTrue(shared.size() == 40000);
+		assertTrue(shared.countByUser("user3", april, april + 10000) == 10000);
+	}
+	
+	/**
+	 * This tests the most requested songs over windows of time, counted in little memory
+	 */
+	@Test
+	public void testRequestStatistics() throws InterruptedException {
+		//any song asked for more than once in 64 requests is always found
+		RequestStatistics statistics = new RequestStatistics(64);
+		long monday = LocalDate.of(2026, 3, 2).atStartOfDay(ZoneId.systemDefault()).toEpochSecond();
+		//every day song0 is asked for 50 times and song1 40 times, among 1000 requests for 500 other songs
+		for (int day = 0; day < 7; day++) {
+			long noon = monday + day * 86400 + 12 * 3600;
+			for (int i = 0; i < 1000; i++) {
+				String song = i % 20 == 0 ? "song0" : i % 25 == 1 ? "song1" : "other" + (i * 7 + day) % 500;
+				statistics.record(song, noon + i);
+			}
+		}
+		statistics.record("song2", monday + 6 * 86400 + 23 * 3600);
+		assertTrue(statistics.getRequests() == 7001);
+		
+		long sundayNight = monday + 6 * 86400 + 23 * 3600 + 60;
+		List<RequestStatistics.Entry> today = statistics.top(RequestStatistics.Window.TODAY, 2, sundayNight);
+		assertTrue(today.size() == 2);
+		assertTrue(today.get(0).getSong().equals("song0") && today.get(1).getSong().equals("song1"));
+		//a count can be too high, by at most its error, but never too low
+		assertTrue(today.get(0).getCount() >= 50 && today.get(0).getCount() - today.get(0).getError() <= 50);
+		List<RequestStatistics.Entry> week = statistics.top(RequestStatistics.Window.WEEK, 2, sundayNight);
+		assertTrue(week.get(0).getSong().equals("song0") && week.get(0).getCount() >= 350);
+		assertTrue(week.get(1).getSong().equals("song1") && week.get(1).getCount() >= 280);
+		//only the request from a minute ago is in the last hour
+		List<RequestStatistics.Entry> hour = statistics.top(RequestStatistics.Window.LAST_HOUR, 5, sundayNight);
+		assertTrue(hour.size() == 1 && hour.get(0).getSong().equals("song2") && hour.get(0).getCount() == 1);
+		//the next monday, the old days are out of the week
+		long nextMonday = monday + 7 * 86400 + 3600;
+		assertTrue(statistics.top(RequestStatistics.Window.TODAY, 5, nextMonday).isEmpty());
+		assertTrue(statistics.top(RequestStatistics.Window.WEEK, 1, nextMonday).get(0).getCount() < 350);
+		
+		//the song selector counts requests that are turned down too
+		SongSelector songSelector = new SongSelector(null, false);
+		Account user = new Account("board", "board");
+		for (int i = 0; i < 5; i++) {
+			songSelector.requestSong("Capture", user, true);
+		}
+		songSelector.requestSong("Nothing", user, true);
+		List<RequestStatistics.Entry> board = songSelector.getRequestStatistics().top(RequestStatistics.Window.TODAY, 5);
+		assertTrue(board.size() == 1 && board.get(0).getSong().equals("Capture") && board.get(0).getCount() == 5);
+		songSelector.closeAll();
+		
+		//requests counted from many threads at once are merged, none is lost
+		RequestStatistics shared = new RequestStatistics(64);
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < 4; i++) {
+			Thread thread = new Thread(() -> {
+				for (int j = 0; j < 1000; j++) {
+					shared.record(j % 4 == 0 ? "song0" : "other" + j % 100, monday + j);
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertTrue(shared.getRequests() == 4000);
+		List<RequestStatistics.Entry> merged = shared.top(RequestStatistics.Window.TODAY, 1, monday + 1000);
+		assertTrue(merged.get(0).getSong().equals("song0") && merged.get(0).getCount() >= 1000);
+		
+		//today is the day of the DayClock, even when it is set by hand
+		try {
+			DayClock.setToday(DayClock.today() + 3);
+			shared.record("later");
+			List<RequestStatistics.Entry> later = shared.top(RequestStatistics.Window.TODAY, 5);
+			assertTrue(later.size() == 1 && later.get(0).getSong().equals("later"));
+			assertTrue(DayClock.dayOf(DayClock.now()) == DayClock.today());
+		} finally {
+			DayClock.useSystemClock();
+		}
+	}
+	
+	/**
+	 * This tests zones playing side by side with the daily limits shared between them
+	 */
+	@Test
+	public void testZones() throws InterruptedException {
+		SimulatedAudioSink mainSink = new SimulatedAudioSink(1000);
+		SimulatedAudioSink patioSink = new SimulatedAudioSink(1000);
+		SongSelector songSelector = new SongSelector(null, false, mainSink);
+		Zone main = songSelector.getZone(SongSelector.MAIN_ZONE);
+		Zone patio = songSelector.addZone("patio", patioSink);
+		assertTrue(songSelector.getZones().size() == 2 && songSelector.getZones().get(1) == patio);
+		assertTrue(songSelector.getZone("patio") == patio && songSelector.getZone("attic") == null);
+		
+		//a user's 3 songs a day are for every zone together
+		Account user = new Account("zones", "zones");
+		assertTrue(songSelector.requestSong("Capture", user, main) == Admission.ACCEPTED);
+		assertTrue(songSelector.requestSong("Loping Sting", user, patio) == Admission.ACCEPTED);
+		assertTrue(songSelector.requestSong("Capture", user, patio) == Admission.ACCEPTED);
+		assertTrue(songSelector.requestSong("Swing Cheese", user, main) == Admission.USER_LIMIT);
+		
+		//so are a song's 3 plays, even when many users ask for it in many zones at once
+		int tries = 40;
+		SimulatedAudioSink barSink = new SimulatedAudioSink(1000);
+		Zone[] zones = { main, patio, songSelector.addZone("bar", barSink) };
+		AtomicInteger accepted = new AtomicInteger();
+		CountDownLatch start = new CountDownLatch(1);
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < tries; i++) {
+			Account someone = new Account("someone" + i, "pass");
+			Zone zone = zones[i % zones.length];
+			Thread thread = new Thread(() -> {
+				try {
+					start.await();
+				} catch (InterruptedException e) {
+					return;
+				}
+				if (songSelector.requestSong("Swing Cheese", someone, zone) == Admission.ACCEPTED) {
+					accepted.incrementAndGet();
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+		start.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertTrue(accepted.get() == 3);
+		
+		//each zone plays its own queue, all 6 songs let in are played once
+		long deadline = System.currentTimeMillis() + 5000;
+		while (mainSink.getSongsPlayed() + patioSink.getSongsPlayed() + barSink.getSongsPlayed() < 6
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		assertTrue(mainSink.getSongsPlayed() + patioSink.getSongsPlayed() + barSink.getSongsPlayed() == 6);
+		assertTrue(mainSink.getSongsPlayed() >= 1 && patioSink.getSongsPlayed() >= 2);
+		assertTrue(songSelector.getQueue() == main.getQueue());
+		
+		try {
+			songSelector.addZone("patio", new SimulatedAudioSink());
+			assertTrue(false);
+		} catch (IllegalArgumentException e) {
+			assertTrue(songSelector.getZones().size() == 3);
+		}
+		songSelector.closeAll();
+	}
+	
+	/**
+	 * This tests adding several songs at once, all of them or none
+	 */
+	@Test
+	public void testAddAllToQueue() throws IOException {
+		File file = File.createTempFile("JukeboxLog", null);
+		file.deleteOnExit();
+		WriteAheadLog log = new WriteAheadLog(file.getPath());
+		assertTrue(log.replay().isEmpty());
+		SongSelector songSelector = new SongSelector(null, false);
+		songSelector.setJournal(log);
+		PlayQueue queue = songSelector.getQueue();
+		
+		//the whole batch is one change of the queue
+		Account user = new Account("batch", "batch");
+		long version = queue.getVersion();
+		assertTrue(songSelector.addAllToQueue(Arrays.asList("Capture", "Swing Cheese", "Capture"), user) == Admission.ACCEPTED);
+		assertTrue(queue.getVersion() == version + 1);
+		assertTrue(queue.snapshot().equals(Arrays.asList("Capture", "Swing Cheese", "Capture")));
+		assertTrue(user.numberSongPlayedByUserToday() == 3 && user.getTimePlayed() == 25);
+		assertTrue(songSelector.getSong("Capture").getTimesPlayedToday() == 2);
+		
+		//nothing is taken when any part of the batch is turned down
+		Account other = new Account("other", "other");
+		assertTrue(songSelector.requestSong("Loping Sting", other, true) == Admission.ACCEPTED);
+		assertTrue(songSelector.addAllToQueue(Arrays.asList("Loping Sting", "Swing Cheese", "Determined Tumbao"), other)
+				== Admission.USER_LIMIT);
+		assertTrue(songSelector.addAllToQueue(Arrays.asList("Loping Sting", "Nothing"), other) == Admission.UNKNOWN_SONG);
+		assertTrue(songSelector.addAllToQueue(Arrays.asList("Loping Sting", "Capture", "Capture"), other)
+				== Admission.USER_LIMIT);
+		//Capture has one play left today, not two
+		assertTrue(songSelector.addAllToQueue(Arrays.asList("Capture", "Capture"), other) == Admission.SONG_LIMIT);
+		assertTrue(other.numberSongPlayedByUserToday() == 1 && other.getTimePlayed() == 5);
+		assertTrue(songSelector.getSong("Loping Sting").getTimesPlayedToday() == 1);
+		assertTrue(songSelector.getSong("Capture").getTimesPlayedToday() == 2);
+		assertTrue(queue.getVersion() == version + 1);
+		assertTrue(songSelector.addAllToQueue(Arrays.asList("Loping Sting", "Swing Cheese"), other) == Admission.ACCEPTED);
+		songSelector.closeAll();
+		log.close();
+		
+		//the batches read back from the log in order
+		log = new WriteAheadLog(file.getPath());
+		SongSelector replayed = new SongSelector(null, false);
+		for (WriteAheadLog.Record record : log.replay()) {
+			replayed.replay(record);
+			replayed.replay(record);
+		}
+		replayed.closeAll();
+		log.close();
+		assertTrue(replayed.getQueue().snapshot().equals(
+				Arrays.asList("Capture", "Swing Cheese", "Capture", "Loping Sting", "Swing Cheese")));
+		assertTrue(replayed.getQueue().getVersion() == version + 2);
+		assertTrue(replayed.getSong("Swing Cheese").getTimesPlayedToday() == 2);
+		assertTrue(replayed.getHistory().size() == 6);
+		assertTrue(replayed.getHistory().plays(0, Long.MAX_VALUE).toString().equals(
+				songSelector.getHistory().plays(0, Long.MAX_VALUE).toString()));
+	}
+	
+	/**
+	 * This tests that the ListOfUsers and ListOfSongs saved by older jukeboxes
+	 * still load, with their counters packed again
+	 */
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testReadOlderSavedData() throws IOException, ClassNotFoundException {
+		Map<String, Account> accounts;
+		try (ObjectInputStream in = new ObjectInputStream(new FileInputStream("ListOfUsers"))) {
+			accounts = (Map<String, Account>) in.readObject();
+		}
+		assertTrue(accounts.size() == 5);
+		Account ryan = accounts.get("Ryan");
+		assertTrue(ryan.getAccountName().equals("Ryan"));
+		assertTrue(ryan.checkPassword("4444"));
+		assertFalse(ryan.checkPassword("444"));
+		// the saved day is long gone, so the account starts today with no songs
+		assertTrue(ryan.numberSongPlayedByUserToday() == 0);
+		assertTrue(ryan.getTimePlayed() == 0);
+		assertTrue(ryan.tryReservePlay(60) == Admission.ACCEPTED);
+		assertTrue(ryan.numberSongPlayedByUserToday() == 1);
+		
+		Map<String, Song> songs;
+		try (ObjectInputStream in = new ObjectInputStream(new FileInputStream("ListOfSongs"))) {
+			songs = (Map<String, Song>) in.readObject();
+		}
+		assertTrue(songs.size() == 7);
+		Song fire = songs.get("Untameable Fire");
+		assertTrue(fire.getPath().equals("songfiles/UntameableFire.mp3"));
+		assertTrue(fire.getSongDuration() == 282);
+		assertTrue(fire.getArtist().equals(""));
+		assertTrue(fire.getTimesPlayedToday() == 0);
+		assertTrue(fire.tryReservePlay());
+		assertTrue(fire.getTimesPlayedToday() == 1);
+		
+		// written out again the old way, the counters of today come back
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(ryan);
+			out.writeObject(fire);
+		}
+		try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+			Account account = (Account) in.readObject();
+			Song song = (Song) in.readObject();
+			assertTrue(account.numberSongPlayedByUserToday() == 1);
+			assertTrue(account.getTimePlayed() == 60);
+			assertTrue(account.checkPassword("4444"));
+			assertTrue(song.getTimesPlayedToday() == 1);
+			assertTrue(song.getSongName().equals("Untameable Fire"));
+		}
+	}
+	
+	/**
+	 * This tests that the ListOfSongs saved by an older jukebox is read
+	 * into a catalog and moves to the catalog format when written again
+	 */
+	@Test
+	public void testReadOlderSongList() throws IOException {
+		assertFalse(SongCatalog.isCatalogFile("ListOfSongs"));
+		SongCatalog songs = SongCatalog.readSongList("ListOfSongs");
+		assertTrue(songs.size() == 7);
+		assertTrue(songs.getSong("Untameable Fire").getPath().equals("songfiles/UntameableFire.mp3"));
+		assertTrue(songs.getSong("Untameable Fire").getSongDuration() == 282);
+		assertTrue(songs.getSong("Loping Sting").getSongDuration() == 5);
+		assertTrue(songs.getSong("Capture").tryReservePlay());
+		
+		File written = File.createTempFile("ListOfSongs", ".catalog");
+		try {
+			songs.write(written.getPath());
+			assertTrue(SongCatalog.isCatalogFile(written.getPath()));
+			SongCatalog reopened = SongCatalog.open(written.getPath());
+			assertTrue(reopened.size() == 7);
+			assertTrue(reopened.getSong("Dance Macabre Violin Hook").getSongDuration() == 34);
+			assertTrue(reopened.getSong("Capture").getTimesPlayedToday() == 1);
+		} finally {
+			written.delete();
+		}
+		
+		// a file that is neither a catalog nor a song list is turned down
+		try {
+			SongCatalog.readSongList("SongQueue");
+			fail("SongQueue is not a song list");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+	
+	/**
+	 * This tests that the plain text passwords of the ListOfUsers saved by an
+	 * older jukebox are hashed once they are checked, and stay hashed when saved
+	 */
+	@Test
+	public void testRehashOlderAccounts() throws Exception {
+		JukeboxAccountCollection accountCollection = new JukeboxAccountCollection(true);
+		Account ryan = accountCollection.getAccount("Ryan");
+		assertTrue(ryan.checkPassword("4444"));
+		//the file keeps passwords in plain text, so the first check hashes it
+		assertTrue(accountCollection.rehashIfNeeded(ryan, "4444"));
+		assertFalse(accountCollection.rehashIfNeeded(ryan, "4444"));
+		assertTrue(ryan.checkPassword("4444"));
+		assertFalse(ryan.checkPassword("plain"));
+		
+		//logging in hashes the password of the account that logs in
+		LoginLogoutSystem sessions = new LoginLogoutSystem(accountCollection);
+		assertTrue(sessions.openSessionAsync("Devon", "22").get() != null);
+		assertFalse(accountCollection.rehashIfNeeded(accountCollection.getAccount("Devon"), "22"));
+		sessions.close();
+		
+		File saved = File.createTempFile("ListOfUsers", ".tmp");
+		try {
+			accountCollection.writePersistentData(saved.getPath());
+			JukeboxAccountCollection reread = new JukeboxAccountCollection(false);
+			reread.readPersistentData(saved.getPath());
+			assertFalse(reread.rehashIfNeeded(reread.getAccount("Ryan"), "4444"));
+			assertTrue(reread.getAccount("Ryan").checkPassword("4444"));
+			//an account that never logged in is still in plain text
+			assertTrue(reread.rehashIfNeeded(reread.getAccount("Chris"), "1"));
+		} finally {
+			saved.delete();
+		}
+	}
+	
+	/**
+	 * This tests that a selector reading saved data plays nothing until it is
+	 * started, so the log is replayed on the saved queue before a song starts
+	 */
+	@Test
+	public void testStartAfterReplay() throws InterruptedException {
+		SimulatedAudioSink sink = new SimulatedAudioSink(1000);
+		SongSelector songSelector = new SongSelector(null, true, sink);
+		int saved = songSelector.getQueue().size();
+		long version = songSelector.getQueue().getVersion();
+		songSelector.replay(new WriteAheadLog.Record(WriteAheadLog.Type.ENQUEUE, "Capture", null, version + 1, 0));
+		songSelector.replay(new WriteAheadLog.Record(WriteAheadLog.Type.ENQUEUE, "Swing Cheese", null, version + 2, 0));
+		Thread.sleep(50);
+		assertTrue(sink.getSongsPlayed() == 0);
+		assertTrue(songSelector.getQueue().size() == saved + 2);
+		
+		//the songs that played before the crash are taken off before anything starts
+		for (int i = 0; i < saved + 1; i++) {
+			songSelector.replay(new WriteAheadLog.Record(WriteAheadLog.Type.DEQUEUE, null, null, version + 3 + i, 0));
+		}
+		assertTrue(songSelector.getQueue().peek().equals("Swing Cheese"));
+		songSelector.start();
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!songSelector.getQueue().isEmpty() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		assertTrue(sink.getSongsPlayed() == 1);
+		
+		//zones added once the selector started play right away
+		SimulatedAudioSink patioSink = new SimulatedAudioSink(1000);
+		Zone patio = songSelector.addZone("patio", patioSink);
+		assertTrue(songSelector.requestSong("Capture", new Account("start", "start"), patio) == Admission.ACCEPTED);
+		deadline = System.currentTimeMillis() + 5000;
+		while (patioSink.getSongsPlayed() == 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		assertTrue(patioSink.getSongsPlayed() == 1);
+		songSelector.closeAll();
+	}
+	
+	/**
+	 * This tests that the queues of every zone are logged by the zone's name,
+	 * so songs already paid for are still queued after a restart
+	 */
+	@Test
+	public void testZoneQueuesAreLogged() throws IOException {
+		File file = File.createTempFile("JukeboxLog", null);
+		file.deleteOnExit();
+		WriteAheadLog log = new WriteAheadLog(file.getPath());
+		assertTrue(log.replay().isEmpty());
+		SongSelector songSelector = new SongSelector(null, false, new SimulatedAudioSink());
+		Zone patio = songSelector.addZone("patio", new SimulatedAudioSink());
+		songSelector.setJournal(log);
+		Zone bar = songSelector.addZone("bar", new SimulatedAudioSink());
+		Account user = new Account("zones", "zones");
+		assertTrue(songSelector.requestSong("Swing Cheese", user, patio) == Admission.ACCEPTED);
+		assertTrue(songSelector.requestSong("Capture", user, patio) == Admission.ACCEPTED);
+		assertTrue(songSelector.addAllToQueue(Arrays.asList("Loping Sting"), new Account("bar", "bar"), bar)
+				== Admission.ACCEPTED);
+		songSelector.closeAll();
+		log.close();
+		
+		//the zones get their songs back when they are added again, the main queue stays empty
+		log = new WriteAheadLog(file.getPath());
+		SongSelector replayed = new SongSelector(null, false, new SimulatedAudioSink());
+		for (WriteAheadLog.Record record : log.replay()) {
+			replayed.replay(record);
+		}
+		log.close();
+		assertTrue(replayed.getQueue().isEmpty());
+		assertTrue(replayed.addZone("patio", new SimulatedAudioSink()).getQueue().snapshot().equals(
+				Arrays.asList("Swing Cheese", "Capture")));
+		assertTrue(replayed.addZone("bar", new SimulatedAudioSink()).getQueue().snapshot().equals(
+				Arrays.asList("Loping Sting")));
+		replayed.closeAll();
+		
+		try {
+			replayed.addZone("", new SimulatedAudioSink());
+			assertTrue(false);
+		} catch (IllegalArgumentException e) {
+			assertTrue(replayed.getZones().size() == 3);
+		}
+	}
 }
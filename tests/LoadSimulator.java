@@ -0,0 +1,406 @@
+package tests;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Random;
+
+import model.Account;
+import model.Admission;
+import model.DayClock;
+import model.JukeboxAccountCollection;
+import model.PasswordHasher;
+import model.RequestStatistics;
+import model.SimulatedAudioSink;
+import model.Song;
+import model.SongCatalog;
+import model.SongSelector;
+
+/**
+ * This class runs whole days of jukebox use in a few seconds.
+ *
+ * Time is virtual: requests arrive at made up times of day, the day on the
+ * DayClock is set by hand so midnight comes when the simulation says so,
+ * and songs are played on a virtual timeline instead of a real player.
+ * Each request is made at its virtual time, so the play history and the
+ * request statistics see the same days as the limits.
+ * Every request still goes through SongSelector.requestSong with real
+ * accounts and songs, so the limits of 3 songs a day per user and per song
+ * and the 90000 seconds per user apply exactly as they do in the jukebox.
+ *
+ * Song popularity follows a Zipf distribution and requests arrive in bursts:
+ * quiet stretches alternate with busy ones, like a shift change. At the end
+ * the admissions per second, the reasons requests were turned away and how
+ * long admitted songs waited in the queue are printed.
+ *
+ * Run it with settings like users=500 songs=1000 days=7, see Settings.
+ *
+ * @author David Wang
+ */
+public class LoadSimulator {
+	private final static int SECONDS_PER_DAY = 24 * 60 * 60;
+
+	/**
+	 * The settings of a simulation, each can be given on the command line as name=value
+	 */
+	public static class Settings {
+		/** the number of accounts */
+		public int users = 500;
+		/** the number of songs, made up songs are added after the jukebox's own */
+		public int songs = 1000;
+		/** the number of days to simulate */
+		public int days = 7;
+		/** the average number of requests in a day */
+		public int requestsPerDay = 20000;
+		/** the Zipf exponent of song popularity, 0 for all songs equally popular */
+		public double zipf = 1.0;
+		/** how many times more requests arrive per second during a burst */
+		public double burstFactor = 8.0;
+		/** the average length of a quiet stretch in seconds */
+		public double calmSeconds = 1800;
+		/** the average length of a burst in seconds */
+		public double burstSeconds = 300;
+		/** the seed for the random numbers, so a run can be repeated */
+		public long seed = 42;
+
+		/**
+		 * Reads the settings from name=value arguments
+		 * @param args the arguments
+		 * @return the settings
+		 */
+		public static Settings parse(String[] args) {
+			Settings settings = new Settings();
+			for (String arg : args) {
+				String[] pair = arg.split("=", 2);
+				if (pair.length != 2) {
+					throw new IllegalArgumentException("expected name=value: " + arg);
+				}
+				try {
+					java.lang.reflect.Field field = Settings.class.getField(pair[0]);
+					if (field.getType() == int.class) {
+						field.setInt(settings, Integer.parseInt(pair[1]));
+					}
+					else if (field.getType() == long.class) {
+						field.setLong(settings, Long.parseLong(pair[1]));
+					}
+					else {
+						field.setDouble(settings, Double.parseDouble(pair[1]));
+					}
+				} catch (NoSuchFieldException | IllegalAccessException e) {
+					throw new IllegalArgumentException("unknown setting: " + pair[0]);
+				}
+			}
+			return settings;
+		}
+	}
+
+	/**
+	 * What happened during a simulation
+	 */
+	public static class Report {
+		private long requests;
+		private long admitted;
+		private final Map<Admission, Long> outcomes = new EnumMap<Admission, Long>(Admission.class);
+		private long[] admittedPerDay;
+		private long[] playedPerDay;
+		private String[] mostRequestedPerDay;
+		private long[] waits = new long[1024];
+		private int waitCount;
+		private long elapsedNanos;
+
+		public long getRequests() {
+			return requests;
+		}
+
+		public long getAdmitted() {
+			return admitted;
+		}
+
+		/**
+		 * Get the number of requests that ended a certain way
+		 * @param outcome ACCEPTED or a reason the request was turned away
+		 * @return the number of requests
+		 */
+		public long getCount(Admission outcome) {
+			Long count = outcomes.get(outcome);
+			return count == null ? 0 : count;
+		}
+
+		/**
+		 * Get the number of songs admitted on one simulated day
+		 * @param day the day, from 0
+		 * @return the number of songs admitted that day
+		 */
+		public long getAdmittedOnDay(int day) {
+			return admittedPerDay[day];
+		}
+
+		/**
+		 * Get the number of plays the play history has on one simulated day
+		 * @param day the day, from 0
+		 * @return the number of plays in the history that day
+		 */
+		public long getPlayedOnDay(int day) {
+			return playedPerDay[day];
+		}
+
+		/**
+		 * Get the song the request statistics found most requested on one simulated day
+		 * @param day the day, from 0
+		 * @return the name of the song, or null if nothing was requested
+		 */
+		public String getMostRequestedOnDay(int day) {
+			return mostRequestedPerDay[day];
+		}
+
+		/**
+		 * Get how long admitted songs waited before they started playing
+		 * @param percentile from 0 to 100
+		 * @return the wait in virtual seconds
+		 */
+		public long getWaitPercentile(double percentile) {
+			if (waitCount == 0) {
+				return 0;
+			}
+			long[] sorted = Arrays.copyOf(waits, waitCount);
+			Arrays.sort(sorted);
+			int index = (int) Math.ceil(percentile / 100 * waitCount) - 1;
+			return sorted[Math.max(0, Math.min(waitCount - 1, index))];
+		}
+
+		/**
+		 * Get the number of requests handled per real second
+		 * @return the requests per second
+		 */
+		public double getRequestsPerSecond() {
+			return requests / Math.max(1e-9, elapsedNanos / 1e9);
+		}
+
+		/**
+		 * Get the number of songs admitted per real second
+		 * @return the admissions per second
+		 */
+		public double getAdmissionsPerSecond() {
+			return admitted / Math.max(1e-9, elapsedNanos / 1e9);
+		}
+
+		private void count(Admission outcome, int day) {
+			requests++;
+			outcomes.put(outcome, getCount(outcome) + 1);
+			if (outcome == Admission.ACCEPTED) {
+				admitted++;
+				admittedPerDay[day]++;
+			}
+		}
+
+		private void addWait(long seconds) {
+			if (waitCount == waits.length) {
+				waits = Arrays.copyOf(waits, waits.length * 2);
+			}
+			waits[waitCount++] = seconds;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder text = new StringBuilder();
+			text.append(String.format("%d requests in %.2f s, %.0f requests/s, %.0f admissions/s%n",
+					requests, elapsedNanos / 1e9, getRequestsPerSecond(), getAdmissionsPerSecond()));
+			for (Admission outcome : Admission.values()) {
+				text.append(String.format("  %-13s %10d  %5.1f%%%n", outcome, getCount(outcome),
+						requests == 0 ? 0.0 : 100.0 * getCount(outcome) / requests));
+			}
+			text.append("  admitted per day:");
+			for (long day : admittedPerDay) {
+				text.append(' ').append(day);
+			}
+			text.append(String.format("%n  played per day (history):"));
+			for (long day : playedPerDay) {
+				text.append(' ').append(day);
+			}
+			text.append(String.format("%n  most requested per day:"));
+			for (String song : mostRequestedPerDay) {
+				text.append(" [").append(song).append(']');
+			}
+			text.append(String.format("%n  queue wait (virtual s): p50 %d  p90 %d  p99 %d  max %d%n",
+					getWaitPercentile(50), getWaitPercentile(90), getWaitPercentile(99), getWaitPercentile(100)));
+			return text.toString();
+		}
+	}
+
+	private final Settings settings;
+	private final Random random;
+	private SongSelector songSelector;
+	private Account[] users;
+	private String[] songNames;
+	private int[] songSeconds;
+	private double[] popularity;
+	// when the player finishes the songs admitted so far, in seconds from the first midnight
+	private double playerFreeAt;
+
+	/**
+	 * Constructor of the class
+	 * @param newSettings the settings of the simulation
+	 */
+	public LoadSimulator(Settings newSettings) {
+		settings = newSettings;
+		random = new Random(newSettings.seed);
+	}
+
+	/**
+	 * Runs the simulation. The DayClock is handed back to the system clock afterwards.
+	 * @return what happened
+	 */
+	public Report run() {
+		setUp();
+		Report report = new Report();
+		report.admittedPerDay = new long[settings.days];
+		report.playedPerDay = new long[settings.days];
+		report.mostRequestedPerDay = new String[settings.days];
+		long firstDay = DayClock.today();
+		long start = System.nanoTime();
+		try {
+			for (int day = 0; day < settings.days; day++) {
+				DayClock.setToday(firstDay + day);
+				simulateDay(day, report);
+				// the statistics only keep today, so each day is looked at before the next starts
+				long to = startOfDay(firstDay + day + 1);
+				for (RequestStatistics.Entry entry : songSelector.getRequestStatistics()
+						.top(RequestStatistics.Window.TODAY, 1, to - 1)) {
+					report.mostRequestedPerDay[day] = entry.getSong();
+				}
+			}
+		} finally {
+			report.elapsedNanos = System.nanoTime() - start;
+			for (int day = 0; day < settings.days; day++) {
+				report.playedPerDay[day] = songSelector.getHistory()
+						.plays(startOfDay(firstDay + day), startOfDay(firstDay + day + 1)).size();
+			}
+			DayClock.useSystemClock();
+			songSelector.closeAll();
+		}
+		return report;
+	}
+
+	/*
+	 * Helper method
+	 * Makes the accounts and the songs and works out how popular each song is
+	 */
+	private void setUp() {
+		// a million log ins are not simulated, so the passwords need not be expensive
+		int iterations = PasswordHasher.getIterations();
+		PasswordHasher.setIterations(1);
+		JukeboxAccountCollection accounts = new JukeboxAccountCollection(false);
+		users = new Account[settings.users];
+		for (int i = 0; i < settings.users; i++) {
+			accounts.addAccount("user" + i, "password");
+			users[i] = accounts.getAccount("user" + i);
+		}
+		PasswordHasher.setIterations(iterations);
+
+		songSelector = new SongSelector(null, false, new SimulatedAudioSink());
+		SongCatalog catalog = songSelector.getSongCollection();
+		for (int i = catalog.size(); i < settings.songs; i++) {
+			// lengths from 2 to 6 minutes
+			catalog.add(new Song("Simulated song " + i, "songfiles/Capture.mp3", 120 + random.nextInt(240)));
+		}
+		int count = Math.min(settings.songs, catalog.size());
+		songNames = new String[count];
+		songSeconds = new int[count];
+		for (int i = 0; i < count; i++) {
+			Song song = catalog.getSong(i);
+			songNames[i] = song.getSongName();
+			songSeconds[i] = song.getSongDuration();
+		}
+
+		// the chance of the song ranked k being picked is proportional to 1 / k^zipf
+		popularity = new double[count];
+		double total = 0;
+		for (int k = 0; k < count; k++) {
+			total += 1.0 / Math.pow(k + 1, settings.zipf);
+			popularity[k] = total;
+		}
+		for (int k = 0; k < count; k++) {
+			popularity[k] /= total;
+		}
+	}
+
+	/*
+	 * Helper method
+	 * Simulates one day. Requests arrive one after another at a rate that
+	 * jumps up during bursts, and every admitted song is put on the timeline
+	 * of the player to see how long it waits.
+	 */
+	private void simulateDay(int day, Report report) {
+		double burstShare = settings.burstSeconds / (settings.burstSeconds + settings.calmSeconds);
+		// the quiet rate is chosen so the day gets requestsPerDay requests on average
+		double calmRate = settings.requestsPerDay
+				/ (SECONDS_PER_DAY * (1 - burstShare + burstShare * settings.burstFactor));
+		boolean burst = false;
+		double switchAt = exponential(1 / settings.calmSeconds);
+		double midnight = (double) day * SECONDS_PER_DAY;
+		double now = 0;
+		// the virtual seconds of the day are spread over the real length of the
+		// day, which is not 24 hours when the clocks change
+		long dayStart = startOfDay(DayClock.today());
+		double secondLength = (startOfDay(DayClock.today() + 1) - dayStart) / (double) SECONDS_PER_DAY;
+
+		while (true) {
+			double rate = burst ? calmRate * settings.burstFactor : calmRate;
+			double next = now + exponential(rate);
+			if (next >= switchAt) {
+				// no arrival before the rate changes, start over from the change
+				now = switchAt;
+				burst = !burst;
+				switchAt = now + exponential(1 / (burst ? settings.burstSeconds : settings.calmSeconds));
+				if (now >= SECONDS_PER_DAY) {
+					break;
+				}
+				continue;
+			}
+			now = next;
+			if (now >= SECONDS_PER_DAY) {
+				break;
+			}
+
+			int song = pickSong();
+			Account user = users[random.nextInt(users.length)];
+			Admission outcome = songSelector.requestSong(songNames[song], user, null,
+					dayStart + (long) (now * secondLength));
+			report.count(outcome, day);
+			if (outcome == Admission.ACCEPTED) {
+				// songs still waiting at midnight carry on into the next day
+				double startsAt = Math.max(midnight + now, playerFreeAt);
+				report.addWait((long) (startsAt - midnight - now));
+				playerFreeAt = startsAt + songSeconds[song];
+			}
+		}
+	}
+
+	/*
+	 * Helper method
+	 * Get the first second of a day where the jukebox is
+	 */
+	private static long startOfDay(long epochDay) {
+		return LocalDate.ofEpochDay(epochDay).atStartOfDay(ZoneId.systemDefault()).toEpochSecond();
+	}
+
+	private int pickSong() {
+		int index = Arrays.binarySearch(popularity, random.nextDouble());
+		return Math.min(popularity.length - 1, index >= 0 ? index : -index - 1);
+	}
+
+	private double exponential(double rate) {
+		return -Math.log(1 - random.nextDouble()) / rate;
+	}
+
+	/**
+	 * Runs a simulation and prints the report
+	 * @param args settings as name=value, for example users=500 songs=1000 days=7
+	 */
+	public static void main(String[] args) {
+		Settings settings = Settings.parse(args);
+		System.out.println(new LoadSimulator(settings).run());
+	}
+}